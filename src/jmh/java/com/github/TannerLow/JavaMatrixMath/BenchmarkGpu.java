@@ -0,0 +1,48 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Opens a GPU with the Matrices kernels loaded, the same way GpuTest does.
+final class BenchmarkGpu {
+    private BenchmarkGpu() {}
+
+    static GPU open() throws IOException {
+        String matricesKernelFilePath = "kernels/Matrices.cl";
+        String matricesKernelCode;
+        try(InputStream inputStream = InternalFile.getInstance().getFileInputStream(matricesKernelFilePath)) {
+            if(inputStream == null) {
+                throw new IOException("Failed to read file: " + matricesKernelFilePath);
+            }
+            matricesKernelCode = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        GPU gpu = new GPU();
+        gpu.initialize(true);
+        int programId = gpu.loadProgram(matricesKernelCode);
+        gpu.loadKernel(programId, "Matrices", "matrixMultiply");
+        gpu.loadKernel(programId, "Matrices", "addRowToRows");
+        gpu.loadKernel(programId, "Matrices", "addColToCols");
+        gpu.loadKernel(programId, "Matrices", "relu");
+        gpu.loadKernel(programId, "Matrices", "horizontalSoftmax");
+        gpu.loadKernel(programId, "Matrices", "verticalSoftmax");
+
+        if(!Matrix.isCompatibleWithGPU(gpu)) {
+            gpu.close();
+            throw new IllegalStateException("GPU in unexpected state.");
+        }
+
+        return gpu;
+    }
+
+    static Matrix randomMatrix(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        float[] data = new float[rows * cols];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat() * 2 - 1;
+        }
+        return new Matrix(rows, cols, data);
+    }
+}
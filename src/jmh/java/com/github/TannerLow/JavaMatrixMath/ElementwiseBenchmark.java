@@ -0,0 +1,80 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The non-GEMM operations on a batchSize x features activation matrix.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ElementwiseBenchmark {
+    @Param({"cpu", "gpu"})
+    public String backend;
+
+    @Param({"1", "32", "256"})
+    public int batchSize;
+
+    @Param({"128", "1024"})
+    public int features;
+
+    private GPU gpu;
+    private Matrix input;
+    private Matrix row;
+    private Matrix col;
+
+    @Setup
+    public void setup() throws IOException {
+        input = BenchmarkGpu.randomMatrix(batchSize, features, 1);
+        row = BenchmarkGpu.randomMatrix(1, features, 2);
+        col = BenchmarkGpu.randomMatrix(batchSize, 1, 3);
+
+        if(backend.equals("gpu")) {
+            gpu = BenchmarkGpu.open();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(gpu != null) {
+            gpu.close();
+        }
+    }
+
+    @Benchmark
+    public Matrix addRowToRows() {
+        return gpu == null ? input.addRowToRows(row) : input.addRowToRows(gpu, row);
+    }
+
+    @Benchmark
+    public Matrix addColToCols() {
+        return gpu == null ? input.addColToCols(col) : input.addColToCols(gpu, col);
+    }
+
+    @Benchmark
+    public Matrix relu() {
+        return gpu == null ? input.relu() : input.relu(gpu);
+    }
+
+    @Benchmark
+    public Matrix horizontalSoftmax() {
+        return gpu == null ? input.horizontalSoftmax() : input.horizontalSoftmax(gpu);
+    }
+
+    @Benchmark
+    public Matrix verticalSoftmax() {
+        return gpu == null ? input.verticalSoftmax() : input.verticalSoftmax(gpu);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Matrix.multiply for square and rectangular shapes, given as MxKxN (A is MxK, B is KxN).
+// The rectangular shapes are dense layer forward passes: batch x inputs times inputs x outputs.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class MultiplyBenchmark {
+    @Param({"cpu", "gpu"})
+    public String backend;
+
+    @Param({"64x64x64", "256x256x256", "1500x1500x1500", "1x784x128", "32x784x128", "256x1024x512"})
+    public String shape;
+
+    private GPU gpu;
+    private Matrix a;
+    private Matrix b;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] dimensions = shape.split("x");
+        int m = Integer.parseInt(dimensions[0]);
+        int k = Integer.parseInt(dimensions[1]);
+        int n = Integer.parseInt(dimensions[2]);
+
+        a = BenchmarkGpu.randomMatrix(m, k, 1);
+        b = BenchmarkGpu.randomMatrix(k, n, 2);
+
+        if(backend.equals("gpu")) {
+            gpu = BenchmarkGpu.open();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(gpu != null) {
+            gpu.close();
+        }
+    }
+
+    @Benchmark
+    public Matrix multiply() {
+        return gpu == null ? a.multiply(b) : a.multiply(gpu, b);
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// vectorizedReluDerivative only exists on the CPU, so it has no backend parameter.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ReluDerivativeBenchmark {
+    @Param({"1", "32", "256"})
+    public int batchSize;
+
+    @Param({"128", "1024"})
+    public int features;
+
+    private Matrix input;
+
+    @Setup
+    public void setup() {
+        input = BenchmarkGpu.randomMatrix(batchSize, features, 1);
+    }
+
+    @Benchmark
+    public Matrix vectorizedReluDerivative() {
+        return input.vectorizedReluDerivative();
+    }
+}
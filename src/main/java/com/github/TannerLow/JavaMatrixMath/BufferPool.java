@@ -0,0 +1,134 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import org.jocl.cl_context;
+import org.jocl.cl_mem;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.clCreateBuffer;
+import static org.jocl.CL.clReleaseMemObject;
+
+// Recycles device buffers so that steady-state GPU work does not hit the driver allocator.
+// Requests are rounded up to a size bucket (four buckets per power of two, so at most 25%
+// is wasted) and served from the free list of that bucket when possible; requests that the
+// rounding would push past the device's allocation limit keep their exact size. Released
+// buffers are kept until maxRetainedBytes is reached, beyond that they are freed
+// immediately. Once the GPU is closed, released buffers are always freed.
+public class BufferPool {
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 256L * 1024 * 1024;
+
+    private static final long MIN_BUCKET_BYTES = 256;
+
+    private final cl_context context;
+    private final long maxBufferBytes;
+    private final Map<Long, ArrayDeque<cl_mem>> freeBuffers = new HashMap<>();
+
+    private long maxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+    private long retainedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private boolean closed = false;
+
+    // maxBufferBytes is CL_DEVICE_MAX_MEM_ALLOC_SIZE of the device
+    BufferPool(cl_context context, long maxBufferBytes) {
+        this.context = context;
+        this.maxBufferBytes = maxBufferBytes;
+    }
+
+    // Returns a read-write buffer of at least bytes bytes. Its contents are undefined.
+    public synchronized cl_mem acquire(long bytes) {
+        if(closed) {
+            throw new IllegalStateException("BufferPool has already been closed.");
+        }
+        long bucketBytes = bucketSize(bytes, maxBufferBytes);
+
+        ArrayDeque<cl_mem> buffers = freeBuffers.get(bucketBytes);
+        if(buffers != null && !buffers.isEmpty()) {
+            hits++;
+            retainedBytes -= bucketBytes;
+            Metrics.bufferAcquired(bucketBytes, true);
+            return buffers.pop();
+        }
+
+        misses++;
+        Metrics.bufferAcquired(bucketBytes, false);
+        return clCreateBuffer(context, CL_MEM_READ_WRITE, bucketBytes, null, null);
+    }
+
+    // Gives a buffer obtained from acquire(bytes) back to the pool.
+    public synchronized void release(cl_mem memory, long bytes) {
+        long bucketBytes = bucketSize(bytes, maxBufferBytes);
+
+        if(closed || retainedBytes + bucketBytes > maxRetainedBytes) {
+            clReleaseMemObject(memory);
+            return;
+        }
+
+        freeBuffers.computeIfAbsent(bucketBytes, size -> new ArrayDeque<>()).push(memory);
+        retainedBytes += bucketBytes;
+    }
+
+    // Frees every buffer currently held by the pool.
+    public synchronized void trim() {
+        for(ArrayDeque<cl_mem> buffers : freeBuffers.values()) {
+            for(cl_mem memory : buffers) {
+                clReleaseMemObject(memory);
+            }
+        }
+        freeBuffers.clear();
+        retainedBytes = 0;
+    }
+
+    // Frees every buffer held by the pool and every buffer released from now on, called by
+    // GPU.close.
+    synchronized void close() {
+        closed = true;
+        trim();
+    }
+
+    public synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        if(maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("Max retained bytes must not be negative: " + maxRetainedBytes);
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        if(retainedBytes > maxRetainedBytes) {
+            trim();
+        }
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // the bucket of bytes, or bytes itself where the bucket would exceed maxBufferBytes
+    static long bucketSize(long bytes, long maxBufferBytes) {
+        long bucketBytes = bucketSize(bytes);
+        return bucketBytes > maxBufferBytes ? bytes : bucketBytes;
+    }
+
+    static long bucketSize(long bytes) {
+        if(bytes <= MIN_BUCKET_BYTES) {
+            return MIN_BUCKET_BYTES;
+        }
+
+        // round up to the next multiple of a quarter of the enclosing power of two
+        long powerOfTwo = Long.highestOneBit(bytes - 1);
+        long step = powerOfTwo / 4;
+        return (bytes + step - 1) / step * step;
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Random;
+
+// Estimated running times of an operation on the CPU and on a GPU, used by Dispatcher.
+// The CPU is modelled by its arithmetic rate alone. The GPU pays a fixed latency for the
+// launch and the blocking read, the transfer of every operand and the result, and then
+// its own arithmetic rate, which is why a small product is faster on the CPU.
+// Rates come from calibrate(), a few short benchmarks, and can be saved to a file and
+// loaded on the next start instead of measuring again. A model saved for another device
+// or driver version is not reused. Rates of 0 mean not measured: a GPU without rates is
+// never chosen.
+public class CostModel {
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int CPU_MULTIPLY_SIZE = 256;
+    private static final int GPU_MULTIPLY_SIZE = 512;
+    private static final int ELEMENTWISE_SIZE = 1 << 20;
+    private static final int TRANSFER_SIZE = 1 << 21;
+    private static final int RUNS = 3;
+
+    private final String deviceName;
+    private final String driverVersion;
+    private final double cpuMultiplyFlopsPerSecond;
+    private final double cpuElementwiseFlopsPerSecond;
+    private final double gpuMultiplyFlopsPerSecond;
+    private final double gpuElementwiseFlopsPerSecond;
+    private final double gpuTransferBytesPerSecond;
+    private final double gpuLatencySeconds;
+
+    public CostModel(String deviceName, String driverVersion,
+                     double cpuMultiplyFlopsPerSecond, double cpuElementwiseFlopsPerSecond,
+                     double gpuMultiplyFlopsPerSecond, double gpuElementwiseFlopsPerSecond,
+                     double gpuTransferBytesPerSecond, double gpuLatencySeconds) {
+        this.deviceName = deviceName;
+        this.driverVersion = driverVersion;
+        this.cpuMultiplyFlopsPerSecond = cpuMultiplyFlopsPerSecond;
+        this.cpuElementwiseFlopsPerSecond = cpuElementwiseFlopsPerSecond;
+        this.gpuMultiplyFlopsPerSecond = gpuMultiplyFlopsPerSecond;
+        this.gpuElementwiseFlopsPerSecond = gpuElementwiseFlopsPerSecond;
+        this.gpuTransferBytesPerSecond = gpuTransferBytesPerSecond;
+        this.gpuLatencySeconds = gpuLatencySeconds;
+    }
+
+    // Measures the CPU, and gpu when it is initialized and has Matrices::matrixMultiply and
+    // Matrices::relu loaded. gpu may be null for a model of the CPU alone.
+    public static CostModel calibrate(GPU gpu) {
+        Matrix a = randomMatrix(CPU_MULTIPLY_SIZE, CPU_MULTIPLY_SIZE, 1);
+        Matrix b = randomMatrix(CPU_MULTIPLY_SIZE, CPU_MULTIPLY_SIZE, 2);
+        Matrix product = new Matrix(CPU_MULTIPLY_SIZE, CPU_MULTIPLY_SIZE);
+        double cpuMultiply = multiplyFlops(CPU_MULTIPLY_SIZE, CPU_MULTIPLY_SIZE, CPU_MULTIPLY_SIZE) /
+                time(() -> a.multiplyInto(b, product));
+
+        Matrix elements = randomMatrix(1, ELEMENTWISE_SIZE, 3);
+        Matrix activated = new Matrix(1, ELEMENTWISE_SIZE);
+        double cpuElementwise = ELEMENTWISE_SIZE / time(() -> elements.reluInto(activated));
+
+        if(gpu == null || !gpu.isInitialized() ||
+                gpu.getKernel("Matrices::matrixMultiply") == null || gpu.getKernel("Matrices::relu") == null) {
+            return new CostModel(null, null, cpuMultiply, cpuElementwise, 0, 0, 0, 0);
+        }
+
+        // a single element round trip is all latency
+        Matrix single = new Matrix(1, 1);
+        double latency = time(() -> single.reluInto(gpu, new Matrix(1, 1)));
+
+        Matrix transferred = randomMatrix(1, TRANSFER_SIZE, 4);
+        double transferSeconds = time(() -> {
+            try(DeviceMatrix device = transferred.toDevice(gpu)) {
+                device.toMatrix(transferred);
+            }
+        });
+        double transfer = 2.0 * Float.BYTES * TRANSFER_SIZE / Math.max(transferSeconds - latency, 1e-9);
+
+        double gpuMultiply;
+        double gpuElementwise;
+        Matrix gpuA = randomMatrix(GPU_MULTIPLY_SIZE, GPU_MULTIPLY_SIZE, 5);
+        Matrix gpuB = randomMatrix(GPU_MULTIPLY_SIZE, GPU_MULTIPLY_SIZE, 6);
+        try(DeviceMatrix deviceA = gpuA.toDevice(gpu);
+            DeviceMatrix deviceB = gpuB.toDevice(gpu);
+            DeviceMatrix deviceElements = transferred.toDevice(gpu)) {
+            gpuMultiply = multiplyFlops(GPU_MULTIPLY_SIZE, GPU_MULTIPLY_SIZE, GPU_MULTIPLY_SIZE) /
+                    time(() -> awaitAndClose(deviceA.multiply(deviceB)));
+            gpuElementwise = TRANSFER_SIZE / time(() -> awaitAndClose(deviceElements.relu()));
+        }
+
+        return new CostModel(gpu.getDeviceName(), gpu.getDriverVersion(), cpuMultiply, cpuElementwise,
+                gpuMultiply, gpuElementwise, transfer, latency);
+    }
+
+    // The model saved in file when it was measured for gpu, otherwise a new calibration,
+    // which is saved to file. A file that cannot be read or written only costs a calibration.
+    public static CostModel loadOrCalibrate(Path file, GPU gpu) {
+        try {
+            CostModel saved = load(file);
+            if(saved != null && saved.isFor(gpu)) {
+                return saved;
+            }
+        }
+        catch(IOException e) {
+            // measured again below
+        }
+
+        CostModel model = calibrate(gpu);
+        try {
+            model.save(file);
+        }
+        catch(IOException e) {
+            // measured again next time
+        }
+        return model;
+    }
+
+    // The model in file, null if it was saved in another format or is incomplete.
+    public static CostModel load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try(InputStream inputStream = Files.newInputStream(file)) {
+            properties.load(inputStream);
+        }
+        if(!String.valueOf(FORMAT_VERSION).equals(properties.getProperty("formatVersion"))) {
+            return null;
+        }
+
+        try {
+            return new CostModel(properties.getProperty("deviceName"), properties.getProperty("driverVersion"),
+                    rate(properties, "cpuMultiplyFlopsPerSecond"),
+                    rate(properties, "cpuElementwiseFlopsPerSecond"),
+                    rate(properties, "gpuMultiplyFlopsPerSecond"),
+                    rate(properties, "gpuElementwiseFlopsPerSecond"),
+                    rate(properties, "gpuTransferBytesPerSecond"),
+                    rate(properties, "gpuLatencySeconds"));
+        }
+        catch(NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("formatVersion", String.valueOf(FORMAT_VERSION));
+        if(deviceName != null) {
+            properties.setProperty("deviceName", deviceName);
+        }
+        if(driverVersion != null) {
+            properties.setProperty("driverVersion", driverVersion);
+        }
+        properties.setProperty("cpuMultiplyFlopsPerSecond", String.valueOf(cpuMultiplyFlopsPerSecond));
+        properties.setProperty("cpuElementwiseFlopsPerSecond", String.valueOf(cpuElementwiseFlopsPerSecond));
+        properties.setProperty("gpuMultiplyFlopsPerSecond", String.valueOf(gpuMultiplyFlopsPerSecond));
+        properties.setProperty("gpuElementwiseFlopsPerSecond", String.valueOf(gpuElementwiseFlopsPerSecond));
+        properties.setProperty("gpuTransferBytesPerSecond", String.valueOf(gpuTransferBytesPerSecond));
+        properties.setProperty("gpuLatencySeconds", String.valueOf(gpuLatencySeconds));
+
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null) {
+            Files.createDirectories(parent);
+        }
+        try(OutputStream outputStream = Files.newOutputStream(file)) {
+            properties.store(outputStream, "JavaMatrixMath cost model");
+        }
+    }
+
+    // Whether the GPU rates were measured on gpu's device and driver, null for no GPU.
+    public boolean isFor(GPU gpu) {
+        if(gpu == null) {
+            return deviceName == null;
+        }
+        return Objects.equals(deviceName, gpu.getDeviceName()) &&
+                Objects.equals(driverVersion, gpu.getDriverVersion());
+    }
+
+    public boolean hasGpu() {
+        return gpuMultiplyFlopsPerSecond > 0 && gpuElementwiseFlopsPerSecond > 0 && gpuTransferBytesPerSecond > 0;
+    }
+
+    public double cpuSeconds(Dispatcher.Operation operation, double flops) {
+        double rate = operation == Dispatcher.Operation.MULTIPLY ?
+                cpuMultiplyFlopsPerSecond : cpuElementwiseFlopsPerSecond;
+        return rate > 0 ? flops / rate : Double.POSITIVE_INFINITY;
+    }
+
+    // bytes counts every operand uploaded and the result read back
+    public double gpuSeconds(Dispatcher.Operation operation, double flops, double bytes) {
+        if(!hasGpu()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double rate = operation == Dispatcher.Operation.MULTIPLY ?
+                gpuMultiplyFlopsPerSecond : gpuElementwiseFlopsPerSecond;
+        return gpuLatencySeconds + bytes / gpuTransferBytesPerSecond + flops / rate;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public String getDriverVersion() {
+        return driverVersion;
+    }
+
+    public double getCpuMultiplyFlopsPerSecond() {
+        return cpuMultiplyFlopsPerSecond;
+    }
+
+    public double getCpuElementwiseFlopsPerSecond() {
+        return cpuElementwiseFlopsPerSecond;
+    }
+
+    public double getGpuMultiplyFlopsPerSecond() {
+        return gpuMultiplyFlopsPerSecond;
+    }
+
+    public double getGpuElementwiseFlopsPerSecond() {
+        return gpuElementwiseFlopsPerSecond;
+    }
+
+    public double getGpuTransferBytesPerSecond() {
+        return gpuTransferBytesPerSecond;
+    }
+
+    public double getGpuLatencySeconds() {
+        return gpuLatencySeconds;
+    }
+
+    static double multiplyFlops(int rows, int sharedDimension, int cols) {
+        return 2.0 * rows * sharedDimension * cols;
+    }
+
+    // fastest of a few runs after a warm-up, in seconds
+    private static double time(Runnable run) {
+        run.run();
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return Math.max(best, 1) / 1e9;
+    }
+
+    private static void awaitAndClose(DeviceMatrix matrix) {
+        try(matrix) {
+            matrix.await();
+        }
+    }
+
+    private static double rate(Properties properties, String name) {
+        return Double.parseDouble(properties.getProperty(name));
+    }
+
+    private static Matrix randomMatrix(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        Matrix matrix = new Matrix(rows, cols);
+        for(int i = 0; i < matrix.data.length; i++) {
+            matrix.data[i] = random.nextFloat() * 2 - 1;
+        }
+        return matrix;
+    }
+}
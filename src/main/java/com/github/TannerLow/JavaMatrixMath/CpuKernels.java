@@ -0,0 +1,82 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+// Inner loops of the CPU Matrix operations. The scalar implementation is always available;
+// the SIMD implementation is built on jdk.incubator.vector and is only picked when that
+// module has been added to the JVM (--add-modules jdk.incubator.vector).
+// Set -Djavamatrixmath.simd=false to force the scalar kernels.
+abstract class CpuKernels {
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNELS_CLASS = "com.github.TannerLow.JavaMatrixMath.VectorCpuKernels";
+
+    private static final CpuKernels SCALAR = new ScalarCpuKernels();
+    private static final CpuKernels VECTOR = loadVectorKernels();
+    private static final CpuKernels DEFAULT =
+            VECTOR != null && Boolean.parseBoolean(System.getProperty("javamatrixmath.simd", "true")) ? VECTOR : SCALAR;
+
+    static CpuKernels get() {
+        return DEFAULT;
+    }
+
+    static CpuKernels scalar() {
+        return SCALAR;
+    }
+
+    // null when the Vector API is not available in this JVM
+    static CpuKernels vector() {
+        return VECTOR;
+    }
+
+    private static CpuKernels loadVectorKernels() {
+        if(ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return null;
+        }
+
+        try {
+            return (CpuKernels) Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+        }
+        catch(ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // height of the GEMM register tile
+    abstract int gemmTileRows();
+
+    // width of the GEMM register tile
+    abstract int gemmTileCols();
+
+    // Computes a gemmTileRows x gemmTileCols tile of C from packed slivers of A and B.
+    // Only the top-left mr x nr part is stored; the first K block overwrites C, later
+    // blocks accumulate into it. edge is scratch space of at least one full tile.
+    abstract void gemmMicroKernel(int kc, float[] packedA, int aIndex, float[] packedB, int bIndex,
+                                  float[] c, int cIndex, int ldc, int mr, int nr,
+                                  boolean first, float[] edge);
+
+    // out[offset + i] = a[offset + i] + row[i] for i in [0, length)
+    void addRow(float[] a, float[] row, float[] out, int offset, int length) {
+        addRow(a, row, 0, out, offset, length);
+    }
+
+    // out[offset + i] = a[offset + i] + row[rowOffset + i] for i in [0, length)
+    abstract void addRow(float[] a, float[] row, int rowOffset, float[] out, int offset, int length);
+
+    // out[offset + i] = a[offset + i] + value for i in [0, length)
+    abstract void addScalar(float[] a, float value, float[] out, int offset, int length);
+
+    // y[yOffset + i] += alpha * x[xOffset + i] for i in [0, length), not fused
+    abstract void scaleAdd(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    abstract void relu(float[] in, float[] out, int start, int end);
+
+    abstract void reluDerivative(float[] in, float[] out, int start, int end);
+
+    // softmax of the contiguous row in[offset, offset + length)
+    abstract void horizontalSoftmax(float[] in, float[] out, int offset, int length);
+
+    // softmax of the columns [colStart, colEnd) of a rows x cols row-major matrix
+    abstract void verticalSoftmax(float[] in, float[] out, int rows, int cols, int colStart, int colEnd);
+
+    // sum of a[aOffset + i] * b[bOffset + i] for i in [0, length) in int arithmetic, exact
+    // as long as length stays below QuantizedMatrix.MAX_SHARED_DIMENSION
+    abstract int dotInt8(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+}
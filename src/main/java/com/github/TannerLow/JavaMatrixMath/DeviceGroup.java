@@ -0,0 +1,481 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.cl_device_id;
+import org.jocl.cl_platform_id;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.jocl.CL.CL_DEVICE_TYPE_GPU;
+import static org.jocl.CL.clGetDeviceIDs;
+import static org.jocl.CL.clGetPlatformIDs;
+
+// Several GPUs used together. A large multiplication is split into blocks of rows of A,
+// a batch into ranges of its matrices, and every device computes one block with its own
+// copy of B; the blocks are read back straight into the one result.
+// Blocks are sized by the speed of each device in multiply-adds per second. Speeds are
+// measured by calibrate() and refined after every split operation from the time each
+// device took, transfers included, so a slower or busier device gets less work.
+// Every device is driven from its own thread, so the devices run concurrently and each GPU
+// is only ever used by one thread. The group owns its GPUs and closes them.
+public class DeviceGroup implements Closeable {
+    // smaller blocks are not worth a device's transfers and launch
+    public static final int MIN_ROWS_PER_DEVICE = 64;
+    public static final int DEFAULT_CALIBRATION_SIZE = 512;
+
+    // weight of the newest measurement in the running speed estimate
+    private static final double SPEED_SMOOTHING = 0.5;
+
+    private final List<GPU> gpus;
+    private final ExecutorService[] threads;
+    // multiply-adds per second, 0 until measured
+    private final double[] speeds;
+
+    // Takes over initialized GPUs.
+    public DeviceGroup(List<GPU> gpus) {
+        if(gpus.isEmpty()) {
+            throw new IllegalArgumentException("A device group needs at least one GPU.");
+        }
+        for(GPU gpu : gpus) {
+            if(!gpu.isInitialized()) {
+                throw new IllegalStateException("GPU not yet initialized.");
+            }
+        }
+
+        this.gpus = Collections.unmodifiableList(new ArrayList<>(gpus));
+        this.threads = new ExecutorService[gpus.size()];
+        for(int i = 0; i < threads.length; i++) {
+            String name = "JavaMatrixMath-device-" + i;
+            threads[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.speeds = new double[gpus.size()];
+    }
+
+    // Initializes a GPU on every GPU device of every platform.
+    public static DeviceGroup allDevices(boolean outOfOrderExecution) {
+        CL.setExceptionsEnabled(true);
+
+        int numPlatformsArray[] = new int[1];
+        clGetPlatformIDs(0, null, numPlatformsArray);
+        cl_platform_id platforms[] = new cl_platform_id[numPlatformsArray[0]];
+        clGetPlatformIDs(platforms.length, platforms, null);
+
+        List<GPU> gpus = new ArrayList<>();
+        try {
+            for(cl_platform_id platform : platforms) {
+                for(cl_device_id device : getDevices(platform)) {
+                    GPU gpu = new GPU();
+                    gpu.initialize(platform, device, outOfOrderExecution);
+                    gpus.add(gpu);
+                }
+            }
+            if(gpus.isEmpty()) {
+                throw new IllegalStateException("No OpenCL GPU devices found.");
+            }
+            return new DeviceGroup(gpus);
+        }
+        catch(RuntimeException e) {
+            gpus.forEach(GPU::close);
+            throw e;
+        }
+    }
+
+    public List<GPU> getGpus() {
+        return gpus;
+    }
+
+    public int size() {
+        return gpus.size();
+    }
+
+    // Builds programCode on every device and loads the named kernels under scope.
+    public void loadKernels(String programCode, String scope, String... kernelNames) {
+        for(GPU gpu : gpus) {
+            int programId = gpu.loadProgram(programCode);
+            for(String kernelName : kernelNames) {
+                gpu.loadKernel(programId, scope, kernelName);
+            }
+        }
+    }
+
+    // Share of the work each device gets, summing up to 1.
+    public synchronized double[] getWeights() {
+        double[] effective = effectiveSpeeds();
+        double total = Arrays.stream(effective).sum();
+        double[] weights = new double[effective.length];
+        for(int i = 0; i < weights.length; i++) {
+            weights[i] = effective[i] / total;
+        }
+        return weights;
+    }
+
+    // Overrides the measured speeds, in any unit as long as it is the same for all devices.
+    public synchronized void setWeights(double... weights) {
+        if(weights.length != speeds.length) {
+            throw new IllegalArgumentException("Expected " + speeds.length + " weights, got " + weights.length);
+        }
+        for(double weight : weights) {
+            if(!(weight > 0) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("Weights must be positive: " + Arrays.toString(weights));
+            }
+        }
+        System.arraycopy(weights, 0, speeds, 0, speeds.length);
+    }
+
+    public void calibrate() {
+        calibrate(DEFAULT_CALIBRATION_SIZE);
+    }
+
+    // Times a size x size multiplication on each device in turn, after a warm-up run, and
+    // replaces the speed estimates with the results. Needs Matrices::matrixMultiply.
+    public void calibrate(int size) {
+        if(size <= 0) {
+            throw new IllegalArgumentException("Calibration size must be positive: " + size);
+        }
+        Random random = new Random(0);
+        Matrix a = new Matrix(size, size);
+        Matrix b = new Matrix(size, size);
+        for(int i = 0; i < a.data.length; i++) {
+            a.data[i] = random.nextFloat();
+            b.data[i] = random.nextFloat();
+        }
+        Matrix out = new Matrix(size, size);
+
+        double[] measured = new double[gpus.size()];
+        for(int device = 0; device < gpus.size(); device++) {
+            GPU gpu = gpus.get(device);
+            measured[device] = await(threads[device].submit(() -> {
+                a.multiplyInto(gpu, b, out);
+                long start = System.nanoTime();
+                a.multiplyInto(gpu, b, out);
+                return (double) size * size * size / Math.max(1, System.nanoTime() - start) * 1e9;
+            }));
+        }
+
+        synchronized(this) {
+            System.arraycopy(measured, 0, speeds, 0, speeds.length);
+        }
+    }
+
+    public Matrix multiply(Matrix a, Matrix b) throws DimensionsMismatchException {
+        Matrix result = new Matrix(a.rows, b.cols);
+        multiplyInto(a, b, result);
+        return result;
+    }
+
+    // out = a * b with the rows of a split across the devices. Needs Matrices::matrixMultiply.
+    public void multiplyInto(Matrix a, Matrix b, Matrix out) throws DimensionsMismatchException {
+        if(a.cols != b.rows) {
+            final int[] dimensionsA = {a.rows, a.cols};
+            final int[] dimensionsB = {b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.rows != a.rows || out.cols != b.cols) {
+            final int[] dimensionsA = {out.rows, out.cols};
+            final int[] dimensionsB = {a.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == a.data || out.data == b.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+
+        long workPerRow = (long) a.cols * b.cols;
+        run(a.rows, workPerRow, MIN_ROWS_PER_DEVICE, (gpu, start, end) -> {
+            try(DeviceMatrix deviceA = DeviceMatrix.upload(gpu, a.data, start * a.cols, end - start, a.cols);
+                DeviceMatrix deviceB = b.toDevice(gpu);
+                DeviceMatrix deviceOut = deviceA.multiply(deviceB)) {
+                deviceOut.toArray(out.data, start * out.cols);
+            }
+        });
+    }
+
+    public MatrixBatch multiply(MatrixBatch a, MatrixBatch b) throws DimensionsMismatchException {
+        MatrixBatch result = new MatrixBatch(a.count == 1 ? b.count : a.count, a.rows, b.cols);
+        multiplyInto(a, b, result);
+        return result;
+    }
+
+    // The batched product of MatrixBatch.multiplyInto with the matrices of the batch split
+    // across the devices. A batch of one matrix is copied to every device.
+    public void multiplyInto(MatrixBatch a, MatrixBatch b, MatrixBatch out) throws DimensionsMismatchException {
+        if(a.cols != b.rows || (a.count != b.count && a.count != 1 && b.count != 1)) {
+            final int[] dimensionsA = {a.count, a.rows, a.cols};
+            final int[] dimensionsB = {b.count, b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        int count = a.count == 1 ? b.count : a.count;
+        if(out.count != count || out.rows != a.rows || out.cols != b.cols) {
+            final int[] dimensionsA = {out.count, out.rows, out.cols};
+            final int[] dimensionsB = {count, a.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == a.data || out.data == b.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+        if(out.data.length == 0) {
+            return;
+        }
+
+        int aSize = a.rows * a.cols;
+        int bSize = b.rows * b.cols;
+        int cSize = out.rows * out.cols;
+        long workPerMatrix = (long) a.rows * a.cols * b.cols;
+        int minMatrices = Math.max(1, MIN_ROWS_PER_DEVICE / Math.max(1, a.rows));
+        run(count, workPerMatrix, minMatrices, (gpu, start, end) -> {
+            int blockCount = end - start;
+            int aCount = a.count == 1 ? 1 : blockCount;
+            int bCount = b.count == 1 ? 1 : blockCount;
+            try(DeviceMatrix deviceA = DeviceMatrix.upload(gpu, a.data, a.count == 1 ? 0 : start * aSize,
+                        aCount * a.rows, a.cols);
+                DeviceMatrix deviceB = DeviceMatrix.upload(gpu, b.data, b.count == 1 ? 0 : start * bSize,
+                        bCount * b.rows, b.cols);
+                DeviceMatrix deviceOut = DeviceMatrix.multiplyBatch(blockCount, a.rows, a.cols, b.cols,
+                        deviceA, aCount == 1 ? 0 : aSize, deviceB, bCount == 1 ? 0 : bSize)) {
+                deviceOut.toArray(out.data, start * cSize);
+            }
+        });
+    }
+
+    // Shuts down the device threads and closes every GPU.
+    @Override
+    public void close() {
+        for(ExecutorService thread : threads) {
+            thread.shutdown();
+        }
+        for(GPU gpu : gpus) {
+            gpu.close();
+        }
+    }
+
+    private interface BlockTask {
+        void run(GPU gpu, int start, int end);
+    }
+
+    // Splits [0, count) into one block per device by speed and runs task on each device's
+    // thread, then folds the timings into the speed estimates.
+    private void run(int count, long workPerItem, int minItemsPerDevice, BlockTask task) {
+        if(count == 0) {
+            return;
+        }
+
+        int[] devices;
+        int[] bounds;
+        synchronized(this) {
+            double[] effective = effectiveSpeeds();
+            devices = pickDevices(effective, count, minItemsPerDevice);
+            bounds = partition(effective, count, devices, minItemsPerDevice);
+        }
+
+        long[] nanos = new long[devices.length];
+        List<Future<?>> futures = new ArrayList<>(devices.length);
+        for(int i = 0; i < devices.length; i++) {
+            if(bounds[i] == bounds[i + 1]) {
+                continue;
+            }
+            final int block = i;
+            GPU gpu = gpus.get(devices[i]);
+            futures.add(threads[devices[i]].submit(() -> {
+                long start = System.nanoTime();
+                task.run(gpu, bounds[block], bounds[block + 1]);
+                nanos[block] = System.nanoTime() - start;
+            }));
+        }
+        // every block writes to the result, so all of them finish before a failure or an
+        // interrupt is reported
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for(Future<?> future : futures) {
+            // await restores the flag, clear it again so the next wait blocks
+            interrupted |= Thread.interrupted();
+            try {
+                await(future);
+            }
+            catch(RuntimeException e) {
+                if(failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if(interrupted || Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null) {
+            throw failure;
+        }
+
+        synchronized(this) {
+            for(int i = 0; i < devices.length; i++) {
+                // an empty block measures nothing about its device
+                if(bounds[i] == bounds[i + 1] || workPerItem == 0) {
+                    continue;
+                }
+                double work = (double) (bounds[i + 1] - bounds[i]) * workPerItem;
+                double measured = work / Math.max(1, nanos[i]) * 1e9;
+                int device = devices[i];
+                speeds[device] = speeds[device] == 0 ? measured :
+                        (1 - SPEED_SMOOTHING) * speeds[device] + SPEED_SMOOTHING * measured;
+            }
+        }
+    }
+
+    // the fastest devices that each get at least minItemsPerDevice items, in index order
+    static int[] pickDevices(double[] speeds, int count, int minItemsPerDevice) {
+        int used = Math.max(1, Math.min(speeds.length, count / minItemsPerDevice));
+        Integer[] order = new Integer[speeds.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // stable, so equal devices keep their order
+        Arrays.sort(order, (x, y) -> Double.compare(speeds[y], speeds[x]));
+
+        int[] devices = new int[used];
+        for(int i = 0; i < used; i++) {
+            devices[i] = order[i];
+        }
+        Arrays.sort(devices);
+        return devices;
+    }
+
+    // Block boundaries proportional to the speeds of devices, block i is
+    // [bounds[i], bounds[i + 1]). Every block gets at least minItemsPerDevice items, or an
+    // equal share when count is too small for that; devices whose share by speed falls
+    // below the minimum get exactly the minimum and the others share the rest by speed.
+    static int[] partition(double[] speeds, int count, int[] devices, int minItemsPerDevice) {
+        int minimum = Math.min(minItemsPerDevice, count / devices.length);
+        boolean[] atMinimum = new boolean[devices.length];
+        int rest;
+        double total;
+        boolean changed;
+        do {
+            rest = count;
+            total = 0;
+            for(int i = 0; i < devices.length; i++) {
+                if(atMinimum[i]) {
+                    rest -= minimum;
+                }
+                else {
+                    total += speeds[devices[i]];
+                }
+            }
+            changed = false;
+            for(int i = 0; i < devices.length; i++) {
+                if(!atMinimum[i] && rest * speeds[devices[i]] / total < minimum) {
+                    atMinimum[i] = true;
+                    changed = true;
+                }
+            }
+        } while(changed);
+
+        int[] sizes = new int[devices.length];
+        double cumulative = 0;
+        int assigned = 0;
+        for(int i = 0; i < devices.length; i++) {
+            if(atMinimum[i]) {
+                sizes[i] = minimum;
+                continue;
+            }
+            cumulative += speeds[devices[i]];
+            int end = (int) Math.round(rest * cumulative / total);
+            sizes[i] = end - assigned;
+            assigned = end;
+        }
+        // rounding may leave a block one short of the minimum, the largest block gives it up
+        for(int i = 0; i < devices.length; i++) {
+            while(sizes[i] < minimum) {
+                int largest = 0;
+                for(int j = 1; j < devices.length; j++) {
+                    if(sizes[j] > sizes[largest]) {
+                        largest = j;
+                    }
+                }
+                sizes[largest]--;
+                sizes[i]++;
+            }
+        }
+
+        int[] bounds = new int[devices.length + 1];
+        for(int i = 0; i < devices.length; i++) {
+            bounds[i + 1] = bounds[i] + sizes[i];
+        }
+        return bounds;
+    }
+
+    // measured speeds, devices without a measurement yet count as the average device
+    private double[] effectiveSpeeds() {
+        double sum = 0;
+        int known = 0;
+        for(double speed : speeds) {
+            if(speed > 0) {
+                sum += speed;
+                known++;
+            }
+        }
+        double fallback = known == 0 ? 1 : sum / known;
+
+        double[] effective = new double[speeds.length];
+        for(int i = 0; i < speeds.length; i++) {
+            effective[i] = speeds[i] > 0 ? speeds[i] : fallback;
+        }
+        return effective;
+    }
+
+    private static cl_device_id[] getDevices(cl_platform_id platform) {
+        int numDevicesArray[] = new int[1];
+        try {
+            clGetDeviceIDs(platform, CL_DEVICE_TYPE_GPU, 0, null, numDevicesArray);
+        }
+        catch(CLException e) {
+            // CL_DEVICE_NOT_FOUND, a platform without GPUs
+            return new cl_device_id[0];
+        }
+        cl_device_id devices[] = new cl_device_id[numDevicesArray[0]];
+        clGetDeviceIDs(platform, CL_DEVICE_TYPE_GPU, devices.length, devices, null);
+        return devices;
+    }
+
+    // Waits for future without responding to interrupts, the task writes to memory of the
+    // caller. An interrupt is kept in the flag of the calling thread.
+    private static <T> T await(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                }
+                catch(InterruptedException e) {
+                    interrupted = true;
+                }
+                catch(ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if(cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+        finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
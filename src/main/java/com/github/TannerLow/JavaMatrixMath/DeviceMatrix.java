@@ -0,0 +1,1256 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_command_queue;
+import org.jocl.cl_event;
+import org.jocl.cl_kernel;
+import org.jocl.cl_mem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongConsumer;
+
+import static org.jocl.CL.CL_COMPLETE;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_KERNEL_FUNCTION_NAME;
+import static org.jocl.CL.CL_MAP_READ;
+import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_MEM_USE_HOST_PTR;
+import static org.jocl.CL.CL_PROFILING_COMMAND_END;
+import static org.jocl.CL.CL_PROFILING_COMMAND_START;
+import static org.jocl.CL.CL_TRUE;
+import static org.jocl.CL.clCreateBuffer;
+import static org.jocl.CL.clEnqueueMapBuffer;
+import static org.jocl.CL.clEnqueueNDRangeKernel;
+import static org.jocl.CL.clEnqueueReadBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
+import static org.jocl.CL.clEnqueueWriteBuffer;
+import static org.jocl.CL.clFlush;
+import static org.jocl.CL.clGetEventProfilingInfo;
+import static org.jocl.CL.clGetKernelInfo;
+import static org.jocl.CL.clReleaseEvent;
+import static org.jocl.CL.clReleaseMemObject;
+import static org.jocl.CL.clRetainEvent;
+import static org.jocl.CL.clSetEventCallback;
+import static org.jocl.CL.clSetKernelArg;
+import static org.jocl.CL.clWaitForEvents;
+
+// A matrix that lives in device memory. Operations on device matrices enqueue kernels that
+// read and write device buffers only, so a chain like x.multiply(w).addRowToRows(b).relu()
+// transfers nothing until toMatrix() copies the final result back to the host.
+// Every DeviceMatrix borrows its buffer from the GPU's BufferPool and must be closed
+// to give it back, except for wrapped DirectMatrix memory which gets its own buffer.
+// Each device matrix remembers the event of the last command that wrote its buffer and the
+// events of the commands reading it since. Every command waits for the write of its
+// operands, and a command writing a matrix also for its readers, so chains stay correct on
+// an out-of-order queue. close() waits for all of them before the buffer goes back to the
+// pool. Commands go to the calling thread's queue of the GPU. When a matrix is handed to
+// another thread, the queues of its pending commands are flushed before anything waits on
+// them there. A matrix that is only read may be an operand on several threads at once.
+public class DeviceMatrix implements Closeable {
+    // must match WORK_PER_ITEM in Matrices.cl
+    private static final int MULTIPLY_WORK_PER_ITEM = 4;
+    private static final int MAX_MULTIPLY_TILE_SIZE = 32;
+    // upper bound for the work-groups of the element-wise and softmax kernels
+    private static final int MAX_GROUP_SIZE = 256;
+    // columns handled together by one verticalSoftmax work-group
+    private static final int VERTICAL_SOFTMAX_GROUP_COLS = 16;
+    private static final String FUSED_KERNEL_FILE = "kernels/Fused.cl";
+    private static final String MATRICES_KERNEL_FILE = "kernels/Matrices.cl";
+    private static final String SPARSE_KERNEL_FILE = "kernels/Sparse.cl";
+    private static final String BATCHED_KERNEL_FILE = "kernels/Batched.cl";
+    private static final String HALF_KERNEL_FILE = "kernels/Half.cl";
+    private static final String QUANTIZED_KERNEL_FILE = "kernels/Quantized.cl";
+    // format code of float operands in kernels/Half.cl, see HalfMatrix.Format
+    private static final int FLOAT_FORMAT = 0;
+
+    private static String fusedKernelTemplate;
+
+    public final int rows;
+    public final int cols;
+
+    private final GPU gpu;
+    private final long bytes;
+    private cl_mem memory;
+    // last command writing memory, null when nothing is pending
+    private cl_event event;
+    // queue the last command was enqueued on
+    private cl_command_queue eventQueue;
+    // commands reading memory since the last write, possibly from several threads, guarded
+    // by the list. Each holds a reference to its event that is released once.
+    private final List<Access> readers = new ArrayList<>();
+    // host memory of a non-blocking upload, kept reachable until the transfer is done
+    private FloatBuffer staging;
+    // the direct matrix whose memory backs this buffer, null for pooled buffers
+    private final DirectMatrix host;
+
+    private DeviceMatrix(GPU gpu, int rows, int cols) {
+        this.gpu = gpu;
+        this.rows = rows;
+        this.cols = cols;
+        this.bytes = (long) Sizeof.cl_float * rows * cols;
+        this.memory = gpu.getBufferPool().acquire(bytes);
+        this.host = null;
+    }
+
+    private DeviceMatrix(GPU gpu, DirectMatrix host) {
+        this.gpu = gpu;
+        this.rows = host.rows;
+        this.cols = host.cols;
+        this.bytes = host.bytes();
+        this.memory = clCreateBuffer(gpu.getContext(), CL_MEM_READ_WRITE | CL_MEM_USE_HOST_PTR,
+                bytes, Pointer.to(host.buffer()), null);
+        this.host = host;
+        host.addDeviceUser();
+    }
+
+    // Allocates an uninitialized rows x cols matrix on the device.
+    public static DeviceMatrix allocate(GPU gpu, int rows, int cols) {
+        requireInitialized(gpu);
+        return new DeviceMatrix(gpu, rows, cols);
+    }
+
+    // Copies a host matrix to the device.
+    public static DeviceMatrix upload(GPU gpu, Matrix matrix) {
+        return upload(gpu, matrix.data, 0, matrix.rows, matrix.cols);
+    }
+
+    // Copies the rows x cols matrix stored in data from offset on to the device, a block of
+    // rows of a larger matrix for example.
+    static DeviceMatrix upload(GPU gpu, float[] data, int offset, int rows, int cols) {
+        requireInitialized(gpu);
+
+        // pooled buffers are not initialized, so the data is written explicitly
+        DeviceMatrix result = new DeviceMatrix(gpu, rows, cols);
+        if(result.bytes > 0) {
+            cl_event writeEvent = profiledEvent(gpu);
+            clEnqueueWriteBuffer(gpu.getCommandQueue(), result.memory, CL_TRUE, 0,
+                    result.bytes, Pointer.to(data).withByteOffset((long) Sizeof.cl_float * offset), 0, null, writeEvent);
+            finishTransfer(Metrics.Transfer.HOST_TO_DEVICE, result.bytes, writeEvent);
+        }
+
+        return result;
+    }
+
+    // Copies a direct matrix to the device. JOCL reads the off-heap data in place, without
+    // pinning or copying a Java array first.
+    public static DeviceMatrix upload(GPU gpu, DirectMatrix matrix) {
+        requireInitialized(gpu);
+
+        DeviceMatrix result = new DeviceMatrix(gpu, matrix.rows, matrix.cols);
+        if(result.bytes > 0) {
+            cl_event writeEvent = profiledEvent(gpu);
+            clEnqueueWriteBuffer(gpu.getCommandQueue(), result.memory, CL_TRUE, 0,
+                    result.bytes, Pointer.to(matrix.buffer()), 0, null, writeEvent);
+            finishTransfer(Metrics.Transfer.HOST_TO_DEVICE, result.bytes, writeEvent);
+        }
+
+        return result;
+    }
+
+    // Uses the memory of a direct matrix as the device buffer (CL_MEM_USE_HOST_PTR). On
+    // devices sharing memory with the host, integrated GPUs for example, nothing is copied
+    // in either direction; other devices cache the data and copy it when needed.
+    // While the device matrix is open the host memory belongs to the device: read results
+    // with toMatrix(matrix), which synchronizes the memory in place, and close the device
+    // matrix before the direct matrix.
+    public static DeviceMatrix wrap(GPU gpu, DirectMatrix matrix) {
+        requireInitialized(gpu);
+        if(matrix.rows == 0 || matrix.cols == 0) {
+            throw new IllegalArgumentException("Cannot wrap an empty matrix.");
+        }
+
+        return new DeviceMatrix(gpu, matrix);
+    }
+
+    // Copies a host matrix to the device without waiting for the transfer. The data is
+    // staged in direct memory first, so matrix may be modified as soon as this returns.
+    public static DeviceMatrix uploadAsync(GPU gpu, Matrix matrix) {
+        requireInitialized(gpu);
+
+        DeviceMatrix result = new DeviceMatrix(gpu, matrix.rows, matrix.cols);
+        if(result.bytes > 0) {
+            result.staging = allocateStaging(result.bytes);
+            result.staging.put(matrix.data).rewind();
+
+            cl_event writeEvent = new cl_event();
+            clEnqueueWriteBuffer(gpu.getCommandQueue(), result.memory, CL_FALSE, 0,
+                    result.bytes, Pointer.to(result.staging), 0, null, writeEvent);
+            reportTransfer(gpu, Metrics.Transfer.HOST_TO_DEVICE, result.bytes, writeEvent);
+            result.setEvent(writeEvent);
+        }
+
+        return result;
+    }
+
+    // Copies the matrix back to the host, waiting for all pending operations on it.
+    public Matrix toMatrix() {
+        Matrix result = new Matrix(rows, cols);
+        toMatrix(result);
+        return result;
+    }
+
+    // Copies the matrix back into out, which must have the same shape.
+    public void toMatrix(Matrix out) {
+        requireOpen();
+        if(out.rows != rows || out.cols != cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {out.rows, out.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        toArray(out.data, 0);
+    }
+
+    // Copies the matrix back into data from offset on, a block of rows of a larger matrix
+    // for example.
+    void toArray(float[] data, int offset) {
+        requireOpen();
+
+        if(bytes > 0) {
+            cl_event[] waitList = waitList(this);
+            cl_event readEvent = profiledEvent(gpu);
+            clEnqueueReadBuffer(gpu.getCommandQueue(), memory, CL_TRUE, 0, bytes,
+                    Pointer.to(data).withByteOffset((long) Sizeof.cl_float * offset),
+                    waitList.length, waitList.length == 0 ? null : waitList, readEvent);
+            finishTransfer(Metrics.Transfer.DEVICE_TO_HOST, bytes, readEvent);
+        }
+    }
+
+    // Copies the matrix back into a direct matrix of the same shape. If out is the memory
+    // this matrix wraps, the buffer is mapped and unmapped instead, which makes the host
+    // memory up to date without a copy where the device allows it.
+    public void toMatrix(DirectMatrix out) {
+        requireOpen();
+        if(out.rows != rows || out.cols != cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {out.rows, out.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        if(bytes == 0) {
+            return;
+        }
+
+        cl_event[] waitList = waitList(this);
+        if(out == host) {
+            ByteBuffer mapped = clEnqueueMapBuffer(gpu.getCommandQueue(), memory, true, CL_MAP_READ, 0,
+                    bytes, waitList.length, waitList.length == 0 ? null : waitList, null, null);
+            cl_event unmapEvent = new cl_event();
+            clEnqueueUnmapMemObject(gpu.getCommandQueue(), memory, mapped, 0, null, unmapEvent);
+            clWaitForEvents(1, new cl_event[]{unmapEvent});
+            clReleaseEvent(unmapEvent);
+        }
+        else {
+            cl_event readEvent = profiledEvent(gpu);
+            clEnqueueReadBuffer(gpu.getCommandQueue(), memory, CL_TRUE, 0,
+                    bytes, Pointer.to(out.buffer()), waitList.length, waitList.length == 0 ? null : waitList, readEvent);
+            finishTransfer(Metrics.Transfer.DEVICE_TO_HOST, bytes, readEvent);
+        }
+    }
+
+    // Enqueues a non-blocking copy back to the host. The future is completed on the GPU's
+    // completion executor once every operation this matrix depends on has finished.
+    public CompletableFuture<Matrix> toMatrixAsync() {
+        requireOpen();
+
+        CompletableFuture<Matrix> future = new CompletableFuture<>();
+        Matrix result = new Matrix(rows, cols);
+
+        if(bytes == 0) {
+            future.complete(result);
+            return future;
+        }
+
+        // Java arrays may move during a non-blocking transfer, so read into direct memory
+        FloatBuffer hostBuffer = allocateStaging(bytes);
+        cl_event[] waitList = waitList(this);
+        cl_event readEvent = new cl_event();
+        clEnqueueReadBuffer(gpu.getCommandQueue(), memory, CL_FALSE, 0,
+                bytes, Pointer.to(hostBuffer), waitList.length, waitList.length == 0 ? null : waitList, readEvent);
+        reportTransfer(gpu, Metrics.Transfer.DEVICE_TO_HOST, bytes, readEvent);
+        addReader(readEvent);
+
+        // the callback runs on a driver thread that must not block, hand the work off
+        Executor executor = gpu.getCompletionExecutor();
+        clRetainEvent(readEvent);
+        clSetEventCallback(readEvent, CL_COMPLETE, (callbackEvent, status, userData) -> {
+            try {
+                executor.execute(() -> {
+                    clReleaseEvent(readEvent);
+                    if(status < 0) {
+                        future.completeExceptionally(new CLException(
+                                "Reading DeviceMatrix failed: " + CL.stringFor_errorCode(status), status));
+                        return;
+                    }
+                    hostBuffer.get(result.data);
+                    future.complete(result);
+                });
+            }
+            catch(RejectedExecutionException e) {
+                // a shut down executor, the result cannot be handed off so the future fails
+                clReleaseEvent(readEvent);
+                future.completeExceptionally(e);
+            }
+        }, null);
+
+        // make sure the queued commands get submitted to the device
+        clFlush(gpu.getCommandQueue());
+
+        return future;
+    }
+
+    public GPU getGpu() {
+        return gpu;
+    }
+
+    public cl_mem getMemory() {
+        requireOpen();
+        return memory;
+    }
+
+    public boolean isClosed() {
+        return memory == null;
+    }
+
+    public DeviceMatrix multiply(DeviceMatrix other) {
+        requireCompatible(other);
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchMultiply(getKernel("Matrices::matrixMultiply"), other);
+    }
+
+    // this^T * other, without transposing this. Needs Matrices::stridedMatrixMultiply.
+    public DeviceMatrix transposeMultiply(DeviceMatrix other) {
+        requireCompatible(other);
+        if(rows != other.rows) {
+            final int[] dimensionsA = {cols, rows};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchStridedMultiply(this, cols, rows, 0, 1, cols, other, other.cols, 0, other.cols, 1);
+    }
+
+    // this * other^T, without transposing other. Needs Matrices::stridedMatrixMultiply.
+    public DeviceMatrix multiplyTransposed(DeviceMatrix other) {
+        requireCompatible(other);
+        if(cols != other.cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.cols, other.rows};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchStridedMultiply(this, rows, cols, 0, cols, 1, other, other.rows, 0, 1, other.cols);
+    }
+
+    // a * b for views of the matrices held by deviceA and deviceB
+    static DeviceMatrix multiply(MatrixView a, DeviceMatrix deviceA, MatrixView b, DeviceMatrix deviceB) {
+        deviceA.requireCompatible(deviceB);
+        if(a.cols != b.rows) {
+            final int[] dimensionsA = {a.rows, a.cols};
+            final int[] dimensionsB = {b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchStridedMultiply(deviceA, a.rows, a.cols, a.offset, a.rowStride, a.colStride,
+                deviceB, b.cols, b.offset, b.rowStride, b.colStride);
+    }
+
+    // Multiplication with an element-wise chain applied to the product in the same kernel.
+    // operands holds the device copies of epilogue.getOperands().
+    DeviceMatrix multiply(DeviceMatrix other, FusedEpilogue epilogue, List<DeviceMatrix> operands) {
+        requireCompatible(other);
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchMultiply(getFusedKernel(epilogue, "fusedMatrixMultiply"), other,
+                operands.toArray(new DeviceMatrix[0]));
+    }
+
+    // Applies an element-wise chain in a single kernel.
+    DeviceMatrix apply(FusedEpilogue epilogue, List<DeviceMatrix> operands) {
+        requireOpen();
+
+        cl_kernel kernel = getFusedKernel(epilogue, "fusedElementwise");
+        DeviceMatrix result = allocate(gpu, rows, cols);
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{rows}));
+        DeviceMatrix[] inputs = new DeviceMatrix[operands.size() + 1];
+        inputs[0] = this;
+        for(int i = 0; i < operands.size(); i++) {
+            DeviceMatrix operand = operands.get(i);
+            requireCompatible(operand);
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(operand.memory));
+            inputs[i + 1] = operand;
+        }
+
+        // Execute the kernel
+        enqueueKernel(kernel, 2, elementwiseGlobalWorkSizes(), elementwiseLocalWorkSizes(), result, inputs);
+
+        return result;
+    }
+
+    // count products of aRows x sharedDimension matrices packed in a with
+    // sharedDimension x bCols matrices packed in b, in a single launch of
+    // Batched::batchedMatrixMultiply. A stride of 0 uses the first matrix in every product.
+    // The result holds the count products packed one after another, count * aRows x bCols.
+    static DeviceMatrix multiplyBatch(int count, int aRows, int sharedDimension, int bCols,
+                                      DeviceMatrix a, int aStride, DeviceMatrix b, int bStride) {
+        a.requireCompatible(b);
+
+        GPU gpu = a.gpu;
+        cl_kernel kernel = a.getLibraryKernel("Batched", "batchedMatrixMultiply", BATCHED_KERNEL_FILE);
+        DeviceMatrix result = allocate(gpu, count * aRows, bCols);
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(a.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(b.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{count}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aRows}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{sharedDimension}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bCols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aStride}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bStride}));
+
+        // Set the work-item dimensions: a whole small matrix per work-group where it fits,
+        // the rest of the group spread over neighbouring matrices of the batch
+        long groupCols = Math.min(a.groupSizeLimit(0), nextPowerOfTwo(bCols));
+        long groupRows = Math.min(Math.min(a.groupSizeLimit(1), a.groupSizeLimit() / groupCols),
+                nextPowerOfTwo(aRows));
+        long groupMatrices = Math.min(Math.min(a.groupSizeLimit(2), a.groupSizeLimit() / (groupCols * groupRows)),
+                nextPowerOfTwo(count));
+        long local_work_sizes[] = new long[]{groupCols, groupRows, groupMatrices};
+        long global_work_sizes[] = new long[]{
+                roundUp(bCols, groupCols),
+                roundUp(aRows, groupRows),
+                roundUp(count, groupMatrices)};
+
+        // Execute the kernel
+        result.enqueueKernel(kernel, 3, global_work_sizes, local_work_sizes, result, a, b);
+
+        return result;
+    }
+
+    // sparse * dense with sparse in row layout, the sparse arrays are uploaded for this call
+    static DeviceMatrix multiply(SparseMatrix sparse, DeviceMatrix dense) {
+        dense.requireOpen();
+        if(sparse.layout != SparseMatrix.Layout.ROW) {
+            throw new IllegalArgumentException("Sparse operand must be in row layout.");
+        }
+        if(sparse.cols != dense.rows) {
+            final int[] dimensionsA = {sparse.rows, sparse.cols};
+            final int[] dimensionsB = {dense.rows, dense.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        GPU gpu = dense.gpu;
+        cl_kernel kernel = dense.getLibraryKernel("Sparse", "csrMultiply", SPARSE_KERNEL_FILE);
+        BufferPool pool = gpu.getBufferPool();
+        long pointerBytes = (long) Sizeof.cl_int * sparse.pointers.length;
+        long indexBytes = (long) Sizeof.cl_int * sparse.nonZeros();
+        long valueBytes = (long) Sizeof.cl_float * sparse.nonZeros();
+        cl_mem pointers = pool.acquire(pointerBytes);
+        cl_mem indices = pool.acquire(indexBytes);
+        cl_mem values = pool.acquire(valueBytes);
+        DeviceMatrix result = null;
+        try {
+            clEnqueueWriteBuffer(gpu.getCommandQueue(), pointers, CL_TRUE, 0,
+                    pointerBytes, Pointer.to(sparse.pointers), 0, null, null);
+            if(sparse.nonZeros() > 0) {
+                clEnqueueWriteBuffer(gpu.getCommandQueue(), indices, CL_TRUE, 0,
+                        indexBytes, Pointer.to(sparse.indices), 0, null, null);
+                clEnqueueWriteBuffer(gpu.getCommandQueue(), values, CL_TRUE, 0,
+                        valueBytes, Pointer.to(sparse.values), 0, null, null);
+            }
+            Metrics.transfer(Metrics.Transfer.HOST_TO_DEVICE, pointerBytes + indexBytes + valueBytes, -1);
+
+            result = allocate(gpu, sparse.rows, dense.cols);
+
+            // Set the arguments for the kernel
+            int argNum = 0;
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(pointers));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(indices));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(values));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(dense.memory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{sparse.rows}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{dense.cols}));
+
+            // Execute the kernel, one work item per element of the result
+            result.enqueueKernel(kernel, 2, result.elementwiseGlobalWorkSizes(), result.elementwiseLocalWorkSizes(),
+                    result, dense);
+            // the sparse buffers go back to the pool below, so the kernel has to be done
+            result.await();
+
+            return result;
+        }
+        catch(RuntimeException e) {
+            // close waits for the kernel, if it was enqueued
+            if(result != null) {
+                result.close();
+            }
+            throw e;
+        }
+        finally {
+            pool.release(pointers, pointerBytes);
+            pool.release(indices, indexBytes);
+            pool.release(values, valueBytes);
+        }
+    }
+
+    // this * other with other stored in 16 bits, uploaded for this call
+    public DeviceMatrix multiply(HalfMatrix other) {
+        requireOpen();
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        return multiplyHalf(gpu, rows, cols, other.cols, this, null, null, other);
+    }
+
+    static DeviceMatrix multiply(HalfMatrix a, DeviceMatrix b) {
+        b.requireOpen();
+        if(a.cols != b.rows) {
+            final int[] dimensionsA = {a.rows, a.cols};
+            final int[] dimensionsB = {b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        return multiplyHalf(b.gpu, a.rows, a.cols, b.cols, null, a, b, null);
+    }
+
+    static DeviceMatrix multiply(GPU gpu, HalfMatrix a, HalfMatrix b) {
+        if(a.cols != b.rows) {
+            final int[] dimensionsA = {a.rows, a.cols};
+            final int[] dimensionsB = {b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        return multiplyHalf(gpu, a.rows, a.cols, b.cols, null, a, null, b);
+    }
+
+    // Half::halfMatrixMultiply with each operand either on the device (deviceA, deviceB)
+    // or in 16 bits (halfA, halfB), the 16-bit ones uploaded for this call
+    private static DeviceMatrix multiplyHalf(GPU gpu, int aRows, int sharedDimension, int bCols,
+                                             DeviceMatrix deviceA, HalfMatrix halfA,
+                                             DeviceMatrix deviceB, HalfMatrix halfB) {
+        requireInitialized(gpu);
+        if((deviceA != null && deviceA.gpu != gpu) || (deviceB != null && deviceB.gpu != gpu)) {
+            throw new IllegalArgumentException("DeviceMatrix operands belong to different GPUs.");
+        }
+
+        BufferPool pool = gpu.getBufferPool();
+        long aHalfBytes = halfA == null ? 0 : (long) Sizeof.cl_short * halfA.data.length;
+        long bHalfBytes = halfB == null ? 0 : (long) Sizeof.cl_short * halfB.data.length;
+        cl_mem aHalf = halfA == null ? null : uploadTemporary(gpu, Pointer.to(halfA.data), aHalfBytes);
+        cl_mem bHalf = null;
+        DeviceMatrix result = null;
+        try {
+            bHalf = halfB == null ? null : uploadTemporary(gpu, Pointer.to(halfB.data), bHalfBytes);
+            result = allocate(gpu, aRows, bCols);
+            cl_kernel kernel = result.getLibraryKernel("Half", "halfMatrixMultiply",
+                    HALF_KERNEL_FILE, MATRICES_KERNEL_FILE);
+
+            int tileSize = multiplyTileSize(gpu);
+            long tileBytes = (long) Sizeof.cl_float * tileSize * tileSize;
+
+            // Set the arguments for the kernel
+            int argNum = 0;
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(halfA == null ? deviceA.memory : aHalf));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(halfB == null ? deviceB.memory : bHalf));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aRows}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{sharedDimension}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bCols}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{halfA == null ? FLOAT_FORMAT : halfA.format.code}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{halfB == null ? FLOAT_FORMAT : halfB.format.code}));
+            clSetKernelArg(kernel, argNum++, tileBytes, null);
+            clSetKernelArg(kernel, argNum++, tileBytes, null);
+
+            // Set the work-item dimensions like launchMultiply
+            long local_work_sizes[] = new long[]{tileSize, tileSize / MULTIPLY_WORK_PER_ITEM};
+            long global_work_sizes[] = new long[]{
+                    roundUp(bCols, tileSize),
+                    roundUp(aRows, tileSize) / MULTIPLY_WORK_PER_ITEM};
+
+            // Execute the kernel
+            DeviceMatrix[] inputs = deviceA != null ? new DeviceMatrix[]{deviceA} :
+                    deviceB != null ? new DeviceMatrix[]{deviceB} : new DeviceMatrix[0];
+            result.enqueueKernel(kernel, 2, global_work_sizes, local_work_sizes, result, inputs);
+            // the 16-bit buffers go back to the pool below, so the kernel has to be done
+            result.await();
+
+            return result;
+        }
+        catch(RuntimeException e) {
+            // close waits for the kernel, if it was enqueued
+            if(result != null) {
+                result.close();
+            }
+            throw e;
+        }
+        finally {
+            if(aHalf != null) {
+                pool.release(aHalf, aHalfBytes);
+            }
+            if(bHalf != null) {
+                pool.release(bHalf, bHalfBytes);
+            }
+        }
+    }
+
+    // a * b + bias with a quantized per row and b per column, see QuantizedMatrix. The
+    // operands, their scales, zero points and channel sums and the bias (may be null) are
+    // uploaded for this call.
+    static DeviceMatrix multiply(GPU gpu, QuantizedMatrix a, QuantizedMatrix b, int[] aSums, int[] bSums, Matrix bias) {
+        requireInitialized(gpu);
+
+        // the per channel values are packed into one float and one int buffer, laid out as
+        // Quantized::quantizedMatrixMultiply expects
+        float[] scales = new float[a.rows + b.cols + (bias == null ? 0 : b.cols)];
+        System.arraycopy(a.scales, 0, scales, 0, a.rows);
+        System.arraycopy(b.scales, 0, scales, a.rows, b.cols);
+        if(bias != null) {
+            System.arraycopy(bias.data, 0, scales, a.rows + b.cols, b.cols);
+        }
+        int[] channels = new int[2 * (a.rows + b.cols)];
+        System.arraycopy(a.zeroPoints, 0, channels, 0, a.rows);
+        System.arraycopy(b.zeroPoints, 0, channels, a.rows, b.cols);
+        System.arraycopy(aSums, 0, channels, a.rows + b.cols, a.rows);
+        System.arraycopy(bSums, 0, channels, 2 * a.rows + b.cols, b.cols);
+
+        BufferPool pool = gpu.getBufferPool();
+        long aBytes = a.data.length;
+        long bBytes = b.data.length;
+        long scaleBytes = (long) Sizeof.cl_float * scales.length;
+        long channelBytes = (long) Sizeof.cl_int * channels.length;
+        cl_mem aMemory = uploadTemporary(gpu, Pointer.to(a.data), aBytes);
+        cl_mem bMemory = null;
+        cl_mem scaleMemory = null;
+        cl_mem channelMemory = null;
+        DeviceMatrix result = null;
+        try {
+            bMemory = uploadTemporary(gpu, Pointer.to(b.data), bBytes);
+            scaleMemory = uploadTemporary(gpu, Pointer.to(scales), scaleBytes);
+            channelMemory = uploadTemporary(gpu, Pointer.to(channels), channelBytes);
+            result = allocate(gpu, a.rows, b.cols);
+            cl_kernel kernel = result.getLibraryKernel("Quantized", "quantizedMatrixMultiply", QUANTIZED_KERNEL_FILE);
+
+            int tileSize = multiplyTileSize(gpu);
+            long tileBytes = (long) Sizeof.cl_int * tileSize * tileSize;
+
+            // Set the arguments for the kernel
+            int argNum = 0;
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(aMemory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(bMemory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(scaleMemory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(channelMemory));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{a.rows}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{a.cols}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{b.cols}));
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bias == null ? 0 : 1}));
+            clSetKernelArg(kernel, argNum++, tileBytes, null);
+            clSetKernelArg(kernel, argNum++, tileBytes, null);
+
+            // Set the work-item dimensions like launchMultiply
+            long local_work_sizes[] = new long[]{tileSize, tileSize / MULTIPLY_WORK_PER_ITEM};
+            long global_work_sizes[] = new long[]{
+                    roundUp(b.cols, tileSize),
+                    roundUp(a.rows, tileSize) / MULTIPLY_WORK_PER_ITEM};
+
+            // Execute the kernel
+            result.enqueueKernel(kernel, 2, global_work_sizes, local_work_sizes, result);
+            // the uploaded buffers go back to the pool below, so the kernel has to be done
+            result.await();
+
+            return result;
+        }
+        catch(RuntimeException e) {
+            // close waits for the kernel, if it was enqueued
+            if(result != null) {
+                result.close();
+            }
+            throw e;
+        }
+        finally {
+            pool.release(aMemory, aBytes);
+            if(bMemory != null) {
+                pool.release(bMemory, bBytes);
+            }
+            if(scaleMemory != null) {
+                pool.release(scaleMemory, scaleBytes);
+            }
+            if(channelMemory != null) {
+                pool.release(channelMemory, channelBytes);
+            }
+        }
+    }
+
+    // a pooled buffer holding bytes of data, to be released to the pool after the call
+    private static cl_mem uploadTemporary(GPU gpu, Pointer data, long bytes) {
+        cl_mem memory = gpu.getBufferPool().acquire(bytes);
+        if(bytes > 0) {
+            cl_event writeEvent = profiledEvent(gpu);
+            clEnqueueWriteBuffer(gpu.getCommandQueue(), memory, CL_TRUE, 0,
+                    bytes, data, 0, null, writeEvent);
+            finishTransfer(Metrics.Transfer.HOST_TO_DEVICE, bytes, writeEvent);
+        }
+        return memory;
+    }
+
+    public DeviceMatrix addRowToRows(DeviceMatrix row) {
+        requireCompatible(row);
+        if(cols != row.cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {row.rows, row.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchBroadcastKernel("Matrices::addRowToRows", row);
+    }
+
+    public DeviceMatrix addColToCols(DeviceMatrix col) {
+        requireCompatible(col);
+        if(rows != col.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {col.rows, col.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return launchBroadcastKernel("Matrices::addColToCols", col);
+    }
+
+    public DeviceMatrix relu() {
+        requireOpen();
+
+        cl_kernel kernel = getKernel("Matrices::relu");
+        DeviceMatrix result = allocate(gpu, rows, cols);
+        int size = rows * cols;
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{size}));
+
+        // Set the work-item dimensions, one work item per element
+        long localSize = Math.min(groupSizeLimit(0), nextPowerOfTwo(size));
+        long local_work_sizes[] = new long[]{localSize};
+        long global_work_sizes[] = new long[]{roundUp(size, localSize)};
+
+        // Execute the kernel
+        enqueueKernel(kernel, 1, global_work_sizes, local_work_sizes, result, this);
+
+        return result;
+    }
+
+    public DeviceMatrix horizontalSoftmax() {
+        requireOpen();
+
+        // work items of a group share rows: as many as a row needs, the rest take more rows
+        long groupCols = Math.min(groupSizeLimit(0), nextPowerOfTwo(cols));
+        long groupRows = Math.min(Math.min(groupSizeLimit(1), groupSizeLimit() / groupCols), nextPowerOfTwo(rows));
+
+        return launchSoftmaxKernel("Matrices::horizontalSoftmax",
+                new long[]{groupCols, groupRows},
+                new long[]{groupCols, roundUp(rows, groupRows)});
+    }
+
+    public DeviceMatrix verticalSoftmax() {
+        requireOpen();
+
+        // neighbouring columns share a group for coalesced reads, the rest of the group
+        // splits up the rows of those columns
+        long groupCols = Math.min(Math.min(groupSizeLimit(0), VERTICAL_SOFTMAX_GROUP_COLS), nextPowerOfTwo(cols));
+        long groupRows = Math.min(Math.min(groupSizeLimit(1), groupSizeLimit() / groupCols), nextPowerOfTwo(rows));
+
+        return launchSoftmaxKernel("Matrices::verticalSoftmax",
+                new long[]{groupCols, groupRows},
+                new long[]{roundUp(cols, groupCols), groupRows});
+    }
+
+    // Blocks until every command enqueued so far that touches this matrix has finished.
+    public void await() {
+        requireOpen();
+        cl_event[] pending = accessList(true);
+        if(pending.length > 0) {
+            clWaitForEvents(pending.length, pending);
+        }
+    }
+
+    @Override
+    public void close() {
+        if(memory != null) {
+            // a pooled buffer may be handed out again right away, so nothing may still use it
+            cl_event[] pending = accessList(gpu.isInitialized());
+            if(pending.length > 0) {
+                clWaitForEvents(pending.length, pending);
+            }
+            setEvent(null);
+            staging = null;
+            if(host != null) {
+                clReleaseMemObject(memory);
+                host.removeDeviceUser();
+            }
+            else {
+                gpu.getBufferPool().release(memory, bytes);
+            }
+            memory = null;
+        }
+    }
+
+    // Enqueues a kernel writing result after the writes of all operands and every pending
+    // command on result, then records it as the last write of result and a reader of the
+    // other operands.
+    private void enqueueKernel(cl_kernel kernel, int dimensions, long[] globalWorkSizes, long[] localWorkSizes,
+                               DeviceMatrix result, DeviceMatrix... inputs) {
+        List<cl_event> waits = new ArrayList<>(Arrays.asList(result.accessList(true)));
+        for(DeviceMatrix input : inputs) {
+            if(input != result && input.event != null) {
+                input.flushEventQueue();
+                waits.add(input.event);
+            }
+        }
+        cl_event[] waitList = waits.toArray(new cl_event[0]);
+        cl_event kernelEvent = new cl_event();
+        clEnqueueNDRangeKernel(gpu.getCommandQueue(), kernel, dimensions, null,
+                globalWorkSizes, localWorkSizes, waitList.length, waitList.length == 0 ? null : waitList, kernelEvent);
+        if(Metrics.isEnabled() && gpu.isQueueProfiling()) {
+            String kernelName = kernelName(kernel);
+            whenComplete(kernelEvent, deviceNanos -> Metrics.kernel(kernelName, deviceNanos));
+        }
+
+        for(DeviceMatrix input : inputs) {
+            if(input != result) {
+                clRetainEvent(kernelEvent);
+                input.addReader(kernelEvent);
+            }
+        }
+        result.setEvent(kernelEvent);
+    }
+
+    // Takes over the caller's reference to newEvent, a write enqueued on this thread's queue
+    // after every pending command, or null after waiting for them. The previous write and
+    // readers are released.
+    private void setEvent(cl_event newEvent) {
+        if(event != null) {
+            clReleaseEvent(event);
+        }
+        event = newEvent;
+        eventQueue = newEvent == null ? null : gpu.getCommandQueue();
+        synchronized(readers) {
+            for(Access reader : readers) {
+                clReleaseEvent(reader.event);
+            }
+            readers.clear();
+        }
+    }
+
+    // takes over the caller's reference to readEvent, enqueued on this thread's queue
+    private void addReader(cl_event readEvent) {
+        Access reader = new Access(readEvent, gpu.getCommandQueue());
+        synchronized(readers) {
+            readers.add(reader);
+        }
+    }
+
+    // The last write and the readers since, with their queues flushed if flush is set.
+    private cl_event[] accessList(boolean flush) {
+        List<cl_event> events = new ArrayList<>();
+        if(event != null) {
+            if(flush) {
+                flushEventQueue();
+            }
+            events.add(event);
+        }
+        synchronized(readers) {
+            for(Access reader : readers) {
+                if(flush && reader.queue != gpu.getExistingCommandQueue()) {
+                    clFlush(reader.queue);
+                }
+                events.add(reader.event);
+            }
+        }
+        return events.toArray(new cl_event[0]);
+    }
+
+    // A command on another thread's queue may not have been submitted yet, and waiting for
+    // it from this thread would then never return.
+    private void flushEventQueue() {
+        if(eventQueue != gpu.getExistingCommandQueue()) {
+            clFlush(eventQueue);
+        }
+    }
+
+    private static cl_event[] waitList(DeviceMatrix... matrices) {
+        int count = 0;
+        cl_event[] events = new cl_event[matrices.length];
+        for(DeviceMatrix matrix : matrices) {
+            if(matrix.event != null) {
+                matrix.flushEventQueue();
+                events[count++] = matrix.event;
+            }
+        }
+        return count == events.length ? events : Arrays.copyOf(events, count);
+    }
+
+    // A new event for a command to be profiled, null when nothing is measured.
+    private static cl_event profiledEvent(GPU gpu) {
+        return Metrics.isEnabled() && gpu.isQueueProfiling() ? new cl_event() : null;
+    }
+
+    // Reports a finished blocking transfer and releases its event, which may be null.
+    private static void finishTransfer(Metrics.Transfer direction, long bytes, cl_event event) {
+        if(event == null) {
+            Metrics.transfer(direction, bytes, -1);
+            return;
+        }
+        whenComplete(event, deviceNanos -> Metrics.transfer(direction, bytes, deviceNanos));
+        clReleaseEvent(event);
+    }
+
+    // Reports a transfer, with its device time once it has finished on a profiled queue.
+    private static void reportTransfer(GPU gpu, Metrics.Transfer direction, long bytes, cl_event event) {
+        if(!Metrics.isEnabled()) {
+            return;
+        }
+        if(!gpu.isQueueProfiling()) {
+            Metrics.transfer(direction, bytes, -1);
+            return;
+        }
+        whenComplete(event, deviceNanos -> Metrics.transfer(direction, bytes, deviceNanos));
+    }
+
+    // Passes the device time of the command to report once it has completed, on a driver
+    // thread. The queue must have been created with profiling.
+    private static void whenComplete(cl_event event, LongConsumer report) {
+        clRetainEvent(event);
+        clSetEventCallback(event, CL_COMPLETE, (callbackEvent, status, userData) -> {
+            try {
+                if(status == CL_COMPLETE) {
+                    long[] start = new long[1];
+                    long[] end = new long[1];
+                    clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_START, Sizeof.cl_ulong, Pointer.to(start), null);
+                    clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_END, Sizeof.cl_ulong, Pointer.to(end), null);
+                    report.accept(end[0] - start[0]);
+                }
+            }
+            finally {
+                clReleaseEvent(event);
+            }
+        }, null);
+    }
+
+    private static String kernelName(cl_kernel kernel) {
+        long[] size = new long[1];
+        clGetKernelInfo(kernel, CL_KERNEL_FUNCTION_NAME, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetKernelInfo(kernel, CL_KERNEL_FUNCTION_NAME, buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, buffer.length - 1, StandardCharsets.US_ASCII);
+    }
+
+    private static FloatBuffer allocateStaging(long bytes) {
+        return ByteBuffer.allocateDirect(Math.toIntExact(bytes)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    // kernel(C, A, B, aRows, sharedDimension, bCols, tileA, tileB, operands...)
+    private DeviceMatrix launchMultiply(cl_kernel kernel, DeviceMatrix other, DeviceMatrix... operands) {
+        DeviceMatrix result = allocate(gpu, rows, other.cols);
+
+        int tileSize = multiplyTileSize(gpu);
+        long tileBytes = (long) Sizeof.cl_float * tileSize * tileSize;
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(other.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{rows}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{other.cols}));
+        clSetKernelArg(kernel, argNum++, tileBytes, null);
+        clSetKernelArg(kernel, argNum++, tileBytes, null);
+        DeviceMatrix[] inputs = new DeviceMatrix[operands.length + 2];
+        inputs[0] = this;
+        inputs[1] = other;
+        for(int i = 0; i < operands.length; i++) {
+            requireCompatible(operands[i]);
+            clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(operands[i].memory));
+            inputs[i + 2] = operands[i];
+        }
+
+        // Set the work-item dimensions, dimension 0 runs along the columns of C
+        long local_work_sizes[] = new long[]{tileSize, tileSize / MULTIPLY_WORK_PER_ITEM};
+        long global_work_sizes[] = new long[]{
+                roundUp(other.cols, tileSize),
+                roundUp(rows, tileSize) / MULTIPLY_WORK_PER_ITEM};
+
+        // Execute the kernel
+        enqueueKernel(kernel, 2, global_work_sizes, local_work_sizes, result, inputs);
+
+        return result;
+    }
+
+    // Matrices::stridedMatrixMultiply over an aRows x sharedDimension view of a and a
+    // sharedDimension x bCols view of b, launched like matrixMultiply
+    private static DeviceMatrix launchStridedMultiply(DeviceMatrix a, int aRows, int sharedDimension,
+                                                      int aOffset, int aRowStride, int aColStride,
+                                                      DeviceMatrix b, int bCols,
+                                                      int bOffset, int bRowStride, int bColStride) {
+        GPU gpu = a.gpu;
+        cl_kernel kernel = a.getKernel("Matrices::stridedMatrixMultiply");
+        DeviceMatrix result = allocate(gpu, aRows, bCols);
+
+        int tileSize = multiplyTileSize(gpu);
+        long tileBytes = (long) Sizeof.cl_float * tileSize * tileSize;
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(a.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(b.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aRows}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{sharedDimension}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bCols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aOffset}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aRowStride}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{aColStride}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bOffset}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bRowStride}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{bColStride}));
+        clSetKernelArg(kernel, argNum++, tileBytes, null);
+        clSetKernelArg(kernel, argNum++, tileBytes, null);
+
+        // Set the work-item dimensions, dimension 0 runs along the columns of C
+        long local_work_sizes[] = new long[]{tileSize, tileSize / MULTIPLY_WORK_PER_ITEM};
+        long global_work_sizes[] = new long[]{
+                roundUp(bCols, tileSize),
+                roundUp(aRows, tileSize) / MULTIPLY_WORK_PER_ITEM};
+
+        // Execute the kernel
+        result.enqueueKernel(kernel, 2, global_work_sizes, local_work_sizes, result, a, b);
+
+        return result;
+    }
+
+    // kernel(C, A, B, rowSize, colSize), one work item per element of A
+    private DeviceMatrix launchBroadcastKernel(String scopedKernelName, DeviceMatrix other) {
+        cl_kernel kernel = getKernel(scopedKernelName);
+        DeviceMatrix result = allocate(gpu, rows, cols);
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(other.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{rows}));
+
+        // Execute the kernel
+        enqueueKernel(kernel, 2, elementwiseGlobalWorkSizes(), elementwiseLocalWorkSizes(), result, this, other);
+
+        return result;
+    }
+
+    // kernel(output, input, rowSize, colSize, scratch) with one float of scratch per work item
+    private DeviceMatrix launchSoftmaxKernel(String scopedKernelName, long[] localWorkSizes, long[] globalWorkSizes) {
+        cl_kernel kernel = getKernel(scopedKernelName);
+        DeviceMatrix result = allocate(gpu, rows, cols);
+
+        // Set the arguments for the kernel
+        int argNum = 0;
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(result.memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memory));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{rows}));
+        clSetKernelArg(kernel, argNum++, Sizeof.cl_float * localWorkSizes[0] * localWorkSizes[1], null);
+
+        // Execute the kernel
+        enqueueKernel(kernel, 2, globalWorkSizes, localWorkSizes, result, this);
+
+        return result;
+    }
+
+    // 2D work-groups for one work item per element, rows of the group along dimension 0
+    // for coalescing
+    private long[] elementwiseLocalWorkSizes() {
+        long groupCols = Math.min(groupSizeLimit(0), nextPowerOfTwo(cols));
+        long groupRows = Math.min(Math.min(groupSizeLimit(1), groupSizeLimit() / groupCols), nextPowerOfTwo(rows));
+        return new long[]{groupCols, groupRows};
+    }
+
+    private long[] elementwiseGlobalWorkSizes() {
+        long[] localWorkSizes = elementwiseLocalWorkSizes();
+        return new long[]{roundUp(cols, localWorkSizes[0]), roundUp(rows, localWorkSizes[1])};
+    }
+
+    // Returns the generated kernel for the epilogue, building kernels/Fused.cl and Matrices.cl
+    // with its definitions the first time a chain of that signature is used on this GPU.
+    private cl_kernel getFusedKernel(FusedEpilogue epilogue, String kernelName) {
+        String scope = "Fused" + epilogue.signature();
+        cl_kernel kernel = gpu.getKernel(scope + "::" + kernelName);
+        if(kernel != null) {
+            return kernel;
+        }
+
+        // another thread may be building the same program
+        synchronized(gpu) {
+            if(gpu.getKernel(scope + "::" + kernelName) == null) {
+                int programId = gpu.loadProgram(epilogue.openClDefinitions() + fusedKernelTemplate());
+                gpu.loadKernel(programId, scope, "fusedMatrixMultiply");
+                gpu.loadKernel(programId, scope, "fusedElementwise");
+            }
+        }
+        return getKernel(scope + "::" + kernelName);
+    }
+
+    private static synchronized String fusedKernelTemplate() {
+        if(fusedKernelTemplate == null) {
+            // the tiled multiplication is shared with Matrices.cl, which picks up the epilogue
+            fusedKernelTemplate = readKernelFile(FUSED_KERNEL_FILE) + "\n" + readKernelFile(MATRICES_KERNEL_FILE);
+        }
+        return fusedKernelTemplate;
+    }
+
+    // Sparse.cl, Batched.cl, Half.cl and Quantized.cl are part of the library, so they are
+    // built on first use like the fused kernels. The files are joined into one program.
+    private cl_kernel getLibraryKernel(String scope, String kernelName, String... filePaths) {
+        cl_kernel kernel = gpu.getKernel(scope + "::" + kernelName);
+        if(kernel != null) {
+            return kernel;
+        }
+
+        synchronized(gpu) {
+            if(gpu.getKernel(scope + "::" + kernelName) == null) {
+                StringBuilder source = new StringBuilder();
+                for(String filePath : filePaths) {
+                    source.append(readKernelFile(filePath)).append('\n');
+                }
+                int programId = gpu.loadProgram(source.toString());
+                gpu.loadKernel(programId, scope, kernelName);
+            }
+        }
+        return getKernel(scope + "::" + kernelName);
+    }
+
+    private static String readKernelFile(String filePath) {
+        try(InputStream inputStream = InternalFile.getInstance().getFileInputStream(filePath)) {
+            if(inputStream == null) {
+                throw new IllegalStateException("Failed to read file: " + filePath);
+            }
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException("Failed to read file: " + filePath, e);
+        }
+    }
+
+    // largest power of two work-group size allowed in total
+    private long groupSizeLimit() {
+        long limit = Math.min(MAX_GROUP_SIZE, gpu.getMaxWorkGroupSize());
+        return Long.highestOneBit(Math.max(1, limit));
+    }
+
+    // largest power of two work-group extent allowed along the given dimension
+    private long groupSizeLimit(int dimension) {
+        long limit = Math.min(groupSizeLimit(), gpu.getMaxWorkItemSize(dimension));
+        return Long.highestOneBit(Math.max(1, limit));
+    }
+
+    // Largest power of two tile that fits the device's work-group, work-item and local
+    // memory limits. The kernel uses tileSize x (tileSize / WORK_PER_ITEM) work items
+    // and two tileSize x tileSize float tiles of local memory.
+    static int multiplyTileSize(GPU gpu) {
+        int tileSize = MAX_MULTIPLY_TILE_SIZE;
+        while(tileSize > MULTIPLY_WORK_PER_ITEM) {
+            long workGroupSize = (long) tileSize * tileSize / MULTIPLY_WORK_PER_ITEM;
+            long localBytes = 2L * Sizeof.cl_float * tileSize * tileSize;
+            if(workGroupSize <= gpu.getMaxWorkGroupSize() &&
+               tileSize <= gpu.getMaxWorkItemSize(0) &&
+               tileSize / MULTIPLY_WORK_PER_ITEM <= gpu.getMaxWorkItemSize(1) &&
+               localBytes <= gpu.getLocalMemorySize()) {
+                break;
+            }
+            tileSize /= 2;
+        }
+        return tileSize;
+    }
+
+    private static long nextPowerOfTwo(long value) {
+        return value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+    }
+
+    private static long roundUp(long value, long multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private cl_kernel getKernel(String scopedKernelName) {
+        cl_kernel kernel = gpu.getKernel(scopedKernelName);
+        if(kernel == null) {
+            throw new NullPointerException(scopedKernelName + " not found to be loaded in GPU");
+        }
+        return kernel;
+    }
+
+    private void requireOpen() {
+        if(memory == null) {
+            throw new IllegalStateException("DeviceMatrix has already been closed.");
+        }
+    }
+
+    private void requireCompatible(DeviceMatrix other) {
+        requireOpen();
+        other.requireOpen();
+        if(other.gpu != gpu) {
+            throw new IllegalArgumentException("DeviceMatrix operands belong to different GPUs.");
+        }
+    }
+
+    private static void requireInitialized(GPU gpu) {
+        if(!gpu.isInitialized()) {
+            throw new IllegalStateException("GPU not yet initialized.");
+        }
+    }
+
+    // an event of a command and the queue it was enqueued on
+    private static final class Access {
+        final cl_event event;
+        final cl_command_queue queue;
+
+        Access(cl_event event, cl_command_queue queue) {
+            this.event = event;
+            this.queue = queue;
+        }
+    }
+}
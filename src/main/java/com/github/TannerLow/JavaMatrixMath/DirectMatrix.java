@@ -0,0 +1,194 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+// A row-major matrix stored off-heap in a direct buffer. The data is invisible to the
+// garbage collector and never moves, so JOCL reads and writes it in place and a GPU can
+// use it without a copy, see DeviceMatrix.wrap.
+// The memory is freed by close(), or by the MatrixArena the matrix was allocated from.
+// Matrices mapped from a file with MatrixFile.map are unmapped by close() and read-only.
+// Accessing a closed matrix throws IllegalStateException. The memory is only reachable
+// through the methods below, never as a buffer of its own, so nothing can read it once
+// it has been freed or unmapped.
+public class DirectMatrix implements Closeable {
+    // frees a direct buffer right away instead of waiting for the garbage collector,
+    // null when the JVM does not offer it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch(ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    public final int rows;
+    public final int cols;
+
+    private ByteBuffer memory;
+    private FloatBuffer buffer;
+    // open device matrices using this memory directly, see DeviceMatrix.wrap. Guarded by
+    // this, device matrices may be closed on the GPU's completion executor.
+    private int deviceUsers = 0;
+
+    DirectMatrix(int rows, int cols) {
+        if(rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must not be negative: " + rows + "x" + cols);
+        }
+        long bytes = (long) Float.BYTES * rows * cols;
+        if(bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Matrix too large for a direct buffer: " + rows + "x" + cols);
+        }
+
+        this.rows = rows;
+        this.cols = cols;
+        // direct buffers start out zeroed, like new float[]
+        this.memory = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        this.buffer = memory.asFloatBuffer();
+    }
+
+    // Views existing direct memory holding rows * cols floats in native byte order, for
+    // example a file mapped by MatrixFile. Read-only memory makes the matrix read-only.
+    DirectMatrix(int rows, int cols, ByteBuffer memory) {
+        this.rows = rows;
+        this.cols = cols;
+        this.memory = memory.order(ByteOrder.nativeOrder());
+        this.buffer = this.memory.asFloatBuffer();
+    }
+
+    // Allocates a zeroed rows x cols matrix that lives until it is closed.
+    public static DirectMatrix allocate(int rows, int cols) {
+        return new DirectMatrix(rows, cols);
+    }
+
+    // Copies a heap matrix into a new direct matrix.
+    public static DirectMatrix copyOf(Matrix matrix) {
+        DirectMatrix result = new DirectMatrix(matrix.rows, matrix.cols);
+        result.copyFrom(matrix);
+        return result;
+    }
+
+    // Copies the matrix to the device, see also DeviceMatrix.wrap.
+    public DeviceMatrix toDevice(GPU gpu) {
+        return DeviceMatrix.upload(gpu, this);
+    }
+
+    public float get(int row, int col) {
+        return requireOpen().get(index(row, col));
+    }
+
+    public void set(int row, int col, float value) {
+        requireOpen().put(index(row, col), value);
+    }
+
+    // Copies length values from index on, in row-major order, into dst from dstOffset on.
+    public void get(int index, float[] dst, int dstOffset, int length) {
+        requireOpen().get(index, dst, dstOffset, length);
+    }
+
+    // Copies length values of src from srcOffset on into the matrix from index on.
+    public void put(int index, float[] src, int srcOffset, int length) {
+        requireOpen().put(index, src, srcOffset, length);
+    }
+
+    public void copyFrom(Matrix matrix) {
+        requireSameShape(matrix);
+        requireOpen().put(0, matrix.data);
+    }
+
+    public void copyTo(Matrix out) {
+        requireSameShape(out);
+        requireOpen().get(0, out.data);
+    }
+
+    public Matrix toMatrix() {
+        Matrix result = new Matrix(rows, cols);
+        copyTo(result);
+        return result;
+    }
+
+    public boolean isClosed() {
+        return buffer == null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(buffer == null) {
+            return;
+        }
+        if(deviceUsers > 0) {
+            throw new IllegalStateException("DirectMatrix is still used by " + deviceUsers + " DeviceMatrix.");
+        }
+
+        ByteBuffer released = memory;
+        memory = null;
+        buffer = null;
+        if(INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, released);
+            }
+            catch(ReflectiveOperationException e) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    // the buffer itself, for passing to JOCL, must not be kept beyond the call
+    FloatBuffer buffer() {
+        return requireOpen();
+    }
+
+    long bytes() {
+        return (long) Float.BYTES * rows * cols;
+    }
+
+    synchronized void addDeviceUser() {
+        requireOpen();
+        deviceUsers++;
+    }
+
+    synchronized void removeDeviceUser() {
+        deviceUsers--;
+    }
+
+    private int index(int row, int col) {
+        if(row < 0 || row >= rows || col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException("(" + row + ", " + col + ") outside of " + rows + "x" + cols);
+        }
+        return row * cols + col;
+    }
+
+    private FloatBuffer requireOpen() {
+        if(buffer == null) {
+            throw new IllegalStateException("DirectMatrix has already been closed.");
+        }
+        return buffer;
+    }
+
+    private void requireSameShape(Matrix matrix) {
+        if(matrix.rows != rows || matrix.cols != cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {matrix.rows, matrix.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+    }
+}
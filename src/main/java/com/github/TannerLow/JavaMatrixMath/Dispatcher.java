@@ -0,0 +1,213 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+import java.util.Arrays;
+
+// Runs each operation on the CPU or the GPU, whichever the cost model expects to finish
+// first for its shape, so callers do not have to pick between multiply(other) and
+// multiply(gpu, other) themselves. Every call is counted by operation and by the reason it
+// went where it did, see getCount.
+// Without a GPU, or without the operation's kernel loaded, everything runs on the CPU.
+public class Dispatcher {
+    public enum Backend {
+        CPU,
+        GPU
+    }
+
+    public enum Operation {
+        MULTIPLY("Matrices::matrixMultiply", 0),
+        ADD_ROW_TO_ROWS("Matrices::addRowToRows", 1),
+        ADD_COL_TO_COLS("Matrices::addColToCols", 1),
+        RELU("Matrices::relu", 1),
+        // max, exponent, sum and division per element
+        HORIZONTAL_SOFTMAX("Matrices::horizontalSoftmax", 4),
+        VERTICAL_SOFTMAX("Matrices::verticalSoftmax", 4);
+
+        private final String kernelName;
+        private final double flopsPerElement;
+
+        Operation(String kernelName, double flopsPerElement) {
+            this.kernelName = kernelName;
+            this.flopsPerElement = flopsPerElement;
+        }
+    }
+
+    public enum Reason {
+        NO_GPU(Backend.CPU),
+        KERNEL_NOT_LOADED(Backend.CPU),
+        GPU_NOT_CALIBRATED(Backend.CPU),
+        CPU_FASTER(Backend.CPU),
+        GPU_FASTER(Backend.GPU);
+
+        public final Backend backend;
+
+        Reason(Backend backend) {
+            this.backend = backend;
+        }
+    }
+
+    public static final class Decision {
+        public final Operation operation;
+        public final Backend backend;
+        public final Reason reason;
+        public final double cpuSeconds;
+        public final double gpuSeconds;
+
+        Decision(Operation operation, Reason reason, double cpuSeconds, double gpuSeconds) {
+            this.operation = operation;
+            this.backend = reason.backend;
+            this.reason = reason;
+            this.cpuSeconds = cpuSeconds;
+            this.gpuSeconds = gpuSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " on " + backend + " (" + reason + ", cpu " + cpuSeconds + "s, gpu " + gpuSeconds + "s)";
+        }
+    }
+
+    private final GPU gpu;
+    private final CostModel model;
+    private final long[][] counts = new long[Operation.values().length][Reason.values().length];
+
+    // Calibrates a new cost model, see CostModel.calibrate. gpu may be null.
+    public Dispatcher(GPU gpu) {
+        this(gpu, CostModel.calibrate(gpu));
+    }
+
+    public Dispatcher(GPU gpu, CostModel model) {
+        this.gpu = gpu;
+        this.model = model;
+    }
+
+    // Where an operation with a rows x cols result would run, without running or counting it.
+    // sharedDimension is only used by MULTIPLY.
+    public Decision decide(Operation operation, int rows, int cols, int sharedDimension) {
+        double elements = (double) rows * cols;
+        double flops;
+        double bytes;
+        switch(operation) {
+            case MULTIPLY:
+                flops = CostModel.multiplyFlops(rows, sharedDimension, cols);
+                bytes = Float.BYTES * ((double) rows * sharedDimension + (double) sharedDimension * cols + elements);
+                break;
+            case ADD_ROW_TO_ROWS:
+                flops = elements;
+                bytes = Float.BYTES * (2 * elements + cols);
+                break;
+            case ADD_COL_TO_COLS:
+                flops = elements;
+                bytes = Float.BYTES * (2 * elements + rows);
+                break;
+            default:
+                flops = operation.flopsPerElement * elements;
+                bytes = Float.BYTES * 2 * elements;
+                break;
+        }
+
+        double cpuSeconds = model.cpuSeconds(operation, flops);
+        double gpuSeconds = model.gpuSeconds(operation, flops, bytes);
+        Reason reason;
+        if(gpu == null || !gpu.isInitialized()) {
+            reason = Reason.NO_GPU;
+        }
+        else if(!gpu.hasKernel(operation.kernelName)) {
+            reason = Reason.KERNEL_NOT_LOADED;
+        }
+        else if(!model.hasGpu()) {
+            reason = Reason.GPU_NOT_CALIBRATED;
+        }
+        else {
+            reason = gpuSeconds < cpuSeconds ? Reason.GPU_FASTER : Reason.CPU_FASTER;
+        }
+        return new Decision(operation, reason, cpuSeconds, gpuSeconds);
+    }
+
+    public Matrix multiply(Matrix a, Matrix b) throws DimensionsMismatchException {
+        if(route(Operation.MULTIPLY, a.rows, b.cols, a.cols) == Backend.GPU) {
+            return a.multiply(gpu, b);
+        }
+        return a.multiply(b);
+    }
+
+    public Matrix addRowToRows(Matrix matrix, Matrix row) throws DimensionsMismatchException {
+        if(route(Operation.ADD_ROW_TO_ROWS, matrix.rows, matrix.cols, 0) == Backend.GPU) {
+            return matrix.addRowToRows(gpu, row);
+        }
+        return matrix.addRowToRows(row);
+    }
+
+    public Matrix addColToCols(Matrix matrix, Matrix col) throws DimensionsMismatchException {
+        if(route(Operation.ADD_COL_TO_COLS, matrix.rows, matrix.cols, 0) == Backend.GPU) {
+            return matrix.addColToCols(gpu, col);
+        }
+        return matrix.addColToCols(col);
+    }
+
+    public Matrix relu(Matrix matrix) {
+        if(route(Operation.RELU, matrix.rows, matrix.cols, 0) == Backend.GPU) {
+            return matrix.relu(gpu);
+        }
+        return matrix.relu();
+    }
+
+    public Matrix horizontalSoftmax(Matrix matrix) {
+        if(route(Operation.HORIZONTAL_SOFTMAX, matrix.rows, matrix.cols, 0) == Backend.GPU) {
+            return matrix.horizontalSoftmax(gpu);
+        }
+        return matrix.horizontalSoftmax();
+    }
+
+    public Matrix verticalSoftmax(Matrix matrix) {
+        if(route(Operation.VERTICAL_SOFTMAX, matrix.rows, matrix.cols, 0) == Backend.GPU) {
+            return matrix.verticalSoftmax(gpu);
+        }
+        return matrix.verticalSoftmax();
+    }
+
+    public synchronized long getCount(Operation operation, Reason reason) {
+        return counts[operation.ordinal()][reason.ordinal()];
+    }
+
+    public synchronized long getCount(Reason reason) {
+        long total = 0;
+        for(long[] operationCounts : counts) {
+            total += operationCounts[reason.ordinal()];
+        }
+        return total;
+    }
+
+    public synchronized long getCount(Backend backend) {
+        long total = 0;
+        for(Reason reason : Reason.values()) {
+            if(reason.backend == backend) {
+                total += getCount(reason);
+            }
+        }
+        return total;
+    }
+
+    public synchronized void resetCounts() {
+        for(long[] operationCounts : counts) {
+            Arrays.fill(operationCounts, 0);
+        }
+    }
+
+    public GPU getGpu() {
+        return gpu;
+    }
+
+    public CostModel getModel() {
+        return model;
+    }
+
+    private Backend route(Operation operation, int rows, int cols, int sharedDimension) {
+        Decision decision = decide(operation, rows, cols, sharedDimension);
+        synchronized(this) {
+            counts[operation.ordinal()][decision.reason.ordinal()]++;
+        }
+        return decision.backend;
+    }
+}
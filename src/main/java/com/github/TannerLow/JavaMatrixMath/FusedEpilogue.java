@@ -0,0 +1,128 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A chain of element-wise operations that is applied in a single pass, either on its own
+// or fused into the output loop of a multiplication. On the CPU each row segment runs
+// through the whole chain while it is in cache, on the GPU the chain is turned into the
+// EPILOGUE macro of kernels/Fused.cl.
+final class FusedEpilogue implements Gemm.Epilogue {
+    enum Operation {
+        ADD_ROW("addRow"),
+        ADD_COL("addCol"),
+        RELU("relu"),
+        RELU_DERIVATIVE("reluDerivative");
+
+        final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+    // the row or column vector of ADD_ROW and ADD_COL, null for the others
+    private final List<Matrix> operands = new ArrayList<>();
+
+    void add(Operation operation, Matrix operand) {
+        operations.add(operation);
+        operands.add(operand);
+    }
+
+    boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    int size() {
+        return operations.size();
+    }
+
+    // the operand vectors in the order of the generated OpenCL parameters
+    List<Matrix> getOperands() {
+        List<Matrix> result = new ArrayList<>();
+        for(Matrix operand : operands) {
+            if(operand != null) {
+                result.add(operand);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void apply(float[] c, int cIndex, int ldc, int row, int col, int rowCount, int colCount) {
+        apply(c, c, cIndex, ldc, row, col, rowCount, colCount);
+    }
+
+    // Runs the chain over a rowCount x colCount block starting at index, reading in for the
+    // first operation and out for the rest. in and out share the same layout.
+    void apply(float[] in, float[] out, int index, int stride, int row, int col, int rowCount, int colCount) {
+        CpuKernels kernels = CpuKernels.get();
+
+        for(int i = 0; i < rowCount; i++) {
+            int offset = index + i * stride;
+            float[] source = in;
+            for(int o = 0; o < operations.size(); o++) {
+                switch(operations.get(o)) {
+                    case ADD_ROW:
+                        kernels.addRow(source, operands.get(o).data, col, out, offset, colCount);
+                        break;
+                    case ADD_COL:
+                        kernels.addScalar(source, operands.get(o).data[row + i], out, offset, colCount);
+                        break;
+                    case RELU:
+                        kernels.relu(source, out, offset, offset + colCount);
+                        break;
+                    case RELU_DERIVATIVE:
+                        kernels.reluDerivative(source, out, offset, offset + colCount);
+                        break;
+                }
+                source = out;
+            }
+        }
+    }
+
+    // Applies the chain to every element of in, writing to out (which may be in).
+    void applyTo(Matrix in, Matrix out) {
+        Parallelism.forRange(in.rows, (long) in.cols * operations.size(), (start, end) ->
+                apply(in.data, out.data, start * in.cols, in.cols, start, 0, end - start, in.cols));
+    }
+
+    // Identifies the generated kernels, two chains with the same signature share them.
+    String signature() {
+        StringBuilder builder = new StringBuilder();
+        for(Operation operation : operations) {
+            builder.append('_').append(operation.name);
+        }
+        return builder.toString();
+    }
+
+    // #defines of EPILOGUE_PARAMETERS and EPILOGUE(value, row, col) for kernels/Fused.cl
+    String openClDefinitions() {
+        StringBuilder parameters = new StringBuilder();
+        String expression = "(value)";
+        int operandIndex = 0;
+
+        for(Operation operation : operations) {
+            switch(operation) {
+                case ADD_ROW:
+                    parameters.append(", __global const float* operand").append(operandIndex);
+                    expression = "(" + expression + " + operand" + operandIndex++ + "[(col)])";
+                    break;
+                case ADD_COL:
+                    parameters.append(", __global const float* operand").append(operandIndex);
+                    expression = "(" + expression + " + operand" + operandIndex++ + "[(row)])";
+                    break;
+                case RELU:
+                    expression = "fmax(" + expression + ", 0.0f)";
+                    break;
+                case RELU_DERIVATIVE:
+                    expression = "(" + expression + " > 0.0f ? 1.0f : 0.0f)";
+                    break;
+            }
+        }
+
+        return "#define EPILOGUE_PARAMETERS " + parameters + "\n" +
+               "#define EPILOGUE(value, row, col) " + expression + "\n";
+    }
+}
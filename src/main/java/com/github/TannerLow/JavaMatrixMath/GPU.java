@@ -1,7 +1,9 @@
 package com.github.TannerLow.JavaMatrixMath;
 
 import org.jocl.CL;
+import org.jocl.CLException;
 import org.jocl.Pointer;
+import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
@@ -12,50 +14,103 @@ import org.jocl.cl_program;
 import org.jocl.cl_queue_properties;
 
 import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
+import static org.jocl.CL.CL_DEVICE_LOCAL_MEM_SIZE;
+import static org.jocl.CL.CL_DEVICE_MAX_MEM_ALLOC_SIZE;
+import static org.jocl.CL.CL_DEVICE_MAX_WORK_GROUP_SIZE;
+import static org.jocl.CL.CL_DEVICE_MAX_WORK_ITEM_SIZES;
 import static org.jocl.CL.CL_DEVICE_NAME;
 import static org.jocl.CL.CL_DEVICE_TYPE_GPU;
+import static org.jocl.CL.CL_DRIVER_VERSION;
 import static org.jocl.CL.CL_PLATFORM_NAME;
+import static org.jocl.CL.CL_PROGRAM_BINARIES;
+import static org.jocl.CL.CL_PROGRAM_BINARY_SIZES;
+import static org.jocl.CL.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
+import static org.jocl.CL.CL_QUEUE_PROFILING_ENABLE;
+import static org.jocl.CL.CL_QUEUE_PROPERTIES;
+import static org.jocl.CL.CL_SUCCESS;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateCommandQueueWithProperties;
 import static org.jocl.CL.clCreateContext;
 import static org.jocl.CL.clCreateKernel;
+import static org.jocl.CL.clCreateProgramWithBinary;
 import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clFinish;
 import static org.jocl.CL.clGetDeviceIDs;
 import static org.jocl.CL.clGetDeviceInfo;
 import static org.jocl.CL.clGetPlatformIDs;
 import static org.jocl.CL.clGetPlatformInfo;
+import static org.jocl.CL.clGetProgramInfo;
 import static org.jocl.CL.clReleaseCommandQueue;
 import static org.jocl.CL.clReleaseContext;
 import static org.jocl.CL.clReleaseKernel;
 import static org.jocl.CL.clReleaseProgram;
 
+// A GPU may be used by several threads at once. Every thread gets its own command queue
+// and its own kernel objects, so kernel arguments set by one thread are never overwritten
+// by another and no thread waits for the commands of the others. Queues are created on a
+// thread's first command and kept for it; releaseThreadQueue() hands the calling thread's
+// queue to the next thread that needs one, and the queue of a thread that has died is
+// handed on the same way. A DeviceMatrix may be passed between threads,
+// but each one must only be used by one thread at a time.
 public class GPU implements Closeable {
+    public static final String PROFILING_PROPERTY = "javamatrixmath.profiling";
+
     private static final long deviceType = CL_DEVICE_TYPE_GPU;
 
-    private boolean isInitialized = false;
+    private volatile boolean isInitialized = false;
     private cl_platform_id platform;
     private cl_device_id device;
     private cl_context context;
-    private cl_command_queue commandQueue;
     private List<cl_program> programs;
-    private Map<String, cl_kernel> kernels;
+    // program and name of every loaded kernel, each thread creates its own instances
+    private Map<String, KernelSource> kernels;
+    // the calling thread's lane without locking, lanes and their owners are the registry
+    private ThreadLocal<Lane> threadLanes = new ThreadLocal<>();
+    // guarded by this, like the owner and the kernels of every lane
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Deque<Lane> freeLanes = new ArrayDeque<>();
+    private BufferPool bufferPool;
+    private long maxWorkGroupSize;
+    private long[] maxWorkItemSizes;
+    private long localMemorySize;
+    private long maxMemAllocSize;
+    private boolean outOfOrderExecution;
+    private Executor completionExecutor = ForkJoinPool.commonPool();
+    private String deviceName;
+    private String driverVersion;
+    private ProgramCache programCache = ProgramCache.fromSystemProperty();
+    private volatile boolean profiling = Boolean.getBoolean(PROFILING_PROPERTY);
 
     public GPU() {
         // Enable exceptions and subsequently omit error checks in this sample
         CL.setExceptionsEnabled(true);
         programs = new ArrayList<>();
-        kernels = new HashMap<>();
+        kernels = new ConcurrentHashMap<>();
     }
 
     public void initialize(boolean automaticSelection) {
+        initialize(automaticSelection, false);
+    }
+
+    // With outOfOrderExecution the device may run independent commands concurrently.
+    // DeviceMatrix orders dependent commands through events, so results are the same.
+    public void initialize(boolean automaticSelection, boolean outOfOrderExecution) {
         Scanner scanner = null;
         if(!automaticSelection) {
             scanner = new Scanner(System.in);
@@ -124,6 +179,36 @@ public class GPU implements Closeable {
             System.out.println("Automatically selected " + getStringInfo(device, CL_DEVICE_NAME));
         }
 
+        if(!automaticSelection) {
+            scanner.close();
+        }
+
+        createContext(outOfOrderExecution);
+    }
+
+    // Initializes the GPU on a device chosen by the caller, see DeviceGroup.
+    void initialize(cl_platform_id platform, cl_device_id device, boolean outOfOrderExecution) {
+        this.platform = platform;
+        this.device = device;
+        createContext(outOfOrderExecution);
+    }
+
+    // Creates the context, queue and buffer pool for the selected platform and device.
+    private void createContext(boolean outOfOrderExecution) {
+        // Identify the device and driver for the program cache
+        deviceName = getStringInfo(device, CL_DEVICE_NAME);
+        driverVersion = getStringInfo(device, CL_DRIVER_VERSION);
+
+        // Query the limits used to pick work-group sizes
+        maxWorkGroupSize = getSizes(device, CL_DEVICE_MAX_WORK_GROUP_SIZE, 1)[0];
+        maxWorkItemSizes = getSizes(device, CL_DEVICE_MAX_WORK_ITEM_SIZES, 3);
+        long[] localMemory = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_LOCAL_MEM_SIZE, Sizeof.cl_ulong, Pointer.to(localMemory), null);
+        localMemorySize = localMemory[0];
+        long[] maxMemAlloc = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_MAX_MEM_ALLOC_SIZE, Sizeof.cl_ulong, Pointer.to(maxMemAlloc), null);
+        maxMemAllocSize = maxMemAlloc[0];
+
         // Initialize the context properties
         cl_context_properties contextProperties = new cl_context_properties();
         contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
@@ -133,35 +218,68 @@ public class GPU implements Closeable {
                 contextProperties, 1, new cl_device_id[]{device},
                 null, null, null);
 
-        // Create a command-queue for the selected device
-        cl_queue_properties properties = new cl_queue_properties();
-        commandQueue = clCreateCommandQueueWithProperties(
-                context, device, properties, null);
-
-        if(!automaticSelection) {
-            scanner.close();
-        }
+        bufferPool = new BufferPool(context, maxMemAllocSize);
+        this.outOfOrderExecution = outOfOrderExecution;
+        threadLanes = new ThreadLocal<>();
 
         isInitialized = true;
+
+        // Create a command-queue for the initializing thread
+        lane();
     }
 
     public int loadProgram(String programCode) throws IllegalStateException {
+        return loadProgram(programCode, "");
+    }
+
+    // Builds the program with the given clBuildProgram options. With a program cache the
+    // compiled binary is reused across runs; a binary the driver rejects is dropped from
+    // the cache and the program is compiled from source instead.
+    public synchronized int loadProgram(String programCode, String buildOptions) throws IllegalStateException {
         if(!isInitialized) {
             throw new IllegalStateException("GPU not yet initialized.");
         }
 
-        // Create the program from the source code
-        cl_program program = clCreateProgramWithSource(context,
-                1, new String[]{ programCode }, null, null);
+        cl_program program = null;
+        String cacheKey = null;
+        if(programCache != null) {
+            cacheKey = ProgramCache.key(programCode, deviceName, driverVersion, buildOptions);
+            byte[] binary = programCache.load(cacheKey);
+            if(binary != null) {
+                program = buildFromBinary(binary, buildOptions);
+                if(program == null) {
+                    programCache.invalidate(cacheKey);
+                }
+            }
+        }
+
+        if(program == null) {
+            // Create the program from the source code
+            program = clCreateProgramWithSource(context,
+                    1, new String[]{ programCode }, null, null);
 
-        // Build the program
-        clBuildProgram(program, 0, null, null, null, null);
+            // Build the program
+            try {
+                clBuildProgram(program, 0, null, buildOptions, null, null);
+            }
+            catch(CLException e) {
+                clReleaseProgram(program);
+                throw e;
+            }
+
+            if(programCache != null) {
+                byte[] binary = getBinary(program);
+                if(binary != null) {
+                    programCache.store(cacheKey, binary);
+                }
+            }
+        }
 
         programs.add(program);
         return programs.size()-1;
     }
 
-    public boolean loadKernel(int programId, String scopeName, String kernelName) {
+    public synchronized boolean loadKernel(int programId, String scopeName, String kernelName) {
         if(programId >= programs.size() && programId < 0) {
             return false;
         }
@@ -172,9 +290,10 @@ public class GPU implements Closeable {
             throw new InvalidParameterException("Kernel of that name and scope already exists on GPU.");
         }
 
-        // Create the kernel
-        cl_kernel kernel = clCreateKernel(programs.get(programId), kernelName, null);
-        kernels.put(scopedKernelName, kernel);
+        // Create the kernel for this thread, which also checks that the program has it
+        KernelSource source = new KernelSource(programs.get(programId), kernelName);
+        lane().kernels.put(scopedKernelName, clCreateKernel(source.program, kernelName, null));
+        kernels.put(scopedKernelName, source);
 
         return true;
     }
@@ -183,17 +302,147 @@ public class GPU implements Closeable {
         return context;
     }
 
+    // The calling thread's command queue, created on its first use.
     public cl_command_queue getCommandQueue() {
-        return commandQueue;
+        return lane().queue;
     }
 
-    public cl_kernel getKernel(String scopedKernelName) {
-        try {
-            return kernels.get(scopedKernelName);
+    // The calling thread's command queue, null if it has none. Unlike getCommandQueue() this
+    // does not create one, for threads that only wait on or close device matrices.
+    cl_command_queue getExistingCommandQueue() {
+        Lane lane = threadLanes.get();
+        return lane == null ? null : lane.queue;
+    }
+
+    // Waits for the calling thread's commands and lets the next thread use its queue and
+    // kernels, for threads that are done with the GPU while it stays open. The thread gets
+    // a queue again on its next command.
+    public void releaseThreadQueue() {
+        Lane lane = threadLanes.get();
+        if(lane == null) {
+            return;
+        }
+        threadLanes.remove();
+        if(!isInitialized) {
+            return;
+        }
+        clFinish(lane.queue);
+        synchronized(this) {
+            if(isInitialized) {
+                lane.owner = null;
+                freeLanes.push(lane);
+            }
+        }
+    }
+
+    // Number of command queues created so far, one per thread that used the GPU at once.
+    public synchronized int getQueueCount() {
+        return lanes.size();
+    }
+
+    // CL_DEVICE_MAX_WORK_GROUP_SIZE of the selected device
+    public long getMaxWorkGroupSize() {
+        return maxWorkGroupSize;
+    }
+
+    // CL_DEVICE_MAX_WORK_ITEM_SIZES of the selected device, one entry per dimension
+    public long getMaxWorkItemSize(int dimension) {
+        return maxWorkItemSizes[dimension];
+    }
+
+    // CL_DEVICE_LOCAL_MEM_SIZE of the selected device in bytes
+    public long getLocalMemorySize() {
+        return localMemorySize;
+    }
+
+    // CL_DEVICE_MAX_MEM_ALLOC_SIZE of the selected device, the largest single buffer in bytes
+    public long getMaxMemAllocSize() {
+        return maxMemAllocSize;
+    }
+
+    // CL_DEVICE_NAME of the selected device
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    // CL_DRIVER_VERSION of the selected device
+    public String getDriverVersion() {
+        return driverVersion;
+    }
+
+    // Cache for the programs built by loadProgram, null when programs are always compiled.
+    // Defaults to the directory in the javamatrixmath.programCache system property.
+    public ProgramCache getProgramCache() {
+        return programCache;
+    }
+
+    public void setProgramCache(ProgramCache programCache) {
+        this.programCache = programCache;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // With profiling, queues record device start and end times of every command and the
+    // kernel and transfer durations are reported to Metrics. Applies to queues created
+    // afterwards, so set it before initialize. Defaults to the javamatrixmath.profiling
+    // system property.
+    public boolean isProfiling() {
+        return profiling;
+    }
+
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    // Whether the calling thread's queue records profiling information.
+    boolean isQueueProfiling() {
+        return lane().profiling;
+    }
+
+    public boolean isOutOfOrderExecution() {
+        return outOfOrderExecution;
+    }
+
+    // Executor that completes the futures of asynchronous operations, the common pool by default
+    public Executor getCompletionExecutor() {
+        return completionExecutor;
+    }
+
+    public void setCompletionExecutor(Executor completionExecutor) {
+        if(completionExecutor == null) {
+            throw new NullPointerException("Completion executor must not be null.");
         }
-        catch(NullPointerException e) {
+        this.completionExecutor = completionExecutor;
+    }
+
+    // Whether a kernel of that name is loaded, without creating an instance for the calling
+    // thread.
+    boolean hasKernel(String scopedKernelName) {
+        return kernels.containsKey(scopedKernelName);
+    }
+
+    // The calling thread's instance of the kernel, null if no kernel of that name is loaded.
+    public cl_kernel getKernel(String scopedKernelName) {
+        KernelSource source = kernels.get(scopedKernelName);
+        if(source == null) {
             return null;
         }
+
+        Lane lane = lane();
+        cl_kernel kernel = lane.kernels.get(scopedKernelName);
+        if(kernel == null) {
+            // close() releases the kernels of every lane
+            synchronized(this) {
+                if(!isInitialized) {
+                    throw new IllegalStateException("GPU not yet initialized.");
+                }
+                kernel = clCreateKernel(source.program, source.kernelName, null);
+                lane.kernels.put(scopedKernelName, kernel);
+            }
+        }
+        return kernel;
     }
 
     public boolean isInitialized() {
@@ -201,26 +450,147 @@ public class GPU implements Closeable {
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
         isInitialized = false;
 
-        for(Map.Entry<String, cl_kernel> entry : kernels.entrySet()) {
-                clReleaseKernel(entry.getValue());
+        for(Lane lane : lanes) {
+            for(cl_kernel kernel : lane.kernels.values()) {
+                clReleaseKernel(kernel);
+            }
         }
+        kernels.clear();
 
         for(cl_program program : programs) {
             clReleaseProgram(program);
         }
+        programs.clear();
+
+        if(bufferPool != null) {
+            bufferPool.close();
+        }
 
-        if(commandQueue != null) {
-            clReleaseCommandQueue(commandQueue);
+        for(Lane lane : lanes) {
+            clReleaseCommandQueue(lane.queue);
         }
+        lanes.clear();
+        freeLanes.clear();
 
         if(context != null) {
             clReleaseContext(context);
         }
     }
 
+    // The calling thread's queue and kernels, taken from the free ones or newly created.
+    private Lane lane() {
+        Lane lane = threadLanes.get();
+        if(lane != null) {
+            return lane;
+        }
+
+        synchronized(this) {
+            if(!isInitialized) {
+                throw new IllegalStateException("GPU not yet initialized.");
+            }
+            reclaimLanes();
+            lane = freeLanes.poll();
+            if(lane == null) {
+                cl_queue_properties properties = new cl_queue_properties();
+                long queueProperties = 0;
+                if(outOfOrderExecution) {
+                    queueProperties |= CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
+                }
+                if(profiling) {
+                    queueProperties |= CL_QUEUE_PROFILING_ENABLE;
+                }
+                if(queueProperties != 0) {
+                    properties.addProperty(CL_QUEUE_PROPERTIES, queueProperties);
+                }
+                lane = new Lane(clCreateCommandQueueWithProperties(context, device, properties, null), profiling);
+                lanes.add(lane);
+            }
+            lane.owner = new WeakReference<>(Thread.currentThread());
+        }
+        threadLanes.set(lane);
+        return lane;
+    }
+
+    // Frees the lanes of threads that died without releaseThreadQueue(). Their commands
+    // stay ordered on the queue ahead of those of the next owner.
+    private synchronized void reclaimLanes() {
+        for(Lane lane : lanes) {
+            if(lane.owner == null) {
+                continue;
+            }
+            Thread owner = lane.owner.get();
+            if(owner == null || !owner.isAlive()) {
+                lane.owner = null;
+                freeLanes.push(lane);
+            }
+        }
+    }
+
+    // null when the driver does not accept the binary for the device
+    private cl_program buildFromBinary(byte[] binary, String buildOptions) {
+        cl_program program = null;
+        try {
+            int[] binaryStatus = new int[1];
+            program = clCreateProgramWithBinary(context, 1, new cl_device_id[]{device},
+                    new long[]{binary.length}, new byte[][]{binary}, binaryStatus, null);
+            if(binaryStatus[0] != CL_SUCCESS) {
+                clReleaseProgram(program);
+                return null;
+            }
+            clBuildProgram(program, 0, null, buildOptions, null, null);
+            return program;
+        }
+        catch(CLException e) {
+            if(program != null) {
+                clReleaseProgram(program);
+            }
+            return null;
+        }
+    }
+
+    // The device binary of a built program, null when the driver does not provide one.
+    private static byte[] getBinary(cl_program program) {
+        ByteBuffer sizes = ByteBuffer.allocate(Sizeof.size_t).order(ByteOrder.nativeOrder());
+        clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(sizes), null);
+        long size = Sizeof.size_t == 4 ? sizes.getInt(0) : sizes.getLong(0);
+        if(size <= 0 || size > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        byte[] binary = new byte[(int) size];
+        clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER,
+                Pointer.to(new Pointer[]{Pointer.to(binary)}), null);
+        return binary;
+    }
+
+    private static final class KernelSource {
+        final cl_program program;
+        final String kernelName;
+
+        KernelSource(cl_program program, String kernelName) {
+            this.program = program;
+            this.kernelName = kernelName;
+        }
+    }
+
+    // A command queue with kernel instances of its own, used by one thread at a time.
+    private static final class Lane {
+        final cl_command_queue queue;
+        final boolean profiling;
+        // written under the GPU lock, read by the owner without it
+        final Map<String, cl_kernel> kernels = new HashMap<>();
+        // null while the lane is free
+        WeakReference<Thread> owner;
+
+        Lane(cl_command_queue queue, boolean profiling) {
+            this.queue = queue;
+            this.profiling = profiling;
+        }
+    }
+
     private static String getStringInfo(cl_platform_id platform, int paramName) {
         long[] size = new long[1];
         clGetPlatformInfo(platform, paramName, 0, null, size);
@@ -236,4 +606,15 @@ public class GPU implements Closeable {
         clGetDeviceInfo(device, paramName, buffer.length, Pointer.to(buffer), null);
         return new String(buffer, 0, buffer.length - 1);
     }
+
+    private static long[] getSizes(cl_device_id device, int paramName, int numValues) {
+        // size_t is 4 or 8 bytes depending on the platform
+        ByteBuffer buffer = ByteBuffer.allocate(numValues * Sizeof.size_t).order(ByteOrder.nativeOrder());
+        clGetDeviceInfo(device, paramName, (long) Sizeof.size_t * numValues, Pointer.to(buffer), null);
+        long[] values = new long[numValues];
+        for(int i = 0; i < numValues; i++) {
+            values[i] = Sizeof.size_t == 4 ? buffer.getInt(i * Sizeof.size_t) : buffer.getLong(i * Sizeof.size_t);
+        }
+        return values;
+    }
 }
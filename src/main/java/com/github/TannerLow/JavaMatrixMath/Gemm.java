@@ -0,0 +1,346 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+
+// Cache-blocked CPU matrix multiplication: C = A * B with C row-major. A and B are read
+// through a row and a column stride, so transposed operands and slices are multiplied
+// without copying them first; the packing below absorbs the strides. Operands stored in
+// 16 bits (see HalfMatrix) are widened to float while packing, so the micro-kernel
+// accumulates in float and only the reads of the operands shrink.
+// Loop order follows the usual packed GEMM scheme: a KC x NC panel of B is packed
+// once and reused by every MC x KC block of A, which is packed into MR-row slivers
+// so that the micro-kernel streams both operands contiguously. The register tile
+// (MR x NR) and the micro-kernel itself come from CpuKernels.
+// With Parallelism enabled the mc x nr strips of C under a packed panel of B are split
+// across threads, so the panel is packed once for all of them. Every element of C sees the
+// same sequence of micro-kernel calls either way, results do not depend on the pool.
+final class Gemm {
+    // cache blocking, sized so that a packed B sliver (KC x NR) stays in L1,
+    // a packed A block (MC x KC) in L2 and a packed B panel (KC x NC) in L3
+    static final int KC = 256;
+    static final int MC = 128;
+    static final int NC = 2048;
+    // largest dimension multiplied by multiplySmall
+    static final int SMALL_SIZE = 64;
+
+    // Element-wise work fused into the output loop. It is called once for every finished
+    // rowCount x colCount part of C, starting at c[cIndex] with row and col relative to
+    // the C passed to multiply, while that part is still in cache.
+    interface Epilogue {
+        void apply(float[] c, int cIndex, int ldc, int row, int col, int rowCount, int colCount);
+    }
+
+    // packing buffers, reused by every multiplication on the same thread
+    private static final class Workspace {
+        float[] packedA = new float[0];
+        float[] packedB = new float[0];
+        float[] edge = new float[0];
+        // operands of the float entry points, reset by every call instead of allocated
+        final Operand a = new Operand(null, 0, 0, 0);
+        final Operand b = new Operand(null, 0, 0, 0);
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    // An operand of multiply: element (i, p) is at offset + i * rowStride + p * colStride
+    // of floats, or of halves in the given format.
+    static final class Operand {
+        float[] floats;
+        short[] halves;
+        HalfMatrix.Format format;
+        int offset;
+        int rowStride;
+        int colStride;
+
+        Operand(float[] floats, int offset, int rowStride, int colStride) {
+            this(floats, null, null, offset, rowStride, colStride);
+        }
+
+        Operand(short[] halves, HalfMatrix.Format format, int offset, int rowStride, int colStride) {
+            this(null, halves, format, offset, rowStride, colStride);
+        }
+
+        private Operand(float[] floats, short[] halves, HalfMatrix.Format format,
+                        int offset, int rowStride, int colStride) {
+            this.floats = floats;
+            this.halves = halves;
+            this.format = format;
+            this.offset = offset;
+            this.rowStride = rowStride;
+            this.colStride = colStride;
+        }
+
+        private Operand set(float[] floats, int offset, int rowStride, int colStride) {
+            this.floats = floats;
+            this.offset = offset;
+            this.rowStride = rowStride;
+            this.colStride = colStride;
+            return this;
+        }
+    }
+
+    private Gemm() {}
+
+    static void multiply(int m, int n, int k,
+                         float[] a, int aOffset, int lda,
+                         float[] b, int bOffset, int ldb,
+                         float[] c, int cOffset, int ldc) {
+        multiply(CpuKernels.get(), m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc, null);
+    }
+
+    static void multiply(int m, int n, int k,
+                         float[] a, int aOffset, int lda,
+                         float[] b, int bOffset, int ldb,
+                         float[] c, int cOffset, int ldc,
+                         Epilogue epilogue) {
+        multiply(CpuKernels.get(), m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc, epilogue);
+    }
+
+    static void multiply(CpuKernels kernels, int m, int n, int k,
+                         float[] a, int aOffset, int lda,
+                         float[] b, int bOffset, int ldb,
+                         float[] c, int cOffset, int ldc) {
+        multiply(kernels, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc, null);
+    }
+
+    // epilogue may be null
+    static void multiply(CpuKernels kernels, int m, int n, int k,
+                         float[] a, int aOffset, int lda,
+                         float[] b, int bOffset, int ldb,
+                         float[] c, int cOffset, int ldc,
+                         Epilogue epilogue) {
+        multiply(kernels, m, n, k, a, aOffset, lda, 1, b, bOffset, ldb, 1, c, cOffset, ldc, epilogue);
+    }
+
+    // A(i, p) = a[aOffset + i * aRowStride + p * aColStride], likewise for B. The packed
+    // blocks do not depend on the strides, so a transposed operand gives bitwise the same
+    // result as multiplying its materialized transpose. epilogue may be null.
+    static void multiply(CpuKernels kernels, int m, int n, int k,
+                         float[] a, int aOffset, int aRowStride, int aColStride,
+                         float[] b, int bOffset, int bRowStride, int bColStride,
+                         float[] c, int cOffset, int ldc,
+                         Epilogue epilogue) {
+        Workspace workspace = WORKSPACE.get();
+        multiply(kernels, m, n, k, workspace.a.set(a, aOffset, aRowStride, aColStride),
+                workspace.b.set(b, bOffset, bRowStride, bColStride), c, cOffset, ldc, epilogue);
+    }
+
+    static void multiply(CpuKernels kernels, int m, int n, int k, Operand a, Operand b,
+                         float[] c, int cOffset, int ldc, Epilogue epilogue) {
+        if(m == 0 || n == 0) {
+            return;
+        }
+
+        if(k == 0) {
+            for(int row = 0; row < m; row++) {
+                int offset = cOffset + row * ldc;
+                for(int col = 0; col < n; col++) {
+                    c[offset + col] = 0;
+                }
+            }
+            if(epilogue != null) {
+                epilogue.apply(c, cOffset, ldc, 0, 0, m, n);
+            }
+            return;
+        }
+
+        final int nrMax = kernels.gemmTileCols();
+
+        Workspace workspace = WORKSPACE.get();
+        int packedBSize = roundUp(Math.min(NC, n), nrMax) * Math.min(KC, k);
+        if(workspace.packedB.length < packedBSize) {
+            workspace.packedB = new float[packedBSize];
+        }
+        float[] packedB = workspace.packedB;
+
+        // The calling thread keeps the packed panel of B in its workspace until every strip
+        // is done. A pool thread could run another multiplication on its own workspace while
+        // it waits, so only threads outside of the pool split the work.
+        boolean splittable = !ForkJoinTask.inForkJoinPool();
+        int blocks = (m + MC - 1) / MC;
+
+        for(int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            int strips = blocks * ((nc + nrMax - 1) / nrMax);
+
+            for(int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+
+                packB(kc, nc, nrMax, b, b.offset + pc * b.rowStride + jc * b.colStride, packedB);
+
+                // the strips of C are independent, every thread reads the same packed panel
+                long workPerStrip = (long) Math.min(MC, m) * kc * nrMax;
+                if(!splittable || Parallelism.isSequential(strips, workPerStrip)) {
+                    multiplyStrips(kernels, m, k, a, packedB, jc, nc, pc, kc, c, cOffset, ldc, epilogue, 0, strips);
+                }
+                else {
+                    final int panelCol = jc;
+                    final int panelCols = nc;
+                    final int panelRow = pc;
+                    final int panelRows = kc;
+                    Parallelism.forRange(strips, workPerStrip, (start, end) ->
+                            multiplyStrips(kernels, m, k, a, packedB, panelCol, panelCols, panelRow, panelRows,
+                                    c, cOffset, ldc, epilogue, start, end));
+                }
+            }
+        }
+    }
+
+    // Multiplies A by the kc x nc panel of B at (pc, jc), packed in packedB, into the strips
+    // [start, end) of C. Strips are numbered along the MC row blocks and within a block along
+    // its nr wide columns, so a range packs each block of A once.
+    private static void multiplyStrips(CpuKernels kernels, int m, int k, Operand a, float[] packedB,
+                                       int jc, int nc, int pc, int kc,
+                                       float[] c, int cOffset, int ldc, Epilogue epilogue,
+                                       int start, int end) {
+        final int mrMax = kernels.gemmTileRows();
+        final int nrMax = kernels.gemmTileCols();
+        int stripsPerBlock = (nc + nrMax - 1) / nrMax;
+        boolean first = pc == 0;
+        boolean last = pc + kc == k;
+
+        Workspace workspace = WORKSPACE.get();
+        int packedASize = roundUp(Math.min(MC, m), mrMax) * Math.min(KC, k);
+        if(workspace.packedA.length < packedASize) {
+            workspace.packedA = new float[packedASize];
+        }
+        if(workspace.edge.length < mrMax * nrMax) {
+            workspace.edge = new float[mrMax * nrMax];
+        }
+        float[] packedA = workspace.packedA;
+        float[] edge = workspace.edge;
+
+        int packedBlock = -1;
+        for(int strip = start; strip < end; strip++) {
+            int block = strip / stripsPerBlock;
+            int ic = block * MC;
+            int mc = Math.min(MC, m - ic);
+            if(block != packedBlock) {
+                packA(mc, kc, mrMax, a, a.offset + ic * a.rowStride + pc * a.colStride, packedA);
+                packedBlock = block;
+            }
+
+            int jr = (strip - block * stripsPerBlock) * nrMax;
+            int nr = Math.min(nrMax, nc - jr);
+            for(int ir = 0; ir < mc; ir += mrMax) {
+                int mr = Math.min(mrMax, mc - ir);
+                int cIndex = cOffset + (ic + ir) * ldc + jc + jr;
+                kernels.gemmMicroKernel(kc, packedA, ir * kc, packedB, jr * kc,
+                        c, cIndex, ldc, mr, nr, first, edge);
+            }
+
+            // this mc x nr strip of C is final after the last K block
+            if(last && epilogue != null) {
+                epilogue.apply(c, cOffset + ic * ldc + jc + jr, ldc, ic, jc + jr, mc, nr);
+            }
+        }
+    }
+
+    // Whether an m x k times k x n product is small enough for multiplySmall, where
+    // packing would cost about as much as the multiplication.
+    static boolean isSmall(int m, int n, int k) {
+        return m <= SMALL_SIZE && n <= SMALL_SIZE && k <= SMALL_SIZE;
+    }
+
+    // C = A * B for small dense row-major matrices, accumulating whole rows of C in cache
+    // with scaleAdd instead of packing.
+    static void multiplySmall(CpuKernels kernels, int m, int n, int k,
+                              float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        for(int i = 0; i < m; i++) {
+            int cRow = cOffset + i * n;
+            Arrays.fill(c, cRow, cRow + n, 0);
+            for(int p = 0; p < k; p++) {
+                kernels.scaleAdd(a[aOffset + i * k + p], b, bOffset + p * n, c, cRow, n);
+            }
+        }
+    }
+
+    // Copies the mr x nr part of a full register tile (row length tileCols) into C.
+    static void storeEdge(float[] edge, int tileCols, float[] c, int cIndex, int ldc,
+                          int mr, int nr, boolean first) {
+        for(int i = 0; i < mr; i++) {
+            int rowIndex = cIndex + i * ldc;
+            for(int j = 0; j < nr; j++) {
+                if(first) {
+                    c[rowIndex + j] = edge[i * tileCols + j];
+                }
+                else {
+                    c[rowIndex + j] += edge[i * tileCols + j];
+                }
+            }
+        }
+    }
+
+    // Packs an mc x kc block of A into mrMax-row slivers laid out column by column,
+    // padding the last sliver with zeros.
+    private static void packA(int mc, int kc, int mrMax, Operand a, int offset, float[] packed) {
+        int rowStride = a.rowStride;
+        int colStride = a.colStride;
+        int index = 0;
+        for(int ir = 0; ir < mc; ir += mrMax) {
+            int mr = Math.min(mrMax, mc - ir);
+            int rowOffset = offset + ir * rowStride;
+            for(int p = 0; p < kc; p++) {
+                int colOffset = rowOffset + p * colStride;
+                if(a.floats != null) {
+                    for(int i = 0; i < mr; i++) {
+                        packed[index + i] = a.floats[colOffset + i * rowStride];
+                    }
+                }
+                else {
+                    widen(a.halves, a.format, colOffset, rowStride, mr, packed, index);
+                }
+                for(int i = mr; i < mrMax; i++) {
+                    packed[index + i] = 0;
+                }
+                index += mrMax;
+            }
+        }
+    }
+
+    // Packs a kc x nc panel of B into nrMax-column slivers laid out row by row,
+    // padding the last sliver with zeros.
+    private static void packB(int kc, int nc, int nrMax, Operand b, int offset, float[] packed) {
+        int rowStride = b.rowStride;
+        int colStride = b.colStride;
+        int index = 0;
+        for(int jr = 0; jr < nc; jr += nrMax) {
+            int nr = Math.min(nrMax, nc - jr);
+            for(int p = 0; p < kc; p++) {
+                int rowOffset = offset + p * rowStride + jr * colStride;
+                if(b.floats != null) {
+                    for(int j = 0; j < nr; j++) {
+                        packed[index + j] = b.floats[rowOffset + j * colStride];
+                    }
+                }
+                else {
+                    widen(b.halves, b.format, rowOffset, colStride, nr, packed, index);
+                }
+                for(int j = nr; j < nrMax; j++) {
+                    packed[index + j] = 0;
+                }
+                index += nrMax;
+            }
+        }
+    }
+
+    // packed[index + i] = halves[offset + i * stride] as float, for i < count
+    private static void widen(short[] halves, HalfMatrix.Format format, int offset, int stride,
+                              int count, float[] packed, int index) {
+        if(format == HalfMatrix.Format.FLOAT16) {
+            for(int i = 0; i < count; i++) {
+                packed[index + i] = HalfFloat.float16ToFloat(halves[offset + i * stride]);
+            }
+        }
+        else {
+            for(int i = 0; i < count; i++) {
+                packed[index + i] = HalfFloat.bfloat16ToFloat(halves[offset + i * stride]);
+            }
+        }
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+}
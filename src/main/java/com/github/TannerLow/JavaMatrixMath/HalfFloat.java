@@ -0,0 +1,86 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+// Conversions between float and the 16-bit formats of HalfMatrix. floatToFloat16 and
+// float16ToFloat follow Float.floatToFloat16 and Float.float16ToFloat of newer JDKs: IEEE
+// binary16 with round to nearest even, subnormals, infinities and NaN.
+// bfloat16 is the upper half of a float, rounded to nearest even. It keeps the range of
+// float with 8 bits of precision where float16 has 11 bits and a range up to 65504.
+public final class HalfFloat {
+    private HalfFloat() {}
+
+    public static float float16ToFloat(short value) {
+        int bits = value & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+
+        if(exponent == 0x1f) {
+            // infinity or NaN, NaN payloads are kept
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if(exponent == 0) {
+            // zero or subnormal, in units of 2^-24
+            float magnitude = mantissa * 0x1p-24f;
+            return sign == 0 ? magnitude : -magnitude;
+        }
+        // rebias the exponent from 15 to 127
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    public static short floatToFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7fffffff;
+
+        if(magnitude >= 0x7f800000) {
+            // infinity, or NaN with the top of its payload and the quiet bit set
+            int nan = magnitude > 0x7f800000 ? 0x200 | ((magnitude >>> 13) & 0x3ff) : 0;
+            return (short) (sign | 0x7c00 | nan);
+        }
+        if(magnitude >= 0x47800000) {
+            // 2^16 and above overflow, smaller values round up to infinity below
+            return (short) (sign | 0x7c00);
+        }
+
+        int half;
+        int remainder;
+        int halfway;
+        if(magnitude < 0x38800000) {
+            // below 2^-14 the result is subnormal, in units of 2^-24
+            if(magnitude < 0x33000000) {
+                return (short) sign;
+            }
+            int exponent = magnitude >>> 23;
+            int mantissa = (magnitude & 0x7fffff) | 0x800000;
+            int shift = 126 - exponent;
+            half = mantissa >>> shift;
+            remainder = mantissa & ((1 << shift) - 1);
+            halfway = 1 << (shift - 1);
+        }
+        else {
+            // rebias the exponent from 127 to 15 and drop 13 mantissa bits
+            half = (magnitude - 0x38000000) >>> 13;
+            remainder = magnitude & 0x1fff;
+            halfway = 0x1000;
+        }
+
+        // a carry out of the mantissa moves to the next exponent, or to infinity
+        if(remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    public static float bfloat16ToFloat(short value) {
+        return Float.intBitsToFloat((value & 0xffff) << 16);
+    }
+
+    public static short floatToBfloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if((bits & 0x7fffffff) > 0x7f800000) {
+            // keep NaN a quiet NaN, rounding could turn it into infinity
+            return (short) ((bits >>> 16) | 0x40);
+        }
+        return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+}
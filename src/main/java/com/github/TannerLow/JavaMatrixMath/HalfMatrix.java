@@ -0,0 +1,142 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+// A row-major matrix stored in 16 bits per element, as float16 or bfloat16 (see HalfFloat).
+// It takes half the memory of a Matrix and half the bytes to read or upload, weights that
+// are multiplied many times for example. Products widen the elements to float as they are
+// read and accumulate in float, so only the storage loses precision: about 3 decimal
+// digits for float16 and 2 for bfloat16, which keeps the range of float.
+public class HalfMatrix {
+    public enum Format {
+        FLOAT16(1),
+        BFLOAT16(2);
+
+        // format code of kernels/Half.cl
+        final int code;
+
+        Format(int code) {
+            this.code = code;
+        }
+
+        public float toFloat(short value) {
+            return this == FLOAT16 ? HalfFloat.float16ToFloat(value) : HalfFloat.bfloat16ToFloat(value);
+        }
+
+        public short fromFloat(float value) {
+            return this == FLOAT16 ? HalfFloat.floatToFloat16(value) : HalfFloat.floatToBfloat16(value);
+        }
+    }
+
+    public final int rows;
+    public final int cols;
+    public final Format format;
+    public final short[] data;
+
+    public HalfMatrix(int rows, int cols, Format format) {
+        this(rows, cols, format, new short[requireSize(rows, cols)]);
+    }
+
+    public HalfMatrix(int rows, int cols, Format format, short[] data) {
+        int size = requireSize(rows, cols);
+        if(data.length != size) {
+            throw new IllegalArgumentException("Matrix of " + rows + "x" + cols +
+                    " needs " + size + " values, got " + data.length);
+        }
+        if(format == null) {
+            throw new NullPointerException("Format must not be null.");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.format = format;
+        this.data = data;
+    }
+
+    // Rounds every element of matrix to the nearest value of format.
+    public static HalfMatrix of(Matrix matrix, Format format) {
+        HalfMatrix result = new HalfMatrix(matrix.rows, matrix.cols, format);
+        for(int i = 0; i < result.data.length; i++) {
+            result.data[i] = format.fromFloat(matrix.data[i]);
+        }
+        return result;
+    }
+
+    public Matrix toMatrix() {
+        Matrix result = new Matrix(rows, cols);
+        for(int i = 0; i < data.length; i++) {
+            result.data[i] = format.toFloat(data[i]);
+        }
+        return result;
+    }
+
+    public Matrix multiply(Matrix other) throws DimensionsMismatchException {
+        requireMultipliable(rows, cols, other.rows, other.cols);
+        return multiply(rows, cols, other.cols, operand(), new Gemm.Operand(other.data, 0, other.cols, 1));
+    }
+
+    public Matrix multiply(HalfMatrix other) throws DimensionsMismatchException {
+        requireMultipliable(rows, cols, other.rows, other.cols);
+        return multiply(rows, cols, other.cols, operand(), other.operand());
+    }
+
+    // a * b with b in 16 bits, activations times stored weights for example.
+    public static Matrix multiply(Matrix a, HalfMatrix b) throws DimensionsMismatchException {
+        requireMultipliable(a.rows, a.cols, b.rows, b.cols);
+        return multiply(a.rows, a.cols, b.cols, new Gemm.Operand(a.data, 0, a.cols, 1), b.operand());
+    }
+
+    // Multiplies on the GPU with kernels/Half.cl, which is loaded on first use. Operands
+    // in 16 bits are uploaded as they are stored.
+    public Matrix multiply(GPU gpu, Matrix other) throws DimensionsMismatchException {
+        requireMultipliable(rows, cols, other.rows, other.cols);
+        try(DeviceMatrix deviceOther = other.toDevice(gpu);
+            DeviceMatrix deviceResult = DeviceMatrix.multiply(this, deviceOther)) {
+            return deviceResult.toMatrix();
+        }
+    }
+
+    public Matrix multiply(GPU gpu, HalfMatrix other) throws DimensionsMismatchException {
+        requireMultipliable(rows, cols, other.rows, other.cols);
+        try(DeviceMatrix deviceResult = DeviceMatrix.multiply(gpu, this, other)) {
+            return deviceResult.toMatrix();
+        }
+    }
+
+    public static Matrix multiply(GPU gpu, Matrix a, HalfMatrix b) throws DimensionsMismatchException {
+        requireMultipliable(a.rows, a.cols, b.rows, b.cols);
+        try(DeviceMatrix deviceA = a.toDevice(gpu);
+            DeviceMatrix deviceResult = deviceA.multiply(b)) {
+            return deviceResult.toMatrix();
+        }
+    }
+
+    private Gemm.Operand operand() {
+        return new Gemm.Operand(data, format, 0, cols, 1);
+    }
+
+    // Gemm splits the work across threads like for Matrix.multiply
+    private static Matrix multiply(int rows, int sharedDimension, int cols, Gemm.Operand a, Gemm.Operand b) {
+        Matrix result = new Matrix(rows, cols);
+        Gemm.multiply(CpuKernels.get(), rows, cols, sharedDimension, a, b, result.data, 0, cols, null);
+        return result;
+    }
+
+    private static void requireMultipliable(int aRows, int aCols, int bRows, int bCols) {
+        if(aCols != bRows) {
+            final int[] dimensionsA = {aRows, aCols};
+            final int[] dimensionsB = {bRows, bCols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+    }
+
+    private static int requireSize(int rows, int cols) {
+        if(rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must not be negative: " + rows + "x" + cols);
+        }
+        long size = (long) rows * cols;
+        if(size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Matrix too large for an array: " + rows + "x" + cols);
+        }
+        return (int) size;
+    }
+}
@@ -1,23 +1,18 @@
 package com.github.TannerLow.JavaMatrixMath;
 
 import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
-import org.jocl.Pointer;
-import org.jocl.Sizeof;
-import org.jocl.cl_command_queue;
-import org.jocl.cl_context;
-import org.jocl.cl_kernel;
-import org.jocl.cl_mem;
-
-import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
-import static org.jocl.CL.CL_MEM_READ_ONLY;
-import static org.jocl.CL.CL_MEM_READ_WRITE;
-import static org.jocl.CL.CL_TRUE;
-import static org.jocl.CL.clCreateBuffer;
-import static org.jocl.CL.clEnqueueNDRangeKernel;
-import static org.jocl.CL.clEnqueueReadBuffer;
-import static org.jocl.CL.clReleaseMemObject;
-import static org.jocl.CL.clSetKernelArg;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BinaryOperator;
+
+// Every operation comes in three forms: one returning a new matrix, an Into variant
+// writing to a caller-provided matrix of the result's shape, and for the element-wise
+// operations an InPlace variant. The Into and InPlace variants of the CPU operations do
+// not allocate as long as the work stays on the calling thread (see Parallelism).
+// Element-wise operations and softmax may write to one of their inputs; multiplyInto
+// must not write to either operand.
 public class Matrix {
     public final int rows;
     public final int cols;
@@ -41,148 +36,220 @@ public class Matrix {
     }
 
     public Matrix multiply(Matrix other) throws DimensionsMismatchException {
+        Matrix result = new Matrix(rows, other.cols);
+        multiplyInto(other, result);
+        return result;
+    }
+
+    public void multiplyInto(Matrix other, Matrix out) throws DimensionsMismatchException {
         if(cols != other.rows) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {other.rows, other.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
+        requireShape(out, rows, other.cols);
+        requireNotAliased(out, this);
+        requireNotAliased(out, other);
 
-        Matrix result = new Matrix(rows, other.cols);
+        long start = Metrics.start();
+        multiplyInto(other, out, null);
+        Metrics.operation("multiply", Dispatcher.Backend.CPU, start, 2.0 * rows * cols * other.cols);
+    }
 
-        for(int row = 0; row < this.rows; row++) {
-            for(int otherCol = 0; otherCol < other.cols; otherCol++) {
-                float sum = 0;
-                for(int col = 0; col < this.cols; col++) {
-                    sum += data[row * this.cols + col] * other.data[col * other.cols + otherCol];
-                }
-                result.data[row * result.cols + otherCol] = sum;
-            }
-        }
+    // Starts a lazy expression on this matrix, see MatrixExpression.
+    public MatrixExpression lazy() {
+        return MatrixExpression.of(this);
+    }
 
-        return result;
+    // A view sharing this matrix's data, to transpose or slice it without copying,
+    // see MatrixView.
+    public MatrixView view() {
+        return MatrixView.of(this);
+    }
+
+    // result = this * other followed by epilogue (may be null) on every finished part.
+    // Gemm splits the work across threads itself, sharing each packed panel of other.
+    void multiplyInto(Matrix other, Matrix result, FusedEpilogue epilogue) {
+        Gemm.multiply(rows, other.cols, cols,
+                data, 0, cols,
+                other.data, 0, other.cols,
+                result.data, 0, result.cols,
+                epilogue);
     }
 
     public Matrix addRowToRows(Matrix row) throws DimensionsMismatchException {
+        Matrix result = new Matrix(rows, cols);
+        addRowToRowsInto(row, result);
+        return result;
+    }
+
+    public void addRowToRowsInto(Matrix row, Matrix out) throws DimensionsMismatchException {
         if(cols != row.cols) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {row.rows, row.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
+        requireShape(out, rows, cols);
 
-        Matrix result = new Matrix(rows, cols);
+        long start = Metrics.start();
+        if(Parallelism.isSequential(rows, cols)) {
+            addRowToRows(row, out, 0, rows);
+        }
+        else {
+            Parallelism.forRange(rows, cols, (first, end) -> addRowToRows(row, out, first, end));
+        }
+        Metrics.operation("addRowToRows", Dispatcher.Backend.CPU, start, data.length);
+    }
 
-        for(int currentRow = 0; currentRow < rows; currentRow++) {
-            for(int col = 0; col < cols; col++) {
-                int index = currentRow * cols + col;
-                result.data[index] = data[index] + row.data[col];
-            }
+    public void addRowToRowsInPlace(Matrix row) throws DimensionsMismatchException {
+        addRowToRowsInto(row, this);
+    }
+
+    private void addRowToRows(Matrix row, Matrix out, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        for(int currentRow = start; currentRow < end; currentRow++) {
+            kernels.addRow(data, row.data, out.data, currentRow * cols, cols);
         }
+    }
 
+    public Matrix addColToCols(Matrix col) throws DimensionsMismatchException {
+        Matrix result = new Matrix(rows, cols);
+        addColToColsInto(col, result);
         return result;
     }
 
-    public Matrix addColToCols(Matrix col) throws DimensionsMismatchException {
+    public void addColToColsInto(Matrix col, Matrix out) throws DimensionsMismatchException {
         if(rows != col.rows) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {col.rows, col.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
+        requireShape(out, rows, cols);
 
-        Matrix result = new Matrix(rows, cols);
-
-        for(int row = 0; row < rows; row++) {
-            for(int currentCol = 0; currentCol < cols; currentCol++) {
-                int index = row * cols + currentCol;
-                result.data[index] = data[index] + col.data[row];
-            }
+        long start = Metrics.start();
+        if(Parallelism.isSequential(rows, cols)) {
+            addColToCols(col, out, 0, rows);
         }
+        else {
+            Parallelism.forRange(rows, cols, (first, end) -> addColToCols(col, out, first, end));
+        }
+        Metrics.operation("addColToCols", Dispatcher.Backend.CPU, start, data.length);
+    }
 
-        return result;
+    public void addColToColsInPlace(Matrix col) throws DimensionsMismatchException {
+        addColToColsInto(col, this);
+    }
+
+    private void addColToCols(Matrix col, Matrix out, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        for(int row = start; row < end; row++) {
+            kernels.addScalar(data, col.data[row], out.data, row * cols, cols);
+        }
     }
 
     public Matrix relu() {
         Matrix result = new Matrix(rows, cols);
+        reluInto(result);
+        return result;
+    }
+
+    public void reluInto(Matrix out) {
+        requireShape(out, rows, cols);
+        CpuKernels kernels = CpuKernels.get();
 
-        for(int i = 0; i < data.length; i++) {
-            result.data[i] = Math.max(data[i], 0);
+        long start = Metrics.start();
+        if(Parallelism.isSequential(data.length, 1)) {
+            kernels.relu(data, out.data, 0, data.length);
         }
+        else {
+            Parallelism.forRange(data.length, 1, (first, end) ->
+                    kernels.relu(data, out.data, first, end));
+        }
+        Metrics.operation("relu", Dispatcher.Backend.CPU, start, data.length);
+    }
 
-        return result;
+    public void reluInPlace() {
+        reluInto(this);
     }
 
     public Matrix vectorizedReluDerivative() {
         Matrix result = new Matrix(rows, cols);
+        vectorizedReluDerivativeInto(result);
+        return result;
+    }
 
-        for(int i = 0; i < data.length; i++) {
-            if(data[i] > 0) {
-                result.data[i] = 1;
-            }
+    public void vectorizedReluDerivativeInto(Matrix out) {
+        requireShape(out, rows, cols);
+        CpuKernels kernels = CpuKernels.get();
+
+        long start = Metrics.start();
+        if(Parallelism.isSequential(data.length, 1)) {
+            kernels.reluDerivative(data, out.data, 0, data.length);
+        }
+        else {
+            Parallelism.forRange(data.length, 1, (first, end) ->
+                    kernels.reluDerivative(data, out.data, first, end));
         }
+        Metrics.operation("reluDerivative", Dispatcher.Backend.CPU, start, data.length);
+    }
 
-        return result;
+    public void vectorizedReluDerivativeInPlace() {
+        vectorizedReluDerivativeInto(this);
     }
 
     public Matrix horizontalSoftmax() {
         Matrix result = new Matrix(rows, cols);
+        horizontalSoftmaxInto(result);
+        return result;
+    }
 
-        float[] buffer = new float[rows];
-        for(int row = 0; row < rows; row++) {
-            int offset = row * cols;
-
-            // calculate the max values
-            buffer[row] = -Float.MAX_VALUE;
-            for(int i = 0; i < cols; i++) {
-                float value = data[offset + i];
-                if(value > buffer[row]) {
-                    buffer[row] = value;
-                }
-            }
-
-            // calculate the sums
-            float sum = 0;
-            float max = buffer[row];
-            for(int i = 0; i < cols; i++) {
-                sum += Math.exp(data[offset + i] - max);
-            }
+    public void horizontalSoftmaxInto(Matrix out) {
+        requireShape(out, rows, cols);
 
-            // calculate the softmax vectors
-            for(int i = 0; i < cols; i++) {
-                result.data[offset + i] = (float) (Math.exp(data[offset + i] - max) / sum);
-            }
+        long start = Metrics.start();
+        if(Parallelism.isSequential(rows, cols)) {
+            horizontalSoftmax(out, 0, rows);
+        }
+        else {
+            Parallelism.forRange(rows, cols, (first, end) -> horizontalSoftmax(out, first, end));
         }
+        Metrics.operation("horizontalSoftmax", Dispatcher.Backend.CPU, start, 4.0 * data.length);
+    }
 
-        return result;
+    public void horizontalSoftmaxInPlace() {
+        horizontalSoftmaxInto(this);
+    }
+
+    private void horizontalSoftmax(Matrix out, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        for(int row = start; row < end; row++) {
+            kernels.horizontalSoftmax(data, out.data, row * cols, cols);
+        }
     }
 
     public Matrix verticalSoftmax() {
         Matrix result = new Matrix(rows, cols);
+        verticalSoftmaxInto(result);
+        return result;
+    }
 
-        float[] buffer = new float[cols];
-        for(int col = 0; col < cols; col++) {
-            // calculate the max values
-            buffer[col] = -Float.MAX_VALUE;
-            for(int i = 0; i < rows; i++) {
-                float value = data[col + i * cols];
-                if(value > buffer[col]) {
-                    buffer[col] = value;
-                }
-            }
-
-            // calculate the sums
-            float sum = 0;
-            float max = buffer[col];
-            for(int i = 0; i < rows; i++) {
-                sum += Math.exp(data[col + i * cols] - max);
-            }
+    public void verticalSoftmaxInto(Matrix out) {
+        requireShape(out, rows, cols);
+        CpuKernels kernels = CpuKernels.get();
 
-            // calculate the softmax vectors
-            for(int i = 0; i < rows; i++) {
-                int index = col + i * cols;
-                result.data[index] = (float) (Math.exp(data[index] - max) / sum);
-            }
+        long start = Metrics.start();
+        if(Parallelism.isSequential(cols, rows)) {
+            kernels.verticalSoftmax(data, out.data, rows, cols, 0, cols);
+        }
+        else {
+            Parallelism.forRange(cols, rows, (first, end) ->
+                    kernels.verticalSoftmax(data, out.data, rows, cols, first, end));
         }
+        Metrics.operation("verticalSoftmax", Dispatcher.Backend.CPU, start, 4.0 * data.length);
+    }
 
-        return result;
+    public void verticalSoftmaxInPlace() {
+        verticalSoftmaxInto(this);
     }
 
 //    public Matrix fastBatchSoftmaxDerivative(Matrix output) {
@@ -224,317 +291,234 @@ public class Matrix {
                 gpu.getKernel("Matrices::verticalSoftmax") != null;
     }
 
+    // Copies this matrix to the device so that several GPU operations can be chained
+    // without transferring intermediate results.
+    public DeviceMatrix toDevice(GPU gpu) {
+        return DeviceMatrix.upload(gpu, this);
+    }
+
     public Matrix multiply(GPU gpu, Matrix other) {
+        Matrix result = new Matrix(rows, other.cols);
+        multiplyInto(gpu, other, result);
+        return result;
+    }
+
+    public void multiplyInto(GPU gpu, Matrix other, Matrix out) {
         if(cols != other.rows) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {other.rows, other.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
-
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::matrixMultiply");
-
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::matrixMultiply not found to be loaded in GPU");
+        requireShape(out, rows, other.cols);
+        requireNotAliased(out, this);
+        requireNotAliased(out, other);
+
+        long start = Metrics.start();
+        try(DeviceMatrix deviceA = toDevice(gpu);
+            DeviceMatrix deviceB = other.toDevice(gpu);
+            DeviceMatrix deviceOut = deviceA.multiply(deviceB)) {
+            deviceOut.toMatrix(out);
         }
+        Metrics.operation("multiply", Dispatcher.Backend.GPU, start, 2.0 * rows * cols * other.cols);
+    }
 
-        Matrix result = new Matrix(rows, other.cols);
-
-        Pointer pointerA = Pointer.to(data);
-        Pointer pointerB = Pointer.to(other.data);
-        Pointer pointerOut = Pointer.to(result.data);
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryA = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerA, null);
-        cl_mem memoryB = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * other.data.length, pointerB, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
-
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryA));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryB));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{other.cols}));
-
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1, 1};
-        long global_work_sizes[] = new long[]{rows, other.cols};
-
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
-
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
-
-        clReleaseMemObject(memoryA);
-        clReleaseMemObject(memoryB);
-        clReleaseMemObject(memoryOut);
-
+    public Matrix addRowToRows(GPU gpu, Matrix row) {
+        Matrix result = new Matrix(rows, cols);
+        addRowToRowsInto(gpu, row, result);
         return result;
     }
 
-    public Matrix addRowToRows(GPU gpu, Matrix row) {
+    public void addRowToRowsInto(GPU gpu, Matrix row, Matrix out) {
         if(cols != row.cols) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {row.rows, row.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
+        requireShape(out, rows, cols);
 
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::addRowToRows");
-
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::addRowToRows not found to be loaded in GPU");
+        long start = Metrics.start();
+        try(DeviceMatrix deviceA = toDevice(gpu);
+            DeviceMatrix deviceB = row.toDevice(gpu);
+            DeviceMatrix deviceOut = deviceA.addRowToRows(deviceB)) {
+            deviceOut.toMatrix(out);
         }
+        Metrics.operation("addRowToRows", Dispatcher.Backend.GPU, start, data.length);
+    }
 
-        Matrix result = new Matrix(rows, cols);
-
-        Pointer pointerA = Pointer.to(data);
-        Pointer pointerB = Pointer.to(row.data);
-        Pointer pointerOut = Pointer.to(result.data);
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryA = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerA, null);
-        cl_mem memoryB = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * row.data.length, pointerB, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
-
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryA));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryB));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
-
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1};
-        long global_work_sizes[] = new long[]{rows};
-
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
-
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
-
-        clReleaseMemObject(memoryA);
-        clReleaseMemObject(memoryB);
-        clReleaseMemObject(memoryOut);
+    public void addRowToRowsInPlace(GPU gpu, Matrix row) {
+        addRowToRowsInto(gpu, row, this);
+    }
 
+    public Matrix addColToCols(GPU gpu, Matrix col) {
+        Matrix result = new Matrix(rows, cols);
+        addColToColsInto(gpu, col, result);
         return result;
     }
 
-    public Matrix addColToCols(GPU gpu, Matrix col) {
+    public void addColToColsInto(GPU gpu, Matrix col, Matrix out) {
         if(rows != col.rows) {
             final int[] dimensionsA = {rows, cols};
             final int[] dimensionsB = {col.rows, col.cols};
             throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
+        requireShape(out, rows, cols);
 
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::addColToCols");
-
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::addColToCols not found to be loaded in GPU");
+        long start = Metrics.start();
+        try(DeviceMatrix deviceA = toDevice(gpu);
+            DeviceMatrix deviceB = col.toDevice(gpu);
+            DeviceMatrix deviceOut = deviceA.addColToCols(deviceB)) {
+            deviceOut.toMatrix(out);
         }
+        Metrics.operation("addColToCols", Dispatcher.Backend.GPU, start, data.length);
+    }
 
-        Matrix result = new Matrix(rows, cols);
-
-        Pointer pointerA = Pointer.to(data);
-        Pointer pointerB = Pointer.to(col.data);
-        Pointer pointerOut = Pointer.to(result.data);
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryA = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerA, null);
-        cl_mem memoryB = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * col.data.length, pointerB, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
-
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryA));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryB));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
-
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1};
-        long global_work_sizes[] = new long[]{rows};
-
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
-
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
-
-        clReleaseMemObject(memoryA);
-        clReleaseMemObject(memoryB);
-        clReleaseMemObject(memoryOut);
-
-        return result;
+    public void addColToColsInPlace(GPU gpu, Matrix col) {
+        addColToColsInto(gpu, col, this);
     }
 
     public Matrix relu(GPU gpu) {
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::relu");
-
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::relu not found to be loaded in GPU");
-        }
-
         Matrix result = new Matrix(rows, cols);
+        reluInto(gpu, result);
+        return result;
+    }
 
-        Pointer pointerIn = Pointer.to(data);
-        Pointer pointerOut = Pointer.to(result.data);
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryIn = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerIn, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
-
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryIn));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
-
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1};
-        long global_work_sizes[] = new long[]{rows};
-
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
+    public void reluInto(GPU gpu, Matrix out) {
+        requireShape(out, rows, cols);
 
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
+        long start = Metrics.start();
+        try(DeviceMatrix deviceIn = toDevice(gpu);
+            DeviceMatrix deviceOut = deviceIn.relu()) {
+            deviceOut.toMatrix(out);
+        }
+        Metrics.operation("relu", Dispatcher.Backend.GPU, start, data.length);
+    }
 
-        clReleaseMemObject(memoryIn);
-        clReleaseMemObject(memoryOut);
+    public void reluInPlace(GPU gpu) {
+        reluInto(gpu, this);
+    }
 
+    public Matrix horizontalSoftmax(GPU gpu) {
+        Matrix result = new Matrix(rows, cols);
+        horizontalSoftmaxInto(gpu, result);
         return result;
     }
 
-    public Matrix horizontalSoftmax(GPU gpu) {
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::horizontalSoftmax");
+    public void horizontalSoftmaxInto(GPU gpu, Matrix out) {
+        requireShape(out, rows, cols);
 
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::horizontalSoftmax not found to be loaded in GPU");
+        long start = Metrics.start();
+        try(DeviceMatrix deviceIn = toDevice(gpu);
+            DeviceMatrix deviceOut = deviceIn.horizontalSoftmax()) {
+            deviceOut.toMatrix(out);
         }
+        Metrics.operation("horizontalSoftmax", Dispatcher.Backend.GPU, start, 4.0 * data.length);
+    }
 
+    public void horizontalSoftmaxInPlace(GPU gpu) {
+        horizontalSoftmaxInto(gpu, this);
+    }
+
+    public Matrix verticalSoftmax(GPU gpu) {
         Matrix result = new Matrix(rows, cols);
+        verticalSoftmaxInto(gpu, result);
+        return result;
+    }
 
-        Pointer pointerIn = Pointer.to(data);
-        Pointer pointerOut = Pointer.to(result.data);
+    public void verticalSoftmaxInto(GPU gpu, Matrix out) {
+        requireShape(out, rows, cols);
 
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryIn = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerIn, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
+        long start = Metrics.start();
+        try(DeviceMatrix deviceIn = toDevice(gpu);
+            DeviceMatrix deviceOut = deviceIn.verticalSoftmax()) {
+            deviceOut.toMatrix(out);
+        }
+        Metrics.operation("verticalSoftmax", Dispatcher.Backend.GPU, start, 4.0 * data.length);
+    }
 
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryIn));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
+    public void verticalSoftmaxInPlace(GPU gpu) {
+        verticalSoftmaxInto(gpu, this);
+    }
 
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1};
-        long global_work_sizes[] = new long[]{rows};
+    // Asynchronous variants of the GPU operations. They only enqueue the transfers and the
+    // kernel and return right away; the future completes once the result is on the host.
 
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
+    public CompletableFuture<Matrix> multiplyAsync(GPU gpu, Matrix other) {
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
 
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
+        return enqueueAsync(gpu, other, DeviceMatrix::multiply);
+    }
 
-        clReleaseMemObject(memoryIn);
-        clReleaseMemObject(memoryOut);
+    public CompletableFuture<Matrix> addRowToRowsAsync(GPU gpu, Matrix row) {
+        if(cols != row.cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {row.rows, row.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
 
-        return result;
+        return enqueueAsync(gpu, row, DeviceMatrix::addRowToRows);
     }
 
-    public Matrix verticalSoftmax(GPU gpu) {
-        cl_context context = gpu.getContext();
-        cl_command_queue commandQueue = gpu.getCommandQueue();
-        cl_kernel kernel = gpu.getKernel("Matrices::verticalSoftmax");
-
-        if(kernel == null) {
-            throw new NullPointerException("Matrices::verticalSoftmax not found to be loaded in GPU");
+    public CompletableFuture<Matrix> addColToColsAsync(GPU gpu, Matrix col) {
+        if(rows != col.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {col.rows, col.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
         }
 
-        Matrix result = new Matrix(rows, cols);
-
-        Pointer pointerIn = Pointer.to(data);
-        Pointer pointerOut = Pointer.to(result.data);
+        return enqueueAsync(gpu, col, DeviceMatrix::addColToCols);
+    }
 
-        // Allocate the memory objects for the input- and output data
-        cl_mem memoryIn = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * data.length, pointerIn, null);
-        cl_mem memoryOut = clCreateBuffer(context,
-                CL_MEM_READ_WRITE,
-                Sizeof.cl_float * result.data.length, null, null);
+    public CompletableFuture<Matrix> reluAsync(GPU gpu) {
+        return enqueueAsync(gpu, null, (deviceIn, unused) -> deviceIn.relu());
+    }
 
-        // Set the arguments for the kernel
-        int argNum = 0;
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryOut));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_mem, Pointer.to(memoryIn));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{cols}));
-        clSetKernelArg(kernel, argNum++, Sizeof.cl_uint, Pointer.to(new int[]{rows}));
+    public CompletableFuture<Matrix> horizontalSoftmaxAsync(GPU gpu) {
+        return enqueueAsync(gpu, null, (deviceIn, unused) -> deviceIn.horizontalSoftmax());
+    }
 
-        // Set the work-item dimensions
-        long local_work_sizes[] = new long[]{1};
-        long global_work_sizes[] = new long[]{cols};
+    public CompletableFuture<Matrix> verticalSoftmaxAsync(GPU gpu) {
+        return enqueueAsync(gpu, null, (deviceIn, unused) -> deviceIn.verticalSoftmax());
+    }
 
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                global_work_sizes, local_work_sizes, 0, null, null);
+    // Uploads this (and other if not null), enqueues the operation and the read back. The
+    // device buffers are given back once the read has finished.
+    private CompletableFuture<Matrix> enqueueAsync(GPU gpu, Matrix other,
+                                                   BinaryOperator<DeviceMatrix> operation) {
+        List<DeviceMatrix> buffers = new ArrayList<>(3);
+        try {
+            DeviceMatrix deviceIn = DeviceMatrix.uploadAsync(gpu, this);
+            buffers.add(deviceIn);
+            DeviceMatrix deviceOther = null;
+            if(other != null) {
+                deviceOther = DeviceMatrix.uploadAsync(gpu, other);
+                buffers.add(deviceOther);
+            }
+            DeviceMatrix deviceOut = operation.apply(deviceIn, deviceOther);
+            buffers.add(deviceOut);
 
-        // Read the output data
-        clEnqueueReadBuffer(commandQueue, memoryOut, CL_TRUE, 0,
-                result.data.length * Sizeof.cl_float, pointerOut, 0, null, null);
+            return deviceOut.toMatrixAsync().whenComplete((result, error) -> buffers.forEach(DeviceMatrix::close));
+        }
+        catch(RuntimeException e) {
+            buffers.forEach(DeviceMatrix::close);
+            throw e;
+        }
+    }
 
-        clReleaseMemObject(memoryIn);
-        clReleaseMemObject(memoryOut);
+    private static void requireShape(Matrix out, int rows, int cols) {
+        if(out.rows != rows || out.cols != cols) {
+            final int[] dimensionsA = {out.rows, out.cols};
+            final int[] dimensionsB = {rows, cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+    }
 
-        return result;
+    private static void requireNotAliased(Matrix out, Matrix operand) {
+        if(out.data == operand.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
     }
 }
@@ -0,0 +1,63 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+// Groups direct matrices that share a lifetime, for example the temporaries of one batch:
+//     try(MatrixArena arena = new MatrixArena()) {
+//         DirectMatrix x = arena.copyOf(input);
+//         ...
+//     }
+// Closing the arena closes every matrix allocated from it that is still open.
+// An arena is meant to be used by one thread at a time.
+public class MatrixArena implements Closeable {
+    private List<DirectMatrix> matrices = new ArrayList<>();
+
+    public DirectMatrix allocate(int rows, int cols) {
+        if(matrices == null) {
+            throw new IllegalStateException("MatrixArena has already been closed.");
+        }
+        DirectMatrix matrix = new DirectMatrix(rows, cols);
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    public DirectMatrix copyOf(Matrix matrix) {
+        DirectMatrix result = allocate(matrix.rows, matrix.cols);
+        result.copyFrom(matrix);
+        return result;
+    }
+
+    public boolean isClosed() {
+        return matrices == null;
+    }
+
+    @Override
+    public void close() {
+        if(matrices == null) {
+            return;
+        }
+
+        // close everything even if one of them is still in use on a GPU
+        IllegalStateException failure = null;
+        for(DirectMatrix matrix : matrices) {
+            try {
+                matrix.close();
+            }
+            catch(IllegalStateException e) {
+                if(failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        matrices = null;
+
+        if(failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+// count matrices of the same rows x cols shape packed one after another in data, matrix i
+// starting at i * rows * cols. Multiplying two batches multiplies matching matrices in one
+// call: on the CPU the batch is split across threads and small matrices skip the packing
+// of the blocked GEMM, on the GPU the whole batch is a single kernel launch with one
+// buffer per operand instead of three buffers and a blocking read per product.
+// A batch of a single matrix is used in every product with the other operand's matrices,
+// a shared weight matrix for example.
+public class MatrixBatch {
+    public final int count;
+    public final int rows;
+    public final int cols;
+    public final float[] data;
+
+    public MatrixBatch(int count, int rows, int cols) {
+        this(count, rows, cols, new float[requireSize(count, rows, cols)]);
+    }
+
+    public MatrixBatch(int count, int rows, int cols, float[] data) {
+        int size = requireSize(count, rows, cols);
+        if(data.length != size) {
+            throw new IllegalArgumentException("Batch of " + count + " " + rows + "x" + cols +
+                    " matrices needs " + size + " values, got " + data.length);
+        }
+        this.count = count;
+        this.rows = rows;
+        this.cols = cols;
+        this.data = data;
+    }
+
+    // Packs copies of matrices, which must all have the same shape.
+    public static MatrixBatch of(Matrix... matrices) {
+        if(matrices.length == 0) {
+            throw new IllegalArgumentException("Cannot make a batch of no matrices.");
+        }
+        requireSameShapes(matrices);
+
+        MatrixBatch batch = new MatrixBatch(matrices.length, matrices[0].rows, matrices[0].cols);
+        for(int i = 0; i < matrices.length; i++) {
+            batch.set(i, matrices[i]);
+        }
+        return batch;
+    }
+
+    // Copies matrix index out of the batch.
+    public Matrix get(int index) {
+        Matrix result = new Matrix(rows, cols);
+        System.arraycopy(data, offset(index), result.data, 0, rows * cols);
+        return result;
+    }
+
+    public void set(int index, Matrix matrix) {
+        if(matrix.rows != rows || matrix.cols != cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {matrix.rows, matrix.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        System.arraycopy(matrix.data, 0, data, offset(index), rows * cols);
+    }
+
+    public Matrix[] toMatrices() {
+        Matrix[] result = new Matrix[count];
+        for(int i = 0; i < count; i++) {
+            result[i] = get(i);
+        }
+        return result;
+    }
+
+    public MatrixBatch multiply(MatrixBatch other) throws DimensionsMismatchException {
+        MatrixBatch result = new MatrixBatch(productCount(other), rows, other.cols);
+        multiplyInto(other, result);
+        return result;
+    }
+
+    public void multiplyInto(MatrixBatch other, MatrixBatch out) throws DimensionsMismatchException {
+        requireMultipliable(other, out);
+
+        int aSize = count == 1 ? 0 : rows * cols;
+        int bSize = other.count == 1 ? 0 : other.rows * other.cols;
+        int cSize = out.rows * out.cols;
+        long workPerMatrix = (long) rows * cols * other.cols;
+        if(Parallelism.isSequential(out.count, workPerMatrix)) {
+            multiplyRange(data, aSize, other.data, bSize, out.data, cSize, other.cols, 0, out.count);
+            return;
+        }
+
+        // split by matrices of the batch, each product is computed by a single thread
+        Parallelism.forRange(out.count, workPerMatrix, (start, end) ->
+                multiplyRange(data, aSize, other.data, bSize, out.data, cSize, other.cols, start, end));
+    }
+
+    // Multiplies a[i] * b[i] for every i. The matrices of each array must have the same shape.
+    public static Matrix[] multiply(Matrix[] a, Matrix[] b) throws DimensionsMismatchException {
+        requireMultipliable(a, b);
+
+        Matrix[] result = new Matrix[a.length];
+        for(int i = 0; i < a.length; i++) {
+            result[i] = new Matrix(a[i].rows, b[i].cols);
+        }
+        if(a.length == 0) {
+            return result;
+        }
+
+        long workPerMatrix = (long) a[0].rows * a[0].cols * b[0].cols;
+        if(Parallelism.isSequential(a.length, workPerMatrix)) {
+            multiplyRange(a, b, result, 0, a.length);
+            return result;
+        }
+
+        Parallelism.forRange(a.length, workPerMatrix, (start, end) -> multiplyRange(a, b, result, start, end));
+        return result;
+    }
+
+    public MatrixBatch multiply(GPU gpu, MatrixBatch other) {
+        MatrixBatch result = new MatrixBatch(productCount(other), rows, other.cols);
+        multiplyInto(gpu, other, result);
+        return result;
+    }
+
+    // Uploads both batches, multiplies them with one kernel launch and reads the result back.
+    // The kernel comes from kernels/Batched.cl, which is loaded on first use.
+    public void multiplyInto(GPU gpu, MatrixBatch other, MatrixBatch out) {
+        requireMultipliable(other, out);
+        if(out.data.length == 0) {
+            return;
+        }
+
+        // the packed data doubles as a count * rows x cols matrix, without copying it
+        try(DeviceMatrix deviceA = new Matrix(count * rows, cols, data).toDevice(gpu);
+            DeviceMatrix deviceB = new Matrix(other.count * other.rows, other.cols, other.data).toDevice(gpu);
+            DeviceMatrix deviceOut = DeviceMatrix.multiplyBatch(out.count, rows, cols, other.cols,
+                    deviceA, count == 1 ? 0 : rows * cols,
+                    deviceB, other.count == 1 ? 0 : other.rows * other.cols)) {
+            deviceOut.toMatrix(new Matrix(out.count * out.rows, out.cols, out.data));
+        }
+    }
+
+    // Packs both arrays and multiplies them in a single launch, see multiply(Matrix[], Matrix[]).
+    public static Matrix[] multiply(GPU gpu, Matrix[] a, Matrix[] b) {
+        requireMultipliable(a, b);
+        if(a.length == 0) {
+            return new Matrix[0];
+        }
+
+        return of(a).multiply(gpu, of(b)).toMatrices();
+    }
+
+    private int productCount(MatrixBatch other) {
+        return count == 1 ? other.count : count;
+    }
+
+    private int offset(int index) {
+        if(index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Matrix " + index + " outside of a batch of " + count);
+        }
+        return index * rows * cols;
+    }
+
+    // products count from start to end, operands of size 0 repeat their first matrix
+    private void multiplyRange(float[] a, int aSize, float[] b, int bSize, float[] c, int cSize,
+                               int bCols, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        for(int i = start; i < end; i++) {
+            multiply(kernels, rows, bCols, cols, a, i * aSize, b, i * bSize, c, i * cSize);
+        }
+    }
+
+    private static void multiplyRange(Matrix[] a, Matrix[] b, Matrix[] c, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        for(int i = start; i < end; i++) {
+            multiply(kernels, a[i].rows, b[i].cols, a[i].cols, a[i].data, 0, b[i].data, 0, c[i].data, 0);
+        }
+    }
+
+    private static void multiply(CpuKernels kernels, int m, int n, int k,
+                                 float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset) {
+        if(Gemm.isSmall(m, n, k)) {
+            Gemm.multiplySmall(kernels, m, n, k, a, aOffset, b, bOffset, c, cOffset);
+        }
+        else {
+            Gemm.multiply(kernels, m, n, k, a, aOffset, k, b, bOffset, n, c, cOffset, n);
+        }
+    }
+
+    private void requireMultipliable(MatrixBatch other, MatrixBatch out) {
+        if(cols != other.rows || (count != other.count && count != 1 && other.count != 1)) {
+            final int[] dimensionsA = {count, rows, cols};
+            final int[] dimensionsB = {other.count, other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.count != productCount(other) || out.rows != rows || out.cols != other.cols) {
+            final int[] dimensionsA = {out.count, out.rows, out.cols};
+            final int[] dimensionsB = {productCount(other), rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == data || out.data == other.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+    }
+
+    private static void requireMultipliable(Matrix[] a, Matrix[] b) {
+        if(a.length != b.length) {
+            throw new IllegalArgumentException("Batches of " + a.length + " and " + b.length + " matrices.");
+        }
+        if(a.length == 0) {
+            return;
+        }
+        requireSameShapes(a);
+        requireSameShapes(b);
+        if(a[0].cols != b[0].rows) {
+            final int[] dimensionsA = {a[0].rows, a[0].cols};
+            final int[] dimensionsB = {b[0].rows, b[0].cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+    }
+
+    private static void requireSameShapes(Matrix[] matrices) {
+        for(Matrix matrix : matrices) {
+            if(matrix.rows != matrices[0].rows || matrix.cols != matrices[0].cols) {
+                final int[] dimensionsA = {matrices[0].rows, matrices[0].cols};
+                final int[] dimensionsB = {matrix.rows, matrix.cols};
+                throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+            }
+        }
+    }
+
+    private static int requireSize(int count, int rows, int cols) {
+        if(count < 0 || rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Batch dimensions must not be negative: " +
+                    count + " x " + rows + "x" + cols);
+        }
+        long size = (long) count * rows * cols;
+        if(size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Batch too large for an array: " + count + " x " + rows + "x" + cols);
+        }
+        return (int) size;
+    }
+}
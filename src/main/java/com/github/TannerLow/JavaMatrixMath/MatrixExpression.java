@@ -0,0 +1,245 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A lazily evaluated chain of Matrix operations, for example
+//     x.lazy().multiply(w).addRowToRows(b).relu().horizontalSoftmax().evaluate()
+// Nothing is computed until evaluate. Element-wise operations (addRowToRows, addColToCols,
+// relu, reluDerivative) following a multiply are fused into its output loop, other runs of
+// element-wise operations are done in a single pass. Softmax needs whole rows or columns
+// and ends a fused chain. Intermediate results are reused in place where possible, so a
+// whole layer allocates only its output.
+// Expressions are immutable, every operation returns a new expression.
+public final class MatrixExpression {
+    private enum Kind {
+        MULTIPLY,
+        ADD_ROW,
+        ADD_COL,
+        RELU,
+        RELU_DERIVATIVE,
+        HORIZONTAL_SOFTMAX,
+        VERTICAL_SOFTMAX
+    }
+
+    private static final class Step {
+        final Kind kind;
+        final Matrix operand;
+
+        Step(Kind kind, Matrix operand) {
+            this.kind = kind;
+            this.operand = operand;
+        }
+    }
+
+    public final int rows;
+    public final int cols;
+
+    private final Matrix source;
+    private final List<Step> steps;
+
+    private MatrixExpression(Matrix source, List<Step> steps, int rows, int cols) {
+        this.source = source;
+        this.steps = steps;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public static MatrixExpression of(Matrix matrix) {
+        return new MatrixExpression(matrix, Collections.emptyList(), matrix.rows, matrix.cols);
+    }
+
+    public MatrixExpression multiply(Matrix other) {
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return append(new Step(Kind.MULTIPLY, other), rows, other.cols);
+    }
+
+    public MatrixExpression addRowToRows(Matrix row) {
+        if(cols != row.cols) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {row.rows, row.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return append(new Step(Kind.ADD_ROW, row), rows, cols);
+    }
+
+    public MatrixExpression addColToCols(Matrix col) {
+        if(rows != col.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {col.rows, col.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+
+        return append(new Step(Kind.ADD_COL, col), rows, cols);
+    }
+
+    public MatrixExpression relu() {
+        return append(new Step(Kind.RELU, null), rows, cols);
+    }
+
+    // same as Matrix.vectorizedReluDerivative
+    public MatrixExpression reluDerivative() {
+        return append(new Step(Kind.RELU_DERIVATIVE, null), rows, cols);
+    }
+
+    public MatrixExpression horizontalSoftmax() {
+        return append(new Step(Kind.HORIZONTAL_SOFTMAX, null), rows, cols);
+    }
+
+    public MatrixExpression verticalSoftmax() {
+        return append(new Step(Kind.VERTICAL_SOFTMAX, null), rows, cols);
+    }
+
+    // Evaluates the expression on the CPU. The source matrix and all operands are only read.
+    public Matrix evaluate() {
+        Matrix value = source;
+        // whether value is an intermediate result that may be overwritten
+        boolean owned = false;
+
+        int index = 0;
+        while(index < steps.size()) {
+            Step step = steps.get(index);
+            switch(step.kind) {
+                case MULTIPLY: {
+                    FusedEpilogue epilogue = collectEpilogue(index + 1);
+                    Matrix result = new Matrix(value.rows, step.operand.cols);
+                    value.multiplyInto(step.operand, result, epilogue.isEmpty() ? null : epilogue);
+                    value = result;
+                    index += 1 + epilogue.size();
+                    break;
+                }
+                case HORIZONTAL_SOFTMAX: {
+                    Matrix result = owned ? value : new Matrix(value.rows, value.cols);
+                    value.horizontalSoftmaxInto(result);
+                    value = result;
+                    index++;
+                    break;
+                }
+                case VERTICAL_SOFTMAX: {
+                    Matrix result = owned ? value : new Matrix(value.rows, value.cols);
+                    value.verticalSoftmaxInto(result);
+                    value = result;
+                    index++;
+                    break;
+                }
+                default: {
+                    FusedEpilogue epilogue = collectEpilogue(index);
+                    Matrix result = owned ? value : new Matrix(value.rows, value.cols);
+                    epilogue.applyTo(value, result);
+                    value = result;
+                    index += epilogue.size();
+                    break;
+                }
+            }
+            owned = true;
+        }
+
+        // an empty expression still returns a new matrix
+        if(!owned) {
+            value = new Matrix(source.rows, source.cols, source.data.clone());
+        }
+        return value;
+    }
+
+    // Evaluates the expression on the GPU. Every multiply together with the element-wise
+    // operations after it runs as one generated kernel, as does every other run of
+    // element-wise operations. Only the source, the operands and the result are transferred.
+    public Matrix evaluate(GPU gpu) {
+        List<DeviceMatrix> buffers = new ArrayList<>();
+        try {
+            DeviceMatrix value = DeviceMatrix.upload(gpu, source);
+            buffers.add(value);
+
+            int index = 0;
+            while(index < steps.size()) {
+                Step step = steps.get(index);
+                switch(step.kind) {
+                    case MULTIPLY: {
+                        FusedEpilogue epilogue = collectEpilogue(index + 1);
+                        DeviceMatrix other = DeviceMatrix.upload(gpu, step.operand);
+                        buffers.add(other);
+                        if(epilogue.isEmpty()) {
+                            value = value.multiply(other);
+                        }
+                        else {
+                            value = value.multiply(other, epilogue, upload(gpu, epilogue, buffers));
+                        }
+                        index += 1 + epilogue.size();
+                        break;
+                    }
+                    case HORIZONTAL_SOFTMAX:
+                        value = value.horizontalSoftmax();
+                        index++;
+                        break;
+                    case VERTICAL_SOFTMAX:
+                        value = value.verticalSoftmax();
+                        index++;
+                        break;
+                    default: {
+                        FusedEpilogue epilogue = collectEpilogue(index);
+                        value = value.apply(epilogue, upload(gpu, epilogue, buffers));
+                        index += epilogue.size();
+                        break;
+                    }
+                }
+                buffers.add(value);
+            }
+
+            return value.toMatrix();
+        }
+        finally {
+            buffers.forEach(DeviceMatrix::close);
+        }
+    }
+
+    // the element-wise steps starting at index, up to the next multiply or softmax
+    private FusedEpilogue collectEpilogue(int index) {
+        FusedEpilogue epilogue = new FusedEpilogue();
+        for(; index < steps.size(); index++) {
+            Step step = steps.get(index);
+            switch(step.kind) {
+                case ADD_ROW:
+                    epilogue.add(FusedEpilogue.Operation.ADD_ROW, step.operand);
+                    break;
+                case ADD_COL:
+                    epilogue.add(FusedEpilogue.Operation.ADD_COL, step.operand);
+                    break;
+                case RELU:
+                    epilogue.add(FusedEpilogue.Operation.RELU, null);
+                    break;
+                case RELU_DERIVATIVE:
+                    epilogue.add(FusedEpilogue.Operation.RELU_DERIVATIVE, null);
+                    break;
+                default:
+                    return epilogue;
+            }
+        }
+        return epilogue;
+    }
+
+    private static List<DeviceMatrix> upload(GPU gpu, FusedEpilogue epilogue, List<DeviceMatrix> buffers) {
+        List<DeviceMatrix> operands = new ArrayList<>();
+        for(Matrix operand : epilogue.getOperands()) {
+            DeviceMatrix deviceOperand = DeviceMatrix.upload(gpu, operand);
+            buffers.add(deviceOperand);
+            operands.add(deviceOperand);
+        }
+        return operands;
+    }
+
+    private MatrixExpression append(Step step, int resultRows, int resultCols) {
+        List<Step> newSteps = new ArrayList<>(steps.size() + 1);
+        newSteps.addAll(steps);
+        newSteps.add(step);
+        return new MatrixExpression(source, Collections.unmodifiableList(newSteps), resultRows, resultCols);
+    }
+}
@@ -0,0 +1,348 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Binary file format for a single matrix, made so that loading is a memory map instead of
+// parsing. Layout, header fields little-endian:
+//     offset  size  field
+//          0     4  magic "JMAT"
+//          4     4  format version, currently 1
+//          8     4  element type, 1 = 32 bit IEEE float
+//         12     4  payload byte order, 0 = little-endian, 1 = big-endian
+//         16     4  payload alignment in bytes, a power of two
+//         20     4  rows
+//         24     4  cols
+//         28     4  reserved, 0
+//         32     8  payload offset, a multiple of the alignment
+//         40    24  reserved, 0
+// The payload holds rows * cols floats in row-major order. It is written in the native
+// byte order, so map() gives a DirectMatrix over the file without copying or converting.
+// Files too large to map or to hold in memory are read and written in blocks through
+// openSource and createSink.
+public final class MatrixFile {
+    public static final int VERSION = 1;
+    public static final int DEFAULT_ALIGNMENT = 64;
+
+    private static final int MAGIC = 0x54414D4A; // "JMAT" read little-endian
+    private static final int FLOAT32 = 1;
+    private static final int LITTLE_ENDIAN = 0;
+    private static final int BIG_ENDIAN = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int CHUNK_FLOATS = 1 << 18;
+
+    private MatrixFile() {}
+
+    public static void write(Path path, Matrix matrix) throws IOException {
+        write(path, matrix.rows, matrix.cols, FloatBuffer.wrap(matrix.data));
+    }
+
+    public static void write(Path path, DirectMatrix matrix) throws IOException {
+        write(path, matrix.rows, matrix.cols, matrix.buffer().duplicate());
+    }
+
+    // Reads the file into a new heap matrix with a single bulk copy.
+    public static Matrix read(Path path) throws IOException {
+        try(DirectMatrix mapped = map(path)) {
+            return mapped.toMatrix();
+        }
+    }
+
+    // Maps the payload read-only. The returned matrix shares the file's pages with the
+    // operating system: nothing is read until it is accessed and the pages are not counted
+    // against the Java heap. A file written on a machine of the other byte order is copied
+    // into a native order DirectMatrix instead.
+    public static DirectMatrix map(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path);
+            // DirectMatrix is limited to what a single buffer can address
+            if(header.payloadBytes() > Integer.MAX_VALUE) {
+                throw new IOException("Matrix too large to map, use openSource instead: " + path);
+            }
+
+            MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.payloadOffset, header.payloadBytes());
+            if(header.byteOrder == ByteOrder.nativeOrder()) {
+                return new DirectMatrix(header.rows, header.cols, payload);
+            }
+
+            DirectMatrix result = new DirectMatrix(header.rows, header.cols);
+            result.buffer().put(0, payload.order(header.byteOrder).asFloatBuffer(), 0, header.rows * header.cols);
+            return result;
+        }
+    }
+
+    // Opens a file for reading blocks, for matrices that are too large to map or to load.
+    public static Source openSource(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new Source(channel, readHeader(channel, path));
+        }
+        catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Creates a file for a rows x cols matrix that is written in blocks. Parts that are
+    // never written read as zero.
+    public static Sink createSink(Path path, int rows, int cols) throws IOException {
+        if(rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must not be negative: " + rows + "x" + cols);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            Header header = new Header(rows, cols, ByteOrder.nativeOrder(), roundUp(HEADER_BYTES, DEFAULT_ALIGNMENT));
+            writeFully(channel, header.toBytes(), 0);
+            // sizes the file, the rest of the payload is a hole filled with zeros
+            if(header.payloadBytes() > 0) {
+                writeFully(channel, ByteBuffer.allocate(1), header.payloadOffset + header.payloadBytes() - 1);
+            }
+            return new Sink(channel, header);
+        }
+        catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void write(Path path, int rows, int cols, FloatBuffer data) throws IOException {
+        Header header = new Header(rows, cols, ByteOrder.nativeOrder(), roundUp(HEADER_BYTES, DEFAULT_ALIGNMENT));
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header.toBytes(), 0);
+            writeFloats(channel, header.payloadOffset, header.chunk(), data, 0, rows * cols);
+        }
+    }
+
+    // Writes count floats of data starting at index to the file at position. The floats
+    // go through chunk, direct memory in the file's byte order.
+    private static void writeFloats(FileChannel channel, long position, ByteBuffer chunk,
+                                    FloatBuffer data, int index, int count) throws IOException {
+        FloatBuffer chunkFloats = chunk.clear().asFloatBuffer();
+        int chunkCapacity = chunk.capacity() / Float.BYTES;
+        for(int start = 0; start < count; start += chunkCapacity) {
+            int length = Math.min(chunkCapacity, count - start);
+            chunkFloats.put(0, data, index + start, length);
+            chunk.clear().limit(length * Float.BYTES);
+            writeFully(channel, chunk, position + (long) start * Float.BYTES);
+        }
+    }
+
+    // the reverse of writeFloats
+    private static void readFloats(FileChannel channel, long position, ByteBuffer chunk,
+                                   float[] data, int index, int count) throws IOException {
+        FloatBuffer chunkFloats = chunk.clear().asFloatBuffer();
+        int chunkCapacity = chunk.capacity() / Float.BYTES;
+        for(int start = 0; start < count; start += chunkCapacity) {
+            int length = Math.min(chunkCapacity, count - start);
+            chunk.clear().limit(length * Float.BYTES);
+            long chunkPosition = position + (long) start * Float.BYTES;
+            while(chunk.hasRemaining()) {
+                if(channel.read(chunk, chunkPosition + chunk.position()) < 0) {
+                    throw new IOException("Unexpected end of matrix file.");
+                }
+            }
+            chunkFloats.get(0, data, index + start, length);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    static void requireBlockInBounds(int rows, int cols, int row, int col, Matrix block) {
+        if(row < 0 || col < 0 || row + block.rows > rows || col + block.cols > cols) {
+            throw new IndexOutOfBoundsException(block.rows + "x" + block.cols + " block at (" + row + ", " + col +
+                    ") outside of " + rows + "x" + cols);
+        }
+    }
+
+    private static Header readHeader(FileChannel channel, Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new IOException("Not a matrix file, header is truncated: " + path);
+            }
+        }
+        buffer.flip();
+
+        if(buffer.getInt() != MAGIC) {
+            throw new IOException("Not a matrix file: " + path);
+        }
+        int version = buffer.getInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported matrix file version " + version + ": " + path);
+        }
+        int elementType = buffer.getInt();
+        if(elementType != FLOAT32) {
+            throw new IOException("Unsupported matrix element type " + elementType + ": " + path);
+        }
+        int byteOrder = buffer.getInt();
+        if(byteOrder != LITTLE_ENDIAN && byteOrder != BIG_ENDIAN) {
+            throw new IOException("Invalid byte order " + byteOrder + ": " + path);
+        }
+        int alignment = buffer.getInt();
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        buffer.getInt();
+        long payloadOffset = buffer.getLong();
+
+        if(alignment <= 0 || Integer.bitCount(alignment) != 1 || payloadOffset % alignment != 0 ||
+           payloadOffset < HEADER_BYTES) {
+            throw new IOException("Invalid payload alignment or offset: " + path);
+        }
+        if(rows < 0 || cols < 0) {
+            throw new IOException("Invalid matrix dimensions " + rows + "x" + cols + ": " + path);
+        }
+
+        Header header = new Header(rows, cols, byteOrder == LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN,
+                payloadOffset);
+        if(payloadOffset + header.payloadBytes() > channel.size()) {
+            throw new IOException("Matrix file is truncated: " + path);
+        }
+        return header;
+    }
+
+    private static long roundUp(long value, long multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private static final class Header {
+        final int rows;
+        final int cols;
+        final ByteOrder byteOrder;
+        final long payloadOffset;
+
+        Header(int rows, int cols, ByteOrder byteOrder, long payloadOffset) {
+            this.rows = rows;
+            this.cols = cols;
+            this.byteOrder = byteOrder;
+            this.payloadOffset = payloadOffset;
+        }
+
+        long payloadBytes() {
+            return (long) Float.BYTES * rows * cols;
+        }
+
+        // byte position of element (row, col)
+        long position(int row, int col) {
+            return payloadOffset + ((long) row * cols + col) * Float.BYTES;
+        }
+
+        // transfer buffer for the payload, direct memory in the payload's byte order
+        ByteBuffer chunk() {
+            long floats = Math.max(1, Math.min(CHUNK_FLOATS, (long) rows * cols));
+            return ByteBuffer.allocateDirect((int) floats * Float.BYTES).order(byteOrder);
+        }
+
+        ByteBuffer toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate((int) payloadOffset).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(FLOAT32);
+            buffer.putInt(byteOrder == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN);
+            buffer.putInt(DEFAULT_ALIGNMENT);
+            buffer.putInt(rows);
+            buffer.putInt(cols);
+            buffer.putInt(0);
+            buffer.putLong(payloadOffset);
+            return buffer.clear();
+        }
+    }
+
+    // Reads blocks of a matrix file. Reads are synchronized, so a source may be shared
+    // between threads.
+    public static final class Source implements MatrixSource, Closeable {
+        private final FileChannel channel;
+        private final Header header;
+        private final ByteBuffer chunk;
+
+        private Source(FileChannel channel, Header header) {
+            this.channel = channel;
+            this.header = header;
+            this.chunk = header.chunk();
+        }
+
+        @Override
+        public int rows() {
+            return header.rows;
+        }
+
+        @Override
+        public int cols() {
+            return header.cols;
+        }
+
+        @Override
+        public synchronized void read(int row, int col, Matrix block) throws IOException {
+            requireBlockInBounds(header.rows, header.cols, row, col, block);
+            if(block.cols == header.cols) {
+                // whole rows are one contiguous run
+                readFloats(channel, header.position(row, 0), chunk, block.data, 0, block.data.length);
+                return;
+            }
+            for(int r = 0; r < block.rows; r++) {
+                readFloats(channel, header.position(row + r, col), chunk, block.data, r * block.cols, block.cols);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Writes blocks of a matrix file created by createSink.
+    public static final class Sink implements MatrixSink, Closeable {
+        private final FileChannel channel;
+        private final Header header;
+        private final ByteBuffer chunk;
+
+        private Sink(FileChannel channel, Header header) {
+            this.channel = channel;
+            this.header = header;
+            this.chunk = header.chunk();
+        }
+
+        @Override
+        public int rows() {
+            return header.rows;
+        }
+
+        @Override
+        public int cols() {
+            return header.cols;
+        }
+
+        @Override
+        public synchronized void write(int row, int col, Matrix block) throws IOException {
+            requireBlockInBounds(header.rows, header.cols, row, col, block);
+            FloatBuffer data = FloatBuffer.wrap(block.data);
+            if(block.cols == header.cols) {
+                writeFloats(channel, header.position(row, 0), chunk, data, 0, block.data.length);
+                return;
+            }
+            for(int r = 0; r < block.rows; r++) {
+                writeFloats(channel, header.position(row + r, col), chunk, data, r * block.cols, block.cols);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.IOException;
+
+// A row-major matrix that is written block by block, see MatrixFile.createSink for a file
+// on disk and StreamingMultiply for a user.
+public interface MatrixSink {
+    int rows();
+
+    int cols();
+
+    // Stores block as the block.rows x block.cols elements starting at (row, col).
+    void write(int row, int col, Matrix block) throws IOException;
+
+    static MatrixSink of(Matrix matrix) {
+        return new MatrixSink() {
+            @Override
+            public int rows() {
+                return matrix.rows;
+            }
+
+            @Override
+            public int cols() {
+                return matrix.cols;
+            }
+
+            @Override
+            public void write(int row, int col, Matrix block) {
+                MatrixFile.requireBlockInBounds(matrix.rows, matrix.cols, row, col, block);
+                for(int r = 0; r < block.rows; r++) {
+                    System.arraycopy(block.data, r * block.cols, matrix.data, (row + r) * matrix.cols + col, block.cols);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.IOException;
+
+// A row-major matrix that is read block by block, so it never has to be in memory as a
+// whole. See MatrixFile.openSource for a file on disk and StreamingMultiply for a user.
+public interface MatrixSource {
+    int rows();
+
+    int cols();
+
+    // Fills block with the block.rows x block.cols elements starting at (row, col).
+    void read(int row, int col, Matrix block) throws IOException;
+
+    static MatrixSource of(Matrix matrix) {
+        return new MatrixSource() {
+            @Override
+            public int rows() {
+                return matrix.rows;
+            }
+
+            @Override
+            public int cols() {
+                return matrix.cols;
+            }
+
+            @Override
+            public void read(int row, int col, Matrix block) {
+                MatrixFile.requireBlockInBounds(matrix.rows, matrix.cols, row, col, block);
+                for(int r = 0; r < block.rows; r++) {
+                    System.arraycopy(matrix.data, (row + r) * matrix.cols + col, block.data, r * block.cols, block.cols);
+                }
+            }
+        };
+    }
+
+    // Reads from a direct matrix, for example a file mapped with MatrixFile.map.
+    static MatrixSource of(DirectMatrix matrix) {
+        return new MatrixSource() {
+            @Override
+            public int rows() {
+                return matrix.rows;
+            }
+
+            @Override
+            public int cols() {
+                return matrix.cols;
+            }
+
+            @Override
+            public void read(int row, int col, Matrix block) {
+                MatrixFile.requireBlockInBounds(matrix.rows, matrix.cols, row, col, block);
+                for(int r = 0; r < block.rows; r++) {
+                    matrix.buffer().get((row + r) * matrix.cols + col, block.data, r * block.cols, block.cols);
+                }
+            }
+        };
+    }
+}
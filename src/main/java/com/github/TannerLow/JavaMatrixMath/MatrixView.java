@@ -0,0 +1,169 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+// A rows x cols window onto the data of a Matrix, read through an offset and a row and a
+// column stride: element (row, col) is source.data[offset + row * rowStride + col * colStride].
+// transpose(), rows(start, end) and cols(start, end) only change these numbers, so the
+// transpose of a weight matrix or a mini-batch slice of the inputs costs nothing to make.
+// A view shares the data of its matrix and sees every later change to it.
+// The multiplications read both operands through their strides, on the CPU and in
+// Matrices.cl, so A^T * B and A * B^T never materialize the transposed matrix.
+public final class MatrixView {
+    public final int rows;
+    public final int cols;
+
+    final Matrix source;
+    final int offset;
+    final int rowStride;
+    final int colStride;
+    private final boolean transposed;
+
+    private MatrixView(Matrix source, int rows, int cols, int offset, int rowStride, int colStride,
+                       boolean transposed) {
+        this.source = source;
+        this.rows = rows;
+        this.cols = cols;
+        this.offset = offset;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+        this.transposed = transposed;
+    }
+
+    // The whole matrix, see also Matrix.view().
+    public static MatrixView of(Matrix matrix) {
+        return new MatrixView(matrix, matrix.rows, matrix.cols, 0, matrix.cols, 1, false);
+    }
+
+    public MatrixView transpose() {
+        return new MatrixView(source, cols, rows, offset, colStride, rowStride, !transposed);
+    }
+
+    // Rows [start, end) of this view, a mini-batch for example.
+    public MatrixView rows(int start, int end) {
+        requireRange(start, end, rows);
+        return new MatrixView(source, end - start, cols, offset + start * rowStride, rowStride, colStride,
+                transposed);
+    }
+
+    // Columns [start, end) of this view.
+    public MatrixView cols(int start, int end) {
+        requireRange(start, end, cols);
+        return new MatrixView(source, rows, end - start, offset + start * colStride, rowStride, colStride,
+                transposed);
+    }
+
+    // Whether this view reads its matrix transposed, columns of the view along its rows.
+    public boolean isTransposed() {
+        return transposed;
+    }
+
+    public Matrix getSource() {
+        return source;
+    }
+
+    public float get(int row, int col) {
+        if(row < 0 || row >= rows || col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException("(" + row + ", " + col + ") outside of " + rows + "x" + cols);
+        }
+        return source.data[offset + row * rowStride + col * colStride];
+    }
+
+    // Copies the view into a new row-major matrix.
+    public Matrix toMatrix() {
+        Matrix result = new Matrix(rows, cols);
+        for(int row = 0; row < rows; row++) {
+            int index = offset + row * rowStride;
+            for(int col = 0; col < cols; col++) {
+                result.data[row * cols + col] = source.data[index + col * colStride];
+            }
+        }
+        return result;
+    }
+
+    public Matrix multiply(MatrixView other) throws DimensionsMismatchException {
+        Matrix result = new Matrix(rows, other.cols);
+        multiplyInto(other, result);
+        return result;
+    }
+
+    public Matrix multiply(Matrix other) throws DimensionsMismatchException {
+        return multiply(of(other));
+    }
+
+    // out = this * other, bitwise the same as multiplying the materialized views.
+    public void multiplyInto(MatrixView other, Matrix out) throws DimensionsMismatchException {
+        requireMultipliable(other, out);
+
+        // Gemm splits the work across threads like for Matrix.multiplyInto
+        Gemm.multiply(CpuKernels.get(), rows, other.cols, cols,
+                source.data, offset, rowStride, colStride,
+                other.source.data, other.offset, other.rowStride, other.colStride,
+                out.data, 0, out.cols,
+                null);
+    }
+
+    public Matrix multiply(GPU gpu, MatrixView other) {
+        Matrix result = new Matrix(rows, other.cols);
+        multiplyInto(gpu, other, result);
+        return result;
+    }
+
+    // Uploads the part of each matrix the views read, once if they share a matrix, and
+    // multiplies them with Matrices::stridedMatrixMultiply, which must have been loaded.
+    public void multiplyInto(GPU gpu, MatrixView other, Matrix out) {
+        requireMultipliable(other, out);
+
+        boolean shared = other.source == source;
+        int aStart = shared ? Math.min(spanStart(), other.spanStart()) : spanStart();
+        int aEnd = shared ? Math.max(spanEnd(), other.spanEnd()) : spanEnd();
+        int bStart = shared ? aStart : other.spanStart();
+        try(DeviceMatrix deviceA = DeviceMatrix.upload(gpu, source.data, aStart, 1, aEnd - aStart);
+            DeviceMatrix deviceB = shared ? null :
+                    DeviceMatrix.upload(gpu, other.source.data, bStart, 1, other.spanEnd() - bStart);
+            DeviceMatrix deviceOut = DeviceMatrix.multiply(shifted(aStart), deviceA, other.shifted(bStart),
+                    shared ? deviceA : deviceB)) {
+            deviceOut.toMatrix(out);
+        }
+    }
+
+    // first index of source.data the view reads
+    private int spanStart() {
+        return offset;
+    }
+
+    // one past the last index of source.data the view reads, the strides are positive
+    private int spanEnd() {
+        if(rows == 0 || cols == 0) {
+            return offset;
+        }
+        return offset + (rows - 1) * rowStride + (cols - 1) * colStride + 1;
+    }
+
+    // the same view of data uploaded from start on
+    private MatrixView shifted(int start) {
+        return new MatrixView(source, rows, cols, offset - start, rowStride, colStride, transposed);
+    }
+
+    private void requireMultipliable(MatrixView other, Matrix out) {
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.rows != rows || out.cols != other.cols) {
+            final int[] dimensionsA = {out.rows, out.cols};
+            final int[] dimensionsB = {rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == source.data || out.data == other.source.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+    }
+
+    private static void requireRange(int start, int end, int size) {
+        if(start < 0 || end > size || start > end) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") outside of [0, " + size + ")");
+        }
+    }
+}
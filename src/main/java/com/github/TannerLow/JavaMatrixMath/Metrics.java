@@ -0,0 +1,80 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Reports operation timings, transfers, kernel runs and buffer allocations to the
+// registered listeners, see MetricsListener and MetricsRecorder. Nothing is measured while
+// no listener is registered: every call site costs one volatile read then.
+// Device-side kernel and transfer times need a GPU with profiling enabled, see
+// GPU.setProfiling.
+public final class Metrics {
+    public enum Transfer {
+        HOST_TO_DEVICE,
+        DEVICE_TO_HOST
+    }
+
+    private static final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private static volatile boolean enabled = false;
+
+    private Metrics() {}
+
+    public static synchronized void addListener(MetricsListener listener) {
+        if(listener == null) {
+            throw new NullPointerException("Metrics listener must not be null.");
+        }
+        listeners.add(listener);
+        enabled = true;
+    }
+
+    public static synchronized void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+        enabled = !listeners.isEmpty();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Start time for operation(...), 0 while disabled.
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void operation(String operation, Dispatcher.Backend backend, long start, double flops) {
+        if(!enabled || start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        for(MetricsListener listener : listeners) {
+            listener.onOperation(operation, backend, nanos, flops);
+        }
+    }
+
+    static void transfer(Transfer direction, long bytes, long deviceNanos) {
+        if(!enabled) {
+            return;
+        }
+        for(MetricsListener listener : listeners) {
+            listener.onTransfer(direction, bytes, deviceNanos);
+        }
+    }
+
+    static void kernel(String kernelName, long deviceNanos) {
+        if(!enabled) {
+            return;
+        }
+        for(MetricsListener listener : listeners) {
+            listener.onKernel(kernelName, deviceNanos);
+        }
+    }
+
+    static void bufferAcquired(long bytes, boolean reused) {
+        if(!enabled) {
+            return;
+        }
+        for(MetricsListener listener : listeners) {
+            listener.onBufferAcquired(bytes, reused);
+        }
+    }
+}
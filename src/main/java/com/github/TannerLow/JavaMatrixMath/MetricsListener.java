@@ -0,0 +1,23 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+// Receives the measurements reported through Metrics. Methods may be called from any
+// thread, kernel and transfer timings from a driver thread, so they must be thread-safe
+// and return quickly.
+public interface MetricsListener {
+    // A Matrix operation finished after nanos of wall time, GPU operations including
+    // their transfers.
+    default void onOperation(String operation, Dispatcher.Backend backend, long nanos, double flops) {
+    }
+
+    // deviceNanos is the time the device spent on the copy, -1 without GPU profiling.
+    default void onTransfer(Metrics.Transfer direction, long bytes, long deviceNanos) {
+    }
+
+    // Time a kernel ran on the device, only reported with GPU profiling.
+    default void onKernel(String kernelName, long deviceNanos) {
+    }
+
+    // A device buffer was taken from the pool, reused or newly allocated.
+    default void onBufferAcquired(long bytes, boolean reused) {
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Aggregates everything reported through Metrics: counts, total time, achieved GFLOP/s
+// and a latency histogram per operation and backend, bytes moved in each direction,
+// device time per kernel and buffer allocations. Register it with Metrics.addListener and
+// read it directly or over JMX after registerMBean().
+public class MetricsRecorder implements MetricsListener, MetricsRecorderMXBean {
+    public static final String DEFAULT_OBJECT_NAME = "com.github.TannerLow.JavaMatrixMath:type=MetricsRecorder";
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+    private final Map<String, OperationStats> kernels = new ConcurrentHashMap<>();
+    private final LongAdder hostToDeviceBytes = new LongAdder();
+    private final LongAdder deviceToHostBytes = new LongAdder();
+    private final LongAdder transferDeviceNanos = new LongAdder();
+    private final LongAdder bufferAllocations = new LongAdder();
+    private final LongAdder bufferReuses = new LongAdder();
+
+    @Override
+    public void onOperation(String operation, Dispatcher.Backend backend, long nanos, double flops) {
+        operations.computeIfAbsent(operation + "/" + backend, key -> new OperationStats()).add(nanos, flops);
+    }
+
+    @Override
+    public void onTransfer(Metrics.Transfer direction, long bytes, long deviceNanos) {
+        if(direction == Metrics.Transfer.HOST_TO_DEVICE) {
+            hostToDeviceBytes.add(bytes);
+        }
+        else {
+            deviceToHostBytes.add(bytes);
+        }
+        if(deviceNanos > 0) {
+            transferDeviceNanos.add(deviceNanos);
+        }
+    }
+
+    @Override
+    public void onKernel(String kernelName, long deviceNanos) {
+        kernels.computeIfAbsent(kernelName, key -> new OperationStats()).add(deviceNanos, 0);
+    }
+
+    @Override
+    public void onBufferAcquired(long bytes, boolean reused) {
+        if(reused) {
+            bufferReuses.increment();
+        }
+        else {
+            bufferAllocations.increment();
+        }
+    }
+
+    public ObjectName registerMBean() throws JMException {
+        return registerMBean(new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    public ObjectName registerMBean(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    public void unregisterMBean(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        operations.forEach((key, stats) -> result.put(key, stats.count()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getOperationNanos() {
+        Map<String, Long> result = new TreeMap<>();
+        operations.forEach((key, stats) -> result.put(key, stats.nanos()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getOperationGflops() {
+        Map<String, Double> result = new TreeMap<>();
+        operations.forEach((key, stats) -> result.put(key, stats.gflops()));
+        return result;
+    }
+
+    @Override
+    public long[] getLatencyHistogram(String operationKey) {
+        OperationStats stats = operations.get(operationKey);
+        return stats == null ? new long[HISTOGRAM_BUCKETS] : stats.histogram();
+    }
+
+    @Override
+    public long getHostToDeviceBytes() {
+        return hostToDeviceBytes.sum();
+    }
+
+    @Override
+    public long getDeviceToHostBytes() {
+        return deviceToHostBytes.sum();
+    }
+
+    @Override
+    public long getTransferDeviceNanos() {
+        return transferDeviceNanos.sum();
+    }
+
+    @Override
+    public Map<String, Long> getKernelCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        kernels.forEach((key, stats) -> result.put(key, stats.count()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getKernelDeviceNanos() {
+        Map<String, Long> result = new TreeMap<>();
+        kernels.forEach((key, stats) -> result.put(key, stats.nanos()));
+        return result;
+    }
+
+    @Override
+    public long getBufferAllocations() {
+        return bufferAllocations.sum();
+    }
+
+    @Override
+    public long getBufferReuses() {
+        return bufferReuses.sum();
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+        kernels.clear();
+        hostToDeviceBytes.reset();
+        deviceToHostBytes.reset();
+        transferDeviceNanos.reset();
+        bufferAllocations.reset();
+        bufferReuses.reset();
+    }
+
+    // bucket i counts durations under 2^i microseconds, the last one everything longer
+    static int bucket(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static final class OperationStats {
+        private long count = 0;
+        private long nanos = 0;
+        private double flops = 0;
+        private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+        synchronized void add(long nanos, double flops) {
+            count++;
+            this.nanos += nanos;
+            this.flops += flops;
+            histogram[bucket(nanos)]++;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized long nanos() {
+            return nanos;
+        }
+
+        // flops per nanosecond are GFLOP/s
+        synchronized double gflops() {
+            return nanos == 0 ? 0 : flops / nanos;
+        }
+
+        synchronized long[] histogram() {
+            return histogram.clone();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.util.Map;
+
+// JMX view of a MetricsRecorder. Operations are keyed "operation/backend", for example
+// "multiply/GPU".
+public interface MetricsRecorderMXBean {
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getOperationNanos();
+
+    Map<String, Double> getOperationGflops();
+
+    // counts per latency bucket, bucket i holding operations under 2^i microseconds
+    long[] getLatencyHistogram(String operationKey);
+
+    long getHostToDeviceBytes();
+
+    long getDeviceToHostBytes();
+
+    long getTransferDeviceNanos();
+
+    Map<String, Long> getKernelCounts();
+
+    Map<String, Long> getKernelDeviceNanos();
+
+    long getBufferAllocations();
+
+    long getBufferReuses();
+
+    void reset();
+}
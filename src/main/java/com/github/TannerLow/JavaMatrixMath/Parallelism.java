@@ -0,0 +1,126 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Controls whether the CPU operations of Matrix run on multiple threads.
+// Work is always split into independent row or column blocks, so every output element
+// is computed by exactly one thread in exactly the same order as the single threaded
+// path, and results are bitwise identical regardless of the pool size.
+public final class Parallelism {
+    public static final long DEFAULT_THRESHOLD = 1 << 16;
+
+    // chunks handed out per pool thread, for load balancing
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static volatile ForkJoinPool pool = null;
+    private static volatile long threshold = DEFAULT_THRESHOLD;
+
+    private Parallelism() {}
+
+    public static void enable() {
+        enable(ForkJoinPool.commonPool());
+    }
+
+    public static void enable(ForkJoinPool forkJoinPool) {
+        if(forkJoinPool == null) {
+            throw new NullPointerException("ForkJoinPool must not be null");
+        }
+        pool = forkJoinPool;
+    }
+
+    public static void disable() {
+        pool = null;
+    }
+
+    public static boolean isEnabled() {
+        return pool != null;
+    }
+
+    public static ForkJoinPool getPool() {
+        return pool;
+    }
+
+    // Minimum amount of work (roughly multiply-adds or elements touched) an operation
+    // must have before it is split across threads.
+    public static void setThreshold(long minimumWork) {
+        if(minimumWork < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + minimumWork);
+        }
+        threshold = minimumWork;
+    }
+
+    public static long getThreshold() {
+        return threshold;
+    }
+
+    interface RangeTask {
+        void run(int start, int end);
+    }
+
+    // Whether forRange(count, workPerItem, ...) would run on the calling thread as a single
+    // range. Callers use it to skip creating the task, so the sequential path does not allocate.
+    static boolean isSequential(int count, long workPerItem) {
+        return isSequential(pool, count, workPerItem);
+    }
+
+    private static boolean isSequential(ForkJoinPool forkJoinPool, int count, long workPerItem) {
+        long work = (long) count * Math.max(1, workPerItem);
+        return forkJoinPool == null || forkJoinPool.getParallelism() < 2 || count < 2 || work < threshold;
+    }
+
+    // Runs task over [0, count), split into contiguous ranges when parallelism is enabled
+    // and count * workPerItem reaches the threshold.
+    static void forRange(int count, long workPerItem, RangeTask task) {
+        ForkJoinPool forkJoinPool = pool;
+
+        if(isSequential(forkJoinPool, count, workPerItem)) {
+            task.run(0, count);
+            return;
+        }
+
+        long itemsPerThreshold = threshold / Math.max(1, workPerItem);
+        int maxChunks = (int) Math.min(count, forkJoinPool.getParallelism() * (long) CHUNKS_PER_THREAD);
+        int chunks = (int) Math.max(1, Math.min(maxChunks, count / Math.max(1, itemsPerThreshold)));
+        int chunkSize = (count + chunks - 1) / chunks;
+
+        RangeAction action = new RangeAction(task, 0, count, chunkSize);
+        if(ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == forkJoinPool) {
+            action.invoke();
+        }
+        else {
+            forkJoinPool.invoke(action);
+        }
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeTask task;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+
+        RangeAction(RangeTask task, int start, int end, int chunkSize) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start <= chunkSize) {
+                task.run(start, end);
+                return;
+            }
+
+            // split on a chunk boundary so the ranges do not depend on the split depth
+            int chunkCount = (end - start + chunkSize - 1) / chunkSize;
+            int middle = start + (chunkCount / 2) * chunkSize;
+            invokeAll(new RangeAction(task, start, middle, chunkSize),
+                      new RangeAction(task, middle, end, chunkSize));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+// On-disk cache of compiled OpenCL program binaries, so that GPU.loadProgram only compiles
+// a program the first time it is built for a device and driver. Entries are keyed by
+// key(...), a SHA-256 over the source, the device name, the driver version and the build
+// options, so a changed kernel or a driver update never picks up a stale binary.
+// Every file carries the length and a checksum of the binary; files that are truncated or
+// damaged read as missing. A binary the driver rejects is removed with invalidate and
+// the program is compiled from source again.
+// The cache never fails a build: I/O errors are treated as misses and failed writes are
+// skipped. Set -Djavamatrixmath.programCache=<directory> to use a cache in every GPU.
+public class ProgramCache {
+    public static final String DIRECTORY_PROPERTY = "javamatrixmath.programCache";
+
+    // bump when the key or the file layout changes
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x4342494E; // "CBIN"
+    private static final int HEADER_BYTES = 16;
+    private static final String FILE_SUFFIX = ".clbin";
+
+    private final Path directory;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // The cache in the directory named by the system property, null when it is not set.
+    public static ProgramCache fromSystemProperty() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if(directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return new ProgramCache(Paths.get(directory));
+    }
+
+    public static String key(String source, String deviceName, String driverVersion, String buildOptions) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        // each part is prefixed with its length so that no two combinations hash the same bytes
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(FORMAT_VERSION).array());
+        for(String part : new String[]{source, deviceName, driverVersion, buildOptions}) {
+            byte[] bytes = (part == null ? "" : part).getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // The binary stored under key, null if there is none or it is damaged.
+    public synchronized byte[] load(String key) {
+        byte[] file;
+        try {
+            file = Files.readAllBytes(path(key));
+        }
+        catch(IOException e) {
+            // missing or unreadable
+            misses++;
+            return null;
+        }
+
+        byte[] binary = decode(file);
+        if(binary == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return binary;
+    }
+
+    // Stores binary under key. Written to a temporary file first and moved into place, so a
+    // concurrent load sees either the old entry or the complete new one.
+    public synchronized void store(String key, byte[] binary) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temporary, encode(binary));
+                try {
+                    Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch(AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        catch(IOException e) {
+            // the program is simply compiled again next time
+        }
+    }
+
+    // Removes the entry for key, for a binary the driver did not accept.
+    public synchronized void invalidate(String key) {
+        invalidations++;
+        try {
+            Files.deleteIfExists(path(key));
+        }
+        catch(IOException e) {
+            // overwritten by the next store
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key + FILE_SUFFIX);
+    }
+
+    private static byte[] encode(byte[] binary) {
+        ByteBuffer file = ByteBuffer.allocate(HEADER_BYTES + binary.length);
+        file.putInt(MAGIC).putInt(binary.length).putLong(checksum(binary)).put(binary);
+        return file.array();
+    }
+
+    private static byte[] decode(byte[] file) {
+        if(file.length < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int magic = buffer.getInt();
+        int length = buffer.getInt();
+        long checksum = buffer.getLong();
+        if(magic != MAGIC || length != file.length - HEADER_BYTES || length == 0) {
+            return null;
+        }
+
+        byte[] binary = new byte[length];
+        buffer.get(binary);
+        return checksum(binary) == checksum ? binary : null;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
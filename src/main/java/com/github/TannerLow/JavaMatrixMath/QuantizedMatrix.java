@@ -0,0 +1,201 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+// A matrix of signed 8-bit values with a scale and a zero point per channel: value q of
+// channel c stands for scales[c] * (q - zeroPoints[c]). The channels are the rows
+// (Axis.ROW) or the columns (Axis.COLUMN) and the values of a channel are stored next to
+// each other, so data is row-major for row channels and column-major for column channels.
+// A row-quantized matrix times a column-quantized one, activations times weights for
+// inference, multiplies the 8-bit values with int accumulation and applies the scales,
+// zero points and an optional bias once per element of the result. Every value is off by
+// at most half a step of its channel, 1/510 of the channel's range.
+public class QuantizedMatrix {
+    public enum Axis {
+        ROW,
+        COLUMN
+    }
+
+    // longest shared dimension for which the int accumulation cannot overflow
+    public static final int MAX_SHARED_DIMENSION = Integer.MAX_VALUE / (128 * 128);
+
+    // columns of the right operand multiplied by every row while they are in cache
+    private static final int COLUMN_BLOCK = 64;
+
+    public final int rows;
+    public final int cols;
+    public final Axis axis;
+    public final byte[] data;
+    public final float[] scales;
+    public final int[] zeroPoints;
+
+    public QuantizedMatrix(int rows, int cols, Axis axis, byte[] data, float[] scales, int[] zeroPoints) {
+        if(rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must not be negative: " + rows + "x" + cols);
+        }
+        int channels = axis == Axis.ROW ? rows : cols;
+        if(data.length != (long) rows * cols || scales.length != channels || zeroPoints.length != channels) {
+            throw new IllegalArgumentException("Data, scales and zero points do not match the shape.");
+        }
+        for(int channel = 0; channel < channels; channel++) {
+            if(!(scales[channel] > 0) || Float.isInfinite(scales[channel])) {
+                throw new IllegalArgumentException("Scales must be positive and finite.");
+            }
+            if(zeroPoints[channel] < Byte.MIN_VALUE || zeroPoints[channel] > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Zero points must be in the range of a byte.");
+            }
+        }
+
+        this.rows = rows;
+        this.cols = cols;
+        this.axis = axis;
+        this.data = data;
+        this.scales = scales;
+        this.zeroPoints = zeroPoints;
+    }
+
+    // Maps the range of every channel, widened to include 0, onto the 256 values of a
+    // byte. 0 is stored exactly, so zero padding and relu outputs stay zero.
+    public static QuantizedMatrix quantize(Matrix matrix, Axis axis) {
+        int channels = axis == Axis.ROW ? matrix.rows : matrix.cols;
+        int length = axis == Axis.ROW ? matrix.cols : matrix.rows;
+        // stride of the source between neighbouring values of a channel and between channels
+        int valueStride = axis == Axis.ROW ? 1 : matrix.cols;
+        int channelStride = axis == Axis.ROW ? matrix.cols : 1;
+
+        byte[] data = new byte[matrix.data.length];
+        float[] scales = new float[channels];
+        int[] zeroPoints = new int[channels];
+        for(int channel = 0; channel < channels; channel++) {
+            int offset = channel * channelStride;
+            float min = 0;
+            float max = 0;
+            for(int i = 0; i < length; i++) {
+                float value = matrix.data[offset + i * valueStride];
+                if(!Float.isFinite(value)) {
+                    throw new IllegalArgumentException("Cannot quantize non-finite values.");
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+
+            // an all zero channel keeps any positive scale
+            float scale = max > min ? Math.max((max - min) / 255, Float.MIN_VALUE) : 1;
+            int zeroPoint = Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, Byte.MIN_VALUE - Math.round(min / scale)));
+            for(int i = 0; i < length; i++) {
+                int q = Math.round(matrix.data[offset + i * valueStride] / scale) + zeroPoint;
+                data[channel * length + i] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, q));
+            }
+            scales[channel] = scale;
+            zeroPoints[channel] = zeroPoint;
+        }
+        return new QuantizedMatrix(matrix.rows, matrix.cols, axis, data, scales, zeroPoints);
+    }
+
+    public Matrix dequantize() {
+        Matrix result = new Matrix(rows, cols);
+        for(int row = 0; row < rows; row++) {
+            for(int col = 0; col < cols; col++) {
+                int channel = axis == Axis.ROW ? row : col;
+                int index = axis == Axis.ROW ? row * cols + col : col * rows + row;
+                result.data[row * cols + col] = scales[channel] * (data[index] - zeroPoints[channel]);
+            }
+        }
+        return result;
+    }
+
+    public Matrix multiply(QuantizedMatrix other) throws DimensionsMismatchException {
+        return multiply(other, null);
+    }
+
+    // this * other + bias with bias a 1 x other.cols row added to every row, or null.
+    // This must be quantized per row and other per column.
+    public Matrix multiply(QuantizedMatrix other, Matrix bias) throws DimensionsMismatchException {
+        requireMultipliable(other, bias);
+
+        int[] rowSums = channelSums();
+        int[] colSums = other.channelSums();
+        Matrix result = new Matrix(rows, other.cols);
+        long workPerRow = (long) cols * other.cols;
+        if(Parallelism.isSequential(rows, workPerRow)) {
+            multiplyRows(other, bias, rowSums, colSums, result, 0, rows);
+            return result;
+        }
+
+        // split by row blocks, each block runs over all of other
+        Parallelism.forRange(rows, workPerRow, (start, end) ->
+                multiplyRows(other, bias, rowSums, colSums, result, start, end));
+        return result;
+    }
+
+    // Multiplies on the GPU with kernels/Quantized.cl, which is loaded on first use. Both
+    // operands are uploaded in 8 bits.
+    public Matrix multiply(GPU gpu, QuantizedMatrix other) throws DimensionsMismatchException {
+        return multiply(gpu, other, null);
+    }
+
+    public Matrix multiply(GPU gpu, QuantizedMatrix other, Matrix bias) throws DimensionsMismatchException {
+        requireMultipliable(other, bias);
+        try(DeviceMatrix deviceResult = DeviceMatrix.multiply(gpu, this, other, channelSums(), other.channelSums(), bias)) {
+            return deviceResult.toMatrix();
+        }
+    }
+
+    // sum of the stored values of every channel, for the zero point corrections
+    int[] channelSums() {
+        int channels = axis == Axis.ROW ? rows : cols;
+        int length = axis == Axis.ROW ? cols : rows;
+        int[] sums = new int[channels];
+        for(int channel = 0; channel < channels; channel++) {
+            int sum = 0;
+            for(int i = channel * length; i < (channel + 1) * length; i++) {
+                sum += data[i];
+            }
+            sums[channel] = sum;
+        }
+        return sums;
+    }
+
+    private void multiplyRows(QuantizedMatrix other, Matrix bias, int[] rowSums, int[] colSums,
+                              Matrix result, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        int sharedDimension = cols;
+        int n = other.cols;
+        for(int blockStart = 0; blockStart < n; blockStart += COLUMN_BLOCK) {
+            int blockEnd = Math.min(n, blockStart + COLUMN_BLOCK);
+            for(int row = start; row < end; row++) {
+                int rowZeroPoint = zeroPoints[row];
+                for(int col = blockStart; col < blockEnd; col++) {
+                    int colZeroPoint = other.zeroPoints[col];
+                    int dot = kernels.dotInt8(data, row * sharedDimension,
+                            other.data, col * sharedDimension, sharedDimension);
+
+                    // sum of (a - rowZeroPoint) * (b - colZeroPoint) over the shared dimension
+                    long product = dot - (long) colZeroPoint * rowSums[row] - (long) rowZeroPoint * colSums[col] +
+                            (long) sharedDimension * rowZeroPoint * colZeroPoint;
+                    float value = scales[row] * other.scales[col] * product;
+                    result.data[row * n + col] = bias == null ? value : value + bias.data[col];
+                }
+            }
+        }
+    }
+
+    private void requireMultipliable(QuantizedMatrix other, Matrix bias) {
+        if(cols != other.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {other.rows, other.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(bias != null && (bias.rows != 1 || bias.cols != other.cols)) {
+            final int[] dimensionsA = {1, other.cols};
+            final int[] dimensionsB = {bias.rows, bias.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(axis != Axis.ROW || other.axis != Axis.COLUMN) {
+            throw new IllegalArgumentException("Left operand must be quantized per row and right operand per column.");
+        }
+        if(cols > MAX_SHARED_DIMENSION) {
+            throw new IllegalArgumentException("Shared dimension " + cols + " exceeds " + MAX_SHARED_DIMENSION + ".");
+        }
+    }
+}
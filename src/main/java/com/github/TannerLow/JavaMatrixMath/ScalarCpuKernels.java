@@ -0,0 +1,165 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+final class ScalarCpuKernels extends CpuKernels {
+    private static final int MR = 4;
+    private static final int NR = 4;
+
+    @Override
+    int gemmTileRows() {
+        return MR;
+    }
+
+    @Override
+    int gemmTileCols() {
+        return NR;
+    }
+
+    @Override
+    void gemmMicroKernel(int kc, float[] packedA, int aIndex, float[] packedB, int bIndex,
+                         float[] c, int cIndex, int ldc, int mr, int nr,
+                         boolean first, float[] edge) {
+        float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for(int p = 0; p < kc; p++) {
+            float b0 = packedB[bIndex];
+            float b1 = packedB[bIndex + 1];
+            float b2 = packedB[bIndex + 2];
+            float b3 = packedB[bIndex + 3];
+
+            float a0 = packedA[aIndex];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            float a1 = packedA[aIndex + 1];
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            float a2 = packedA[aIndex + 2];
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            float a3 = packedA[aIndex + 3];
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+
+            aIndex += MR;
+            bIndex += NR;
+        }
+
+        if(mr == MR && nr == NR) {
+            int r0 = cIndex;
+            int r1 = r0 + ldc;
+            int r2 = r1 + ldc;
+            int r3 = r2 + ldc;
+            if(first) {
+                c[r0] = c00; c[r0 + 1] = c01; c[r0 + 2] = c02; c[r0 + 3] = c03;
+                c[r1] = c10; c[r1 + 1] = c11; c[r1 + 2] = c12; c[r1 + 3] = c13;
+                c[r2] = c20; c[r2 + 1] = c21; c[r2 + 2] = c22; c[r2 + 3] = c23;
+                c[r3] = c30; c[r3 + 1] = c31; c[r3 + 2] = c32; c[r3 + 3] = c33;
+            }
+            else {
+                c[r0] += c00; c[r0 + 1] += c01; c[r0 + 2] += c02; c[r0 + 3] += c03;
+                c[r1] += c10; c[r1 + 1] += c11; c[r1 + 2] += c12; c[r1 + 3] += c13;
+                c[r2] += c20; c[r2 + 1] += c21; c[r2 + 2] += c22; c[r2 + 3] += c23;
+                c[r3] += c30; c[r3 + 1] += c31; c[r3 + 2] += c32; c[r3 + 3] += c33;
+            }
+            return;
+        }
+
+        // partial tile at the bottom or right edge of C
+        edge[0] = c00;  edge[1] = c01;  edge[2] = c02;  edge[3] = c03;
+        edge[4] = c10;  edge[5] = c11;  edge[6] = c12;  edge[7] = c13;
+        edge[8] = c20;  edge[9] = c21;  edge[10] = c22; edge[11] = c23;
+        edge[12] = c30; edge[13] = c31; edge[14] = c32; edge[15] = c33;
+        Gemm.storeEdge(edge, NR, c, cIndex, ldc, mr, nr, first);
+    }
+
+    @Override
+    void addRow(float[] a, float[] row, int rowOffset, float[] out, int offset, int length) {
+        for(int i = 0; i < length; i++) {
+            out[offset + i] = a[offset + i] + row[rowOffset + i];
+        }
+    }
+
+    @Override
+    void addScalar(float[] a, float value, float[] out, int offset, int length) {
+        for(int i = 0; i < length; i++) {
+            out[offset + i] = a[offset + i] + value;
+        }
+    }
+
+    @Override
+    void scaleAdd(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        for(int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    void relu(float[] in, float[] out, int start, int end) {
+        for(int i = start; i < end; i++) {
+            out[i] = Math.max(in[i], 0);
+        }
+    }
+
+    @Override
+    void reluDerivative(float[] in, float[] out, int start, int end) {
+        for(int i = start; i < end; i++) {
+            out[i] = in[i] > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    void horizontalSoftmax(float[] in, float[] out, int offset, int length) {
+        // calculate the max value
+        float max = -Float.MAX_VALUE;
+        for(int i = 0; i < length; i++) {
+            float value = in[offset + i];
+            if(value > max) {
+                max = value;
+            }
+        }
+
+        // calculate the sum
+        float sum = 0;
+        for(int i = 0; i < length; i++) {
+            sum += Math.exp(in[offset + i] - max);
+        }
+
+        // calculate the softmax vector
+        for(int i = 0; i < length; i++) {
+            out[offset + i] = (float) (Math.exp(in[offset + i] - max) / sum);
+        }
+    }
+
+    @Override
+    void verticalSoftmax(float[] in, float[] out, int rows, int cols, int colStart, int colEnd) {
+        for(int col = colStart; col < colEnd; col++) {
+            // calculate the max value
+            float max = -Float.MAX_VALUE;
+            for(int i = 0; i < rows; i++) {
+                float value = in[col + i * cols];
+                if(value > max) {
+                    max = value;
+                }
+            }
+
+            // calculate the sum
+            float sum = 0;
+            for(int i = 0; i < rows; i++) {
+                sum += Math.exp(in[col + i * cols] - max);
+            }
+
+            // calculate the softmax vector
+            for(int i = 0; i < rows; i++) {
+                int index = col + i * cols;
+                out[index] = (float) (Math.exp(in[index] - max) / sum);
+            }
+        }
+    }
+
+    @Override
+    int dotInt8(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int sum = 0;
+        for(int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+}
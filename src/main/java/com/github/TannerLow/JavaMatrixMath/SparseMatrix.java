@@ -0,0 +1,257 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+import java.util.Arrays;
+
+// A matrix that only stores its non-zero elements, in compressed sparse row (CSR) or
+// compressed sparse column (CSC) layout. In row layout the non-zeros of row r are
+// values[pointers[r] .. pointers[r + 1]) and indices holds their columns; in column layout
+// pointers run over the columns and indices holds rows. Indices within a row or column
+// are strictly increasing.
+// Multiplying by a dense matrix costs time proportional to the number of non-zeros, which
+// beats the dense multiplication once the density is below roughly DEFAULT_DENSITY_THRESHOLD.
+public class SparseMatrix {
+    public enum Layout {
+        ROW,
+        COLUMN
+    }
+
+    public static final double DEFAULT_DENSITY_THRESHOLD = 0.1;
+
+    public final int rows;
+    public final int cols;
+    public final Layout layout;
+    public final int[] pointers;
+    public final int[] indices;
+    public final float[] values;
+
+    public SparseMatrix(int rows, int cols, Layout layout, int[] pointers, int[] indices, float[] values) {
+        if(rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must not be negative: " + rows + "x" + cols);
+        }
+        int majorSize = layout == Layout.ROW ? rows : cols;
+        int minorSize = layout == Layout.ROW ? cols : rows;
+        if(pointers.length != majorSize + 1 || pointers[0] != 0 || indices.length != values.length ||
+           pointers[majorSize] != values.length) {
+            throw new IllegalArgumentException("Pointers do not match the shape and the number of values.");
+        }
+        for(int major = 0; major < majorSize; major++) {
+            if(pointers[major] > pointers[major + 1]) {
+                throw new IllegalArgumentException("Pointers must not decrease.");
+            }
+        }
+        for(int major = 0; major < majorSize; major++) {
+            for(int i = pointers[major]; i < pointers[major + 1]; i++) {
+                if(indices[i] < 0 || indices[i] >= minorSize || (i > pointers[major] && indices[i] <= indices[i - 1])) {
+                    throw new IllegalArgumentException("Indices must be in range and increasing.");
+                }
+            }
+        }
+
+        this.rows = rows;
+        this.cols = cols;
+        this.layout = layout;
+        this.pointers = pointers;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    public static SparseMatrix fromDense(Matrix matrix) {
+        return fromDense(matrix, Layout.ROW);
+    }
+
+    // Drops the zeros of a dense matrix.
+    public static SparseMatrix fromDense(Matrix matrix, Layout layout) {
+        int majorSize = layout == Layout.ROW ? matrix.rows : matrix.cols;
+        int minorSize = layout == Layout.ROW ? matrix.cols : matrix.rows;
+        int majorStride = layout == Layout.ROW ? matrix.cols : 1;
+        int minorStride = layout == Layout.ROW ? 1 : matrix.cols;
+
+        int nonZeros = countNonZeros(matrix);
+        int[] pointers = new int[majorSize + 1];
+        int[] indices = new int[nonZeros];
+        float[] values = new float[nonZeros];
+
+        int count = 0;
+        for(int major = 0; major < majorSize; major++) {
+            for(int minor = 0; minor < minorSize; minor++) {
+                float value = matrix.data[major * majorStride + minor * minorStride];
+                if(value != 0) {
+                    indices[count] = minor;
+                    values[count] = value;
+                    count++;
+                }
+            }
+            pointers[major + 1] = count;
+        }
+
+        return new SparseMatrix(matrix.rows, matrix.cols, layout, pointers, indices, values);
+    }
+
+    public Matrix toDense() {
+        Matrix result = new Matrix(rows, cols);
+        int majorSize = pointers.length - 1;
+        for(int major = 0; major < majorSize; major++) {
+            for(int i = pointers[major]; i < pointers[major + 1]; i++) {
+                int index = layout == Layout.ROW ? major * cols + indices[i] : indices[i] * cols + major;
+                result.data[index] = values[i];
+            }
+        }
+        return result;
+    }
+
+    // Converts between row and column layout. Returns this when it already has the layout.
+    public SparseMatrix toLayout(Layout newLayout) {
+        if(newLayout == layout) {
+            return this;
+        }
+
+        // counting sort of the non-zeros by their minor index
+        int minorSize = layout == Layout.ROW ? cols : rows;
+        int[] newPointers = new int[minorSize + 1];
+        for(int i = 0; i < indices.length; i++) {
+            newPointers[indices[i] + 1]++;
+        }
+        for(int minor = 0; minor < minorSize; minor++) {
+            newPointers[minor + 1] += newPointers[minor];
+        }
+
+        int[] next = Arrays.copyOf(newPointers, minorSize);
+        int[] newIndices = new int[indices.length];
+        float[] newValues = new float[values.length];
+        int majorSize = pointers.length - 1;
+        for(int major = 0; major < majorSize; major++) {
+            for(int i = pointers[major]; i < pointers[major + 1]; i++) {
+                int position = next[indices[i]]++;
+                newIndices[position] = major;
+                newValues[position] = values[i];
+            }
+        }
+
+        return new SparseMatrix(rows, cols, newLayout, newPointers, newIndices, newValues);
+    }
+
+    public int nonZeros() {
+        return values.length;
+    }
+
+    public double density() {
+        return density(nonZeros(), rows, cols);
+    }
+
+    // Fraction of non-zero elements of a dense matrix.
+    public static double density(Matrix matrix) {
+        return density(countNonZeros(matrix), matrix.rows, matrix.cols);
+    }
+
+    public static boolean shouldBeSparse(Matrix matrix) {
+        return shouldBeSparse(matrix, DEFAULT_DENSITY_THRESHOLD);
+    }
+
+    // Whether sparse storage pays off for the multiplication of matrix with a dense matrix.
+    public static boolean shouldBeSparse(Matrix matrix, double densityThreshold) {
+        return density(matrix) <= densityThreshold;
+    }
+
+    // a * b, converting a to row layout first when it is sparse enough.
+    public static Matrix multiplyByDensity(Matrix a, Matrix b) throws DimensionsMismatchException {
+        if(shouldBeSparse(a)) {
+            return fromDense(a).multiply(b);
+        }
+        return a.multiply(b);
+    }
+
+    public Matrix multiply(Matrix dense) throws DimensionsMismatchException {
+        Matrix result = new Matrix(rows, dense.cols);
+        multiplyInto(dense, result);
+        return result;
+    }
+
+    // out = this * dense. Row and column layout add up the products of every element in
+    // the same order, so both give identical results for any thread count.
+    public void multiplyInto(Matrix dense, Matrix out) throws DimensionsMismatchException {
+        if(cols != dense.rows) {
+            final int[] dimensionsA = {rows, cols};
+            final int[] dimensionsB = {dense.rows, dense.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.rows != rows || out.cols != dense.cols) {
+            final int[] dimensionsA = {rows, dense.cols};
+            final int[] dimensionsB = {out.rows, out.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == dense.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+
+        if(layout == Layout.ROW) {
+            // split by rows of the result, each row only reads its own non-zeros
+            long workPerRow = (long) dense.cols * Math.max(1, nonZeros() / Math.max(1, rows));
+            if(Parallelism.isSequential(rows, workPerRow)) {
+                multiplyRows(dense, out, 0, rows);
+                return;
+            }
+            Parallelism.forRange(rows, workPerRow, (start, end) -> multiplyRows(dense, out, start, end));
+        }
+        else {
+            // the non-zeros of a column scatter over all rows, so split by columns of the result
+            long workPerCol = Math.max(1, nonZeros());
+            if(Parallelism.isSequential(dense.cols, workPerCol)) {
+                multiplyCols(dense, out, 0, dense.cols);
+                return;
+            }
+            Parallelism.forRange(dense.cols, workPerCol, (start, end) -> multiplyCols(dense, out, start, end));
+        }
+    }
+
+    // Multiplies on the GPU with kernels/Sparse.cl, which is loaded on first use.
+    // Column layout is converted to row layout first.
+    public Matrix multiply(GPU gpu, Matrix dense) throws DimensionsMismatchException {
+        SparseMatrix rowLayout = toLayout(Layout.ROW);
+        try(DeviceMatrix deviceDense = dense.toDevice(gpu);
+            DeviceMatrix deviceResult = DeviceMatrix.multiply(rowLayout, deviceDense)) {
+            return deviceResult.toMatrix();
+        }
+    }
+
+    private void multiplyRows(Matrix dense, Matrix out, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        int n = dense.cols;
+        for(int row = start; row < end; row++) {
+            Arrays.fill(out.data, row * n, (row + 1) * n, 0);
+            for(int i = pointers[row]; i < pointers[row + 1]; i++) {
+                kernels.scaleAdd(values[i], dense.data, indices[i] * n, out.data, row * n, n);
+            }
+        }
+    }
+
+    private void multiplyCols(Matrix dense, Matrix out, int start, int end) {
+        CpuKernels kernels = CpuKernels.get();
+        int n = dense.cols;
+        int length = end - start;
+        for(int row = 0; row < rows; row++) {
+            Arrays.fill(out.data, row * n + start, row * n + end, 0);
+        }
+        for(int col = 0; col < cols; col++) {
+            for(int i = pointers[col]; i < pointers[col + 1]; i++) {
+                kernels.scaleAdd(values[i], dense.data, col * n + start, out.data, indices[i] * n + start, length);
+            }
+        }
+    }
+
+    private static int countNonZeros(Matrix matrix) {
+        int count = 0;
+        for(float value : matrix.data) {
+            if(value != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double density(int nonZeros, int rows, int cols) {
+        long size = (long) rows * cols;
+        return size == 0 ? 0 : (double) nonZeros / size;
+    }
+}
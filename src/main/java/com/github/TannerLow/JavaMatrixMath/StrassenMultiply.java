@@ -0,0 +1,235 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+// C = A * B with Winograd's variant of Strassen's algorithm: every level splits A, B and
+// C into quadrants and forms C from 7 products of quadrant sums instead of 8, with 15
+// quadrant additions. Multiplications whose dimensions all exceed cutoff recurse; the rest
+// go to the blocked GEMM behind Matrix.multiply. An odd trailing row, shared index or column
+// is peeled off before splitting and added back with thin GEMM updates, so any shape works
+// without padded copies.
+// With Parallelism enabled the 7 products of the top levels run as fork-join tasks, enough
+// levels to give every pool thread a product. Results do not depend on the pool.
+// Each level saves an eighth of the multiply-adds but costs accuracy: the error bound grows
+// by up to a factor 18 per level instead of with the shared dimension alone, see the
+// tests. Temporaries take about 2.75 times the size of C at the top level.
+public final class StrassenMultiply {
+    // roughly where a level starts to pay for its additions over the blocked GEMM
+    public static final int DEFAULT_CUTOFF = 1024;
+
+    private final int cutoff;
+
+    public StrassenMultiply() {
+        this(DEFAULT_CUTOFF);
+    }
+
+    public StrassenMultiply(int cutoff) {
+        if(cutoff < 1) {
+            throw new IllegalArgumentException("Cutoff must be positive: " + cutoff);
+        }
+        this.cutoff = cutoff;
+    }
+
+    public Matrix multiply(Matrix a, Matrix b) throws DimensionsMismatchException {
+        Matrix result = new Matrix(a.rows, b.cols);
+        multiplyInto(a, b, result);
+        return result;
+    }
+
+    public void multiplyInto(Matrix a, Matrix b, Matrix out) throws DimensionsMismatchException {
+        if(a.cols != b.rows) {
+            final int[] dimensionsA = {a.rows, a.cols};
+            final int[] dimensionsB = {b.rows, b.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.rows != a.rows || out.cols != b.cols) {
+            final int[] dimensionsA = {a.rows, b.cols};
+            final int[] dimensionsB = {out.rows, out.cols};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(out.data == a.data || out.data == b.data) {
+            throw new IllegalArgumentException("Output matrix must not share its data with an operand.");
+        }
+
+        long start = Metrics.start();
+        multiply(a.rows, a.cols, b.cols, new Block(a.data, 0, a.cols), new Block(b.data, 0, b.cols),
+                new Block(out.data, 0, out.cols), parallelLevels());
+        Metrics.operation("strassenMultiply", Dispatcher.Backend.CPU, start, 2.0 * a.rows * a.cols * b.cols);
+    }
+
+    // recursion levels used for an m x k times k x n multiplication
+    public int levels(int m, int k, int n) {
+        int levels = 0;
+        while(Math.min(m, Math.min(k, n)) > cutoff) {
+            m /= 2;
+            k /= 2;
+            n /= 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    // levels whose products are forked, enough for a product per pool thread
+    private static int parallelLevels() {
+        if(!Parallelism.isEnabled()) {
+            return 0;
+        }
+        int parallelism = Parallelism.getPool().getParallelism();
+        int levels = 1;
+        for(long tasks = 7; tasks < parallelism; tasks *= 7) {
+            levels++;
+        }
+        return levels;
+    }
+
+    // c = a * b for an m x k block a and a k x n block b
+    private void multiply(int m, int k, int n, Block a, Block b, Block c, int parallelLevels) {
+        if(Math.min(m, Math.min(k, n)) <= cutoff) {
+            Gemm.multiply(m, n, k, a.data, a.offset, a.ld, b.data, b.offset, b.ld, c.data, c.offset, c.ld);
+            return;
+        }
+
+        // the even part is split in quadrants, the odd trailing row, shared index and column
+        // are peeled off
+        int evenM = m & ~1;
+        int evenK = k & ~1;
+        int evenN = n & ~1;
+        multiplyQuadrants(evenM / 2, evenK / 2, evenN / 2, a, b, c, parallelLevels);
+
+        if(evenK < k) {
+            // rank one update with column k - 1 of a and row k - 1 of b
+            CpuKernels kernels = CpuKernels.get();
+            for(int row = 0; row < evenM; row++) {
+                kernels.scaleAdd(a.data[a.index(row, k - 1)], b.data, b.index(k - 1, 0),
+                        c.data, c.index(row, 0), evenN);
+            }
+        }
+        if(evenN < n) {
+            Gemm.multiply(evenM, 1, k, a.data, a.offset, a.ld, b.data, b.index(0, n - 1), b.ld,
+                    c.data, c.index(0, n - 1), c.ld);
+        }
+        if(evenM < m) {
+            Gemm.multiply(1, n, k, a.data, a.index(m - 1, 0), a.ld, b.data, b.offset, b.ld,
+                    c.data, c.index(m - 1, 0), c.ld);
+        }
+    }
+
+    // c = a * b for a 2h x 2k block a and a 2k x 2w block b, one level of Winograd's variant
+    private void multiplyQuadrants(int h, int k, int w, Block a, Block b, Block c, int parallelLevels) {
+        Block a11 = a;
+        Block a12 = a.at(0, k);
+        Block a21 = a.at(h, 0);
+        Block a22 = a.at(h, k);
+        Block b11 = b;
+        Block b12 = b.at(0, w);
+        Block b21 = b.at(k, 0);
+        Block b22 = b.at(k, w);
+        Block c11 = c;
+        Block c12 = c.at(0, w);
+        Block c21 = c.at(h, 0);
+        Block c22 = c.at(h, w);
+
+        Block s1 = new Block(h, k);
+        Block s2 = new Block(h, k);
+        Block s3 = new Block(h, k);
+        Block s4 = new Block(h, k);
+        add(a21, a22, s1, h, k);
+        subtract(s1, a11, s2, h, k);
+        subtract(a11, a21, s3, h, k);
+        subtract(a12, s2, s4, h, k);
+        Block t1 = new Block(k, w);
+        Block t2 = new Block(k, w);
+        Block t3 = new Block(k, w);
+        Block t4 = new Block(k, w);
+        subtract(b12, b11, t1, k, w);
+        subtract(b22, t1, t2, k, w);
+        subtract(b22, b12, t3, k, w);
+        subtract(t2, b21, t4, k, w);
+
+        // four products go straight into the quadrants of c, the other three need space
+        Block p2 = new Block(h, w);
+        Block p6 = new Block(h, w);
+        Block p7 = new Block(h, w);
+        Block[][] products = {
+                {a11, b11, c11}, // p1
+                {a12, b21, p2},
+                {s4, b22, c12},  // p3
+                {a22, t4, c21},  // p4
+                {s1, t1, c22},   // p5
+                {s2, t2, p6},
+                {s3, t3, p7}
+        };
+        if(parallelLevels > 0) {
+            Parallelism.forRange(products.length, (long) h * k * w, (start, end) -> {
+                for(int i = start; i < end; i++) {
+                    multiply(h, k, w, products[i][0], products[i][1], products[i][2], parallelLevels - 1);
+                }
+            });
+        }
+        else {
+            for(Block[] product : products) {
+                multiply(h, k, w, product[0], product[1], product[2], 0);
+            }
+        }
+
+        // u2 = p1 + p6, u3 = u2 + p7, u4 = u2 + p5, then
+        // c11 = p1 + p2, c12 = u4 + p3, c21 = u3 - p4, c22 = u3 + p5
+        add(p6, c11, p6, h, w);
+        add(p7, p6, p7, h, w);
+        add(p6, c22, p6, h, w);
+        add(c12, p6, c12, h, w);
+        subtract(p7, c21, c21, h, w);
+        add(c22, p7, c22, h, w);
+        add(c11, p2, c11, h, w);
+    }
+
+    // out = x + y over rows x cols, out may be x or y
+    private static void add(Block x, Block y, Block out, int rows, int cols) {
+        for(int row = 0; row < rows; row++) {
+            int xIndex = x.index(row, 0);
+            int yIndex = y.index(row, 0);
+            int outIndex = out.index(row, 0);
+            for(int col = 0; col < cols; col++) {
+                out.data[outIndex + col] = x.data[xIndex + col] + y.data[yIndex + col];
+            }
+        }
+    }
+
+    // out = x - y over rows x cols, out may be x or y
+    private static void subtract(Block x, Block y, Block out, int rows, int cols) {
+        for(int row = 0; row < rows; row++) {
+            int xIndex = x.index(row, 0);
+            int yIndex = y.index(row, 0);
+            int outIndex = out.index(row, 0);
+            for(int col = 0; col < cols; col++) {
+                out.data[outIndex + col] = x.data[xIndex + col] - y.data[yIndex + col];
+            }
+        }
+    }
+
+    // a row-major block of a larger matrix, element (row, col) at offset + row * ld + col
+    private static final class Block {
+        final float[] data;
+        final int offset;
+        final int ld;
+
+        Block(float[] data, int offset, int ld) {
+            this.data = data;
+            this.offset = offset;
+            this.ld = ld;
+        }
+
+        // a new rows x cols temporary
+        Block(int rows, int cols) {
+            this(new float[Math.multiplyExact(rows, cols)], 0, cols);
+        }
+
+        int index(int row, int col) {
+            return offset + row * ld + col;
+        }
+
+        Block at(int row, int col) {
+            return new Block(data, index(row, col), ld);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// C = A * B for matrices that do not fit in memory, or whose buffers would exceed what the
+// device can allocate. A, B and C are streamed in panels: for every panelCols wide column
+// panel of B and C, the row panels of A pass through one after another, and each finished
+// panelRows x panelCols block of C is written out before the next one starts. A shared
+// dimension longer than panelDepth is split as well and the partial products are summed.
+// Two sets of panels are kept: while one is multiplied, a background thread reads the next
+// one and writes the previous block of C. On the GPU the transfers of a step are also
+// enqueued before the result of the step before it is waited for.
+// At most two panels of A and of B and three blocks of C are in memory at a time.
+public final class StreamingMultiply {
+    public static final int DEFAULT_PANEL_SIZE = 2048;
+
+    private final int panelRows;
+    private final int panelCols;
+    private final int panelDepth;
+
+    public StreamingMultiply() {
+        this(DEFAULT_PANEL_SIZE, DEFAULT_PANEL_SIZE, DEFAULT_PANEL_SIZE);
+    }
+
+    // A panels are panelRows x panelDepth, B panels panelDepth x panelCols and C blocks
+    // panelRows x panelCols.
+    public StreamingMultiply(int panelRows, int panelCols, int panelDepth) {
+        if(panelRows <= 0 || panelCols <= 0 || panelDepth <= 0) {
+            throw new IllegalArgumentException("Panel sizes must be positive: " +
+                    panelRows + "x" + panelCols + "x" + panelDepth);
+        }
+        this.panelRows = panelRows;
+        this.panelCols = panelCols;
+        this.panelDepth = panelDepth;
+    }
+
+    public void multiply(MatrixSource a, MatrixSource b, MatrixSink c) throws IOException {
+        requireShapes(a, b, c);
+        run(a, b, c, null, panelRows, panelCols, panelDepth);
+    }
+
+    // Multiplies the panels on the GPU. Panels are made smaller where needed, so that no
+    // buffer exceeds the device's maximum allocation size.
+    public void multiply(GPU gpu, MatrixSource a, MatrixSource b, MatrixSink c) throws IOException {
+        if(!gpu.isInitialized()) {
+            throw new IllegalStateException("GPU not yet initialized.");
+        }
+        requireShapes(a, b, c);
+
+        long maxBytes = gpu.getMaxMemAllocSize();
+        int rows = Math.max(1, Math.min(panelRows, a.rows()));
+        int cols = Math.max(1, Math.min(panelCols, b.cols()));
+        int depth = Math.max(1, Math.min(panelDepth, a.cols()));
+        while(!fits(rows, depth, maxBytes) || !fits(depth, cols, maxBytes) || !fits(rows, cols, maxBytes)) {
+            if(rows == 1 && cols == 1 && depth == 1) {
+                throw new IllegalStateException("GPU cannot allocate a single element.");
+            }
+            // halve the largest dimension
+            if(rows >= cols && rows >= depth) {
+                rows = (rows + 1) / 2;
+            }
+            else if(cols >= depth) {
+                cols = (cols + 1) / 2;
+            }
+            else {
+                depth = (depth + 1) / 2;
+            }
+        }
+
+        run(a, b, c, gpu, rows, cols, depth);
+    }
+
+    private static boolean fits(int rows, int cols, long maxBytes) {
+        // pooled buffers are rounded up to their bucket size, where that stays within maxBytes
+        return BufferPool.bucketSize((long) Float.BYTES * rows * cols, maxBytes) <= maxBytes;
+    }
+
+    private static void requireShapes(MatrixSource a, MatrixSource b, MatrixSink c) {
+        if(a.cols() != b.rows()) {
+            final int[] dimensionsA = {a.rows(), a.cols()};
+            final int[] dimensionsB = {b.rows(), b.cols()};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+        if(c.rows() != a.rows() || c.cols() != b.cols()) {
+            final int[] dimensionsA = {a.rows(), b.cols()};
+            final int[] dimensionsB = {c.rows(), c.cols()};
+            throw new DimensionsMismatchException(dimensionsA, dimensionsB);
+        }
+    }
+
+    // One multiplication of an A panel with a B panel, contributing to the C block at
+    // (row, col).
+    private static final class Step {
+        final int row;
+        final int col;
+        final int depth;
+        final int rowCount;
+        final int colCount;
+        final int depthCount;
+
+        Step(int row, int col, int depth, int rowCount, int colCount, int depthCount) {
+            this.row = row;
+            this.col = col;
+            this.depth = depth;
+            this.rowCount = rowCount;
+            this.colCount = colCount;
+            this.depthCount = depthCount;
+        }
+
+        boolean isFirst() {
+            return depth == 0;
+        }
+
+        boolean isLast(int sharedDimension) {
+            return depth + depthCount >= sharedDimension;
+        }
+    }
+
+    // The A and B panels of one step. A panel still holding the right data is not read again,
+    // which saves reading B for every row panel when the shared dimension is not split.
+    private static final class Panels {
+        Matrix a;
+        Matrix b;
+        int aRow = -1;
+        int aDepth = -1;
+        int bDepth = -1;
+        int bCol = -1;
+
+        void load(MatrixSource aSource, MatrixSource bSource, Step step) throws IOException {
+            if(a == null || aRow != step.row || aDepth != step.depth || a.rows != step.rowCount || a.cols != step.depthCount) {
+                a = resize(a, step.rowCount, step.depthCount);
+                // invalidate first, a failed read leaves a partial panel
+                aRow = -1;
+                aSource.read(step.row, step.depth, a);
+                aRow = step.row;
+                aDepth = step.depth;
+            }
+            if(b == null || bDepth != step.depth || bCol != step.col || b.rows != step.depthCount || b.cols != step.colCount) {
+                b = resize(b, step.depthCount, step.colCount);
+                bDepth = -1;
+                bSource.read(step.depth, step.col, b);
+                bDepth = step.depth;
+                bCol = step.col;
+            }
+        }
+    }
+
+    // A block of C being summed up, and the write of its previous contents.
+    private static final class Output {
+        Matrix block;
+        Future<?> write;
+    }
+
+    // A GPU step whose result has not been waited for yet.
+    private static final class PendingStep {
+        final Step step;
+        final Output output;
+        final List<DeviceMatrix> buffers;
+        final CompletableFuture<Matrix> result;
+
+        PendingStep(Step step, Output output, List<DeviceMatrix> buffers, CompletableFuture<Matrix> result) {
+            this.step = step;
+            this.output = output;
+            this.buffers = buffers;
+            this.result = result;
+        }
+
+        void close() {
+            buffers.forEach(DeviceMatrix::close);
+        }
+    }
+
+    private static void run(MatrixSource a, MatrixSource b, MatrixSink c, GPU gpu,
+                            int panelRows, int panelCols, int panelDepth) throws IOException {
+        int sharedDimension = a.cols();
+        List<Step> steps = steps(a.rows(), b.cols(), sharedDimension, panelRows, panelCols, panelDepth);
+        if(steps.isEmpty()) {
+            return;
+        }
+
+        ExecutorService io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JavaMatrixMath-streaming-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Panels[] panels = {new Panels(), new Panels()};
+        Output[] outputs = {new Output(), new Output()};
+        Matrix partial = null;
+        PendingStep pending = null;
+
+        try {
+            Future<?> load = io.submit(loader(panels[0], a, b, steps.get(0)));
+            int block = 0;
+            Output output = null;
+
+            for(int s = 0; s < steps.size(); s++) {
+                Step step = steps.get(s);
+                await(load);
+                Panels current = panels[s % 2];
+                if(s + 1 < steps.size()) {
+                    load = io.submit(loader(panels[(s + 1) % 2], a, b, steps.get(s + 1)));
+                }
+
+                if(step.isFirst()) {
+                    output = outputs[block++ % 2];
+                    // the block written two blocks ago must be out before it is reused
+                    if(output.write != null) {
+                        await(output.write);
+                        output.write = null;
+                    }
+                }
+
+                if(gpu != null) {
+                    PendingStep next = enqueue(gpu, current, step, output);
+                    if(pending != null) {
+                        PendingStep finished = pending;
+                        pending = null;
+                        finish(finished, io, c, sharedDimension);
+                    }
+                    pending = next;
+                    continue;
+                }
+
+                if(step.isFirst()) {
+                    output.block = resize(output.block, step.rowCount, step.colCount);
+                    current.a.multiplyInto(current.b, output.block, null);
+                }
+                else {
+                    partial = resize(partial, step.rowCount, step.colCount);
+                    current.a.multiplyInto(current.b, partial, null);
+                    accumulate(output.block, partial);
+                }
+                if(step.isLast(sharedDimension)) {
+                    output.write = io.submit(writer(c, step, output.block));
+                }
+            }
+
+            if(pending != null) {
+                PendingStep finished = pending;
+                pending = null;
+                finish(finished, io, c, sharedDimension);
+            }
+            for(Output finishedOutput : outputs) {
+                if(finishedOutput.write != null) {
+                    await(finishedOutput.write);
+                }
+            }
+        }
+        finally {
+            if(pending != null) {
+                pending.result.exceptionally(e -> null).join();
+                pending.close();
+            }
+            io.shutdownNow();
+        }
+    }
+
+    // Uploads the panels of step and enqueues their product without waiting for it.
+    private static PendingStep enqueue(GPU gpu, Panels panels, Step step, Output output) {
+        List<DeviceMatrix> buffers = new ArrayList<>();
+        try {
+            // the uploads are staged, so the host panels may be reloaded right away
+            DeviceMatrix deviceA = DeviceMatrix.uploadAsync(gpu, panels.a);
+            buffers.add(deviceA);
+            DeviceMatrix deviceB = DeviceMatrix.uploadAsync(gpu, panels.b);
+            buffers.add(deviceB);
+            DeviceMatrix product = deviceA.multiply(deviceB);
+            buffers.add(product);
+            return new PendingStep(step, output, buffers, product.toMatrixAsync());
+        }
+        catch(RuntimeException e) {
+            buffers.forEach(DeviceMatrix::close);
+            throw e;
+        }
+    }
+
+    private static void finish(PendingStep pending, ExecutorService io, MatrixSink c, int sharedDimension) {
+        Matrix result;
+        try {
+            result = pending.result.join();
+        }
+        finally {
+            pending.close();
+        }
+
+        Output output = pending.output;
+        if(pending.step.isFirst()) {
+            output.block = result;
+        }
+        else {
+            accumulate(output.block, result);
+        }
+        if(pending.step.isLast(sharedDimension)) {
+            output.write = io.submit(writer(c, pending.step, output.block));
+        }
+    }
+
+    private static List<Step> steps(int rows, int cols, int sharedDimension,
+                                    int panelRows, int panelCols, int panelDepth) {
+        List<Step> steps = new ArrayList<>();
+        for(int col = 0; col < cols; col += panelCols) {
+            int colCount = Math.min(panelCols, cols - col);
+            for(int row = 0; row < rows; row += panelRows) {
+                int rowCount = Math.min(panelRows, rows - row);
+                // an empty shared dimension still needs one step to write the zeros
+                int depth = 0;
+                do {
+                    int depthCount = Math.min(panelDepth, sharedDimension - depth);
+                    steps.add(new Step(row, col, depth, rowCount, colCount, depthCount));
+                    depth += depthCount;
+                } while(depth < sharedDimension);
+            }
+        }
+        return steps;
+    }
+
+    private static Callable<Void> loader(Panels panels, MatrixSource a, MatrixSource b, Step step) {
+        return () -> {
+            panels.load(a, b, step);
+            return null;
+        };
+    }
+
+    private static Callable<Void> writer(MatrixSink c, Step step, Matrix block) {
+        return () -> {
+            c.write(step.row, step.col, block);
+            return null;
+        };
+    }
+
+    private static void accumulate(Matrix sum, Matrix partial) {
+        CpuKernels.get().addRow(sum.data, partial.data, 0, sum.data, 0, sum.data.length);
+    }
+
+    private static Matrix resize(Matrix matrix, int rows, int cols) {
+        if(matrix != null && matrix.rows == rows && matrix.cols == cols) {
+            return matrix;
+        }
+        return new Matrix(rows, cols);
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming a multiplication.");
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if(cause instanceof UncheckedIOException) {
+                throw new IOException(cause.getMessage(), cause.getCause());
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.github.TannerLow.JavaMatrixMath;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD kernels on the JDK Vector API, only ever loaded reflectively by CpuKernels.
+// Loop tails are handled with scalar code that performs exactly the same float operations
+// as the vector lanes, so results do not depend on where a range starts or ends.
+final class VectorCpuKernels extends CpuKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // dotInt8 widens each byte vector to int vectors of the same size, a quarter at a time
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int BYTE_LANES = BYTE_SPECIES.length();
+    private static final int INT_PARTS = BYTE_LANES / INT_SPECIES.length();
+
+    // the register tile is MR rows by two vectors
+    private static final int MR = 4;
+    private static final int NR = 2 * LANES;
+
+    // constants of the exp approximation, see exp(float)
+    private static final float EXP_MAX = 88.3762626647949f;
+    private static final float EXP_MIN = -87.3365447504019f;
+    private static final float LOG2E = 1.44269504088896341f;
+    private static final float LN2_HI = 0.693359375f;
+    private static final float LN2_LO = -2.12194440e-4f;
+    private static final float ROUNDING_SHIFT = 12582912f; // 1.5 * 2^23
+    private static final int ROUNDING_SHIFT_BITS = 0x4B400000;
+    private static final float P0 = 1.9875691500E-4f;
+    private static final float P1 = 1.3981999507E-3f;
+    private static final float P2 = 8.3334519073E-3f;
+    private static final float P3 = 4.1665795894E-2f;
+    private static final float P4 = 1.6666665459E-1f;
+    private static final float P5 = 5.0000001201E-1f;
+
+    @Override
+    int gemmTileRows() {
+        return MR;
+    }
+
+    @Override
+    int gemmTileCols() {
+        return NR;
+    }
+
+    @Override
+    void gemmMicroKernel(int kc, float[] packedA, int aIndex, float[] packedB, int bIndex,
+                         float[] c, int cIndex, int ldc, int mr, int nr,
+                         boolean first, float[] edge) {
+        FloatVector c00 = FloatVector.zero(SPECIES), c01 = FloatVector.zero(SPECIES);
+        FloatVector c10 = FloatVector.zero(SPECIES), c11 = FloatVector.zero(SPECIES);
+        FloatVector c20 = FloatVector.zero(SPECIES), c21 = FloatVector.zero(SPECIES);
+        FloatVector c30 = FloatVector.zero(SPECIES), c31 = FloatVector.zero(SPECIES);
+
+        for(int p = 0; p < kc; p++) {
+            FloatVector b0 = FloatVector.fromArray(SPECIES, packedB, bIndex);
+            FloatVector b1 = FloatVector.fromArray(SPECIES, packedB, bIndex + LANES);
+
+            FloatVector a0 = FloatVector.broadcast(SPECIES, packedA[aIndex]);
+            c00 = a0.fma(b0, c00); c01 = a0.fma(b1, c01);
+            FloatVector a1 = FloatVector.broadcast(SPECIES, packedA[aIndex + 1]);
+            c10 = a1.fma(b0, c10); c11 = a1.fma(b1, c11);
+            FloatVector a2 = FloatVector.broadcast(SPECIES, packedA[aIndex + 2]);
+            c20 = a2.fma(b0, c20); c21 = a2.fma(b1, c21);
+            FloatVector a3 = FloatVector.broadcast(SPECIES, packedA[aIndex + 3]);
+            c30 = a3.fma(b0, c30); c31 = a3.fma(b1, c31);
+
+            aIndex += MR;
+            bIndex += NR;
+        }
+
+        if(mr == MR && nr == NR) {
+            storeRow(c00, c01, c, cIndex, first);
+            storeRow(c10, c11, c, cIndex + ldc, first);
+            storeRow(c20, c21, c, cIndex + 2 * ldc, first);
+            storeRow(c30, c31, c, cIndex + 3 * ldc, first);
+            return;
+        }
+
+        // partial tile at the bottom or right edge of C
+        c00.intoArray(edge, 0);          c01.intoArray(edge, LANES);
+        c10.intoArray(edge, NR);         c11.intoArray(edge, NR + LANES);
+        c20.intoArray(edge, 2 * NR);     c21.intoArray(edge, 2 * NR + LANES);
+        c30.intoArray(edge, 3 * NR);     c31.intoArray(edge, 3 * NR + LANES);
+        Gemm.storeEdge(edge, NR, c, cIndex, ldc, mr, nr, first);
+    }
+
+    private static void storeRow(FloatVector low, FloatVector high, float[] c, int index, boolean first) {
+        if(!first) {
+            low = low.add(FloatVector.fromArray(SPECIES, c, index));
+            high = high.add(FloatVector.fromArray(SPECIES, c, index + LANES));
+        }
+        low.intoArray(c, index);
+        high.intoArray(c, index + LANES);
+    }
+
+    @Override
+    void addRow(float[] a, float[] row, int rowOffset, float[] out, int offset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for(; i < bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, a, offset + i)
+                    .add(FloatVector.fromArray(SPECIES, row, rowOffset + i))
+                    .intoArray(out, offset + i);
+        }
+        for(; i < length; i++) {
+            out[offset + i] = a[offset + i] + row[rowOffset + i];
+        }
+    }
+
+    @Override
+    void addScalar(float[] a, float value, float[] out, int offset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for(; i < bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, a, offset + i)
+                    .add(value)
+                    .intoArray(out, offset + i);
+        }
+        for(; i < length; i++) {
+            out[offset + i] = a[offset + i] + value;
+        }
+    }
+
+    @Override
+    void scaleAdd(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        // multiply then add, like the scalar loop, so the results are identical
+        for(; i < bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, x, xOffset + i).mul(alpha)
+                    .add(FloatVector.fromArray(SPECIES, y, yOffset + i))
+                    .intoArray(y, yOffset + i);
+        }
+        for(; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    @Override
+    void relu(float[] in, float[] out, int start, int end) {
+        int bound = start + SPECIES.loopBound(end - start);
+        int i = start;
+        for(; i < bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, in, i)
+                    .max(0f)
+                    .intoArray(out, i);
+        }
+        for(; i < end; i++) {
+            out[i] = Math.max(in[i], 0);
+        }
+    }
+
+    @Override
+    void reluDerivative(float[] in, float[] out, int start, int end) {
+        FloatVector zeros = FloatVector.zero(SPECIES);
+        FloatVector ones = FloatVector.broadcast(SPECIES, 1f);
+        int bound = start + SPECIES.loopBound(end - start);
+        int i = start;
+        for(; i < bound; i += LANES) {
+            VectorMask<Float> positive = FloatVector.fromArray(SPECIES, in, i).compare(VectorOperators.GT, 0f);
+            zeros.blend(ones, positive).intoArray(out, i);
+        }
+        for(; i < end; i++) {
+            out[i] = in[i] > 0 ? 1 : 0;
+        }
+    }
+
+    // The softmax passes are split into small methods that only pass arrays and scalars
+    // between each other: one method holding all of them exceeds the JIT's inlining budget,
+    // which leaves vector operations boxed and allocating.
+
+    @Override
+    void horizontalSoftmax(float[] in, float[] out, int offset, int length) {
+        float max = max(in, offset, length);
+        float sum = exponentials(in, out, offset, length, max);
+        divide(out, offset, length, sum);
+    }
+
+    private static float max(float[] in, int offset, int length) {
+        int bound = SPECIES.loopBound(length);
+        FloatVector maxVector = FloatVector.broadcast(SPECIES, -Float.MAX_VALUE);
+        int i = 0;
+        for(; i < bound; i += LANES) {
+            maxVector = maxVector.max(FloatVector.fromArray(SPECIES, in, offset + i));
+        }
+        float max = maxVector.reduceLanes(VectorOperators.MAX);
+        for(; i < length; i++) {
+            max = Math.max(max, in[offset + i]);
+        }
+        return max;
+    }
+
+    // writes exp(in - max) to out and returns the sum of the exponentials
+    private static float exponentials(float[] in, float[] out, int offset, int length, float max) {
+        int bound = SPECIES.loopBound(length);
+        FloatVector sumVector = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(; i < bound; i += LANES) {
+            FloatVector exponential = exp(FloatVector.fromArray(SPECIES, in, offset + i).sub(max));
+            exponential.intoArray(out, offset + i);
+            sumVector = sumVector.add(exponential);
+        }
+        float sum = sumVector.reduceLanes(VectorOperators.ADD);
+        for(; i < length; i++) {
+            float exponential = exp(in[offset + i] - max);
+            out[offset + i] = exponential;
+            sum += exponential;
+        }
+        return sum;
+    }
+
+    private static void divide(float[] out, int offset, int length, float sum) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for(; i < bound; i += LANES) {
+            FloatVector.fromArray(SPECIES, out, offset + i).div(sum).intoArray(out, offset + i);
+        }
+        for(; i < length; i++) {
+            out[offset + i] /= sum;
+        }
+    }
+
+    @Override
+    void verticalSoftmax(float[] in, float[] out, int rows, int cols, int colStart, int colEnd) {
+        // lanes run across neighbouring columns so every load is contiguous
+        int bound = colStart + SPECIES.loopBound(colEnd - colStart);
+        int col = colStart;
+        for(; col < bound; col += LANES) {
+            verticalSoftmaxLanes(in, out, rows, cols, col);
+        }
+        for(; col < colEnd; col++) {
+            verticalSoftmaxColumn(in, out, rows, cols, col);
+        }
+    }
+
+    @Override
+    int dotInt8(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        // int sums are exact, so the lanes may be added in any order
+        IntVector sums = IntVector.zero(INT_SPECIES);
+        int bound = BYTE_SPECIES.loopBound(length);
+        int i = 0;
+        for(; i < bound; i += BYTE_LANES) {
+            ByteVector x = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+            ByteVector y = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+            for(int part = 0; part < INT_PARTS; part++) {
+                IntVector wideX = (IntVector) x.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                IntVector wideY = (IntVector) y.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                sums = sums.add(wideX.mul(wideY));
+            }
+        }
+        int sum = sums.reduceLanes(VectorOperators.ADD);
+        for(; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    // softmax of the LANES columns starting at col
+    private static void verticalSoftmaxLanes(float[] in, float[] out, int rows, int cols, int col) {
+        FloatVector max = FloatVector.broadcast(SPECIES, -Float.MAX_VALUE);
+        for(int row = 0; row < rows; row++) {
+            max = max.max(FloatVector.fromArray(SPECIES, in, row * cols + col));
+        }
+
+        FloatVector sum = FloatVector.zero(SPECIES);
+        for(int row = 0; row < rows; row++) {
+            int index = row * cols + col;
+            FloatVector exponential = exp(FloatVector.fromArray(SPECIES, in, index).sub(max));
+            exponential.intoArray(out, index);
+            sum = sum.add(exponential);
+        }
+
+        for(int row = 0; row < rows; row++) {
+            int index = row * cols + col;
+            FloatVector.fromArray(SPECIES, out, index).div(sum).intoArray(out, index);
+        }
+    }
+
+    private static void verticalSoftmaxColumn(float[] in, float[] out, int rows, int cols, int col) {
+        float max = -Float.MAX_VALUE;
+        for(int row = 0; row < rows; row++) {
+            max = Math.max(max, in[row * cols + col]);
+        }
+
+        float sum = 0;
+        for(int row = 0; row < rows; row++) {
+            int index = row * cols + col;
+            float exponential = exp(in[index] - max);
+            out[index] = exponential;
+            sum += exponential;
+        }
+
+        for(int row = 0; row < rows; row++) {
+            out[row * cols + col] /= sum;
+        }
+    }
+
+    // Cephes style expf: e^x = 2^n * e^r with n = round(x / ln2) and |r| <= ln2 / 2,
+    // e^r from a degree 6 polynomial. Relative error is a few ulp over the clamped range.
+    static FloatVector exp(FloatVector x) {
+        x = x.max(EXP_MIN).min(EXP_MAX);
+
+        // round to nearest by pushing the fraction out of the mantissa
+        FloatVector shifted = x.mul(LOG2E).add(ROUNDING_SHIFT);
+        FloatVector n = shifted.sub(ROUNDING_SHIFT);
+        FloatVector r = x.sub(n.mul(LN2_HI)).sub(n.mul(LN2_LO));
+
+        FloatVector r2 = r.mul(r);
+        FloatVector p = r.mul(P0).add(P1);
+        p = p.mul(r).add(P2);
+        p = p.mul(r).add(P3);
+        p = p.mul(r).add(P4);
+        p = p.mul(r).add(P5);
+        p = p.mul(r2).add(r).add(1f);
+
+        // n sits in the low mantissa bits of shifted, reading it from there avoids a float to
+        // int conversion that is not intrinsified on every platform and would allocate
+        IntVector exponent = shifted.reinterpretAsInts().sub(ROUNDING_SHIFT_BITS - 127);
+        FloatVector scale = exponent.lanewise(VectorOperators.LSHL, 23).reinterpretAsFloats();
+        return p.mul(scale);
+    }
+
+    // scalar twin of exp(FloatVector), performing the same float operations per lane
+    static float exp(float x) {
+        x = Math.min(Math.max(x, EXP_MIN), EXP_MAX);
+
+        float shifted = x * LOG2E + ROUNDING_SHIFT;
+        float n = shifted - ROUNDING_SHIFT;
+        float r = x - n * LN2_HI - n * LN2_LO;
+
+        float r2 = r * r;
+        float p = r * P0 + P1;
+        p = p * r + P2;
+        p = p * r + P3;
+        p = p * r + P4;
+        p = p * r + P5;
+        p = p * r2 + r + 1f;
+
+        float scale = Float.intBitsToFloat((Float.floatToRawIntBits(shifted) - (ROUNDING_SHIFT_BITS - 127)) << 23);
+        return p * scale;
+    }
+}
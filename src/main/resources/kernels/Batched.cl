@@ -0,0 +1,33 @@
+// Batched multiplication of many small matrices in one launch, see MatrixBatch.
+
+// C[i] = A[i] * B[i] for count products of matrices packed one after another. aStride and
+// bStride are the distances between consecutive matrices of A and B, 0 to use the same
+// matrix in every product. C is packed without gaps.
+// 3D range: dimension 0 runs along the columns of C, dimension 1 along the rows and
+// dimension 2 over the batch, one work item per element. The matrices are too small for
+// tiling to pay off, so each work item reads its row of A and column of B directly.
+__kernel void
+batchedMatrixMultiply(__global float* C,
+                      __global const float* A,
+                      __global const float* B,
+                      const int count,
+                      const int aRows,
+                      const int sharedDimension,
+                      const int bCols,
+                      const int aStride,
+                      const int bStride)
+{
+    int col = get_global_id(0);
+    int row = get_global_id(1);
+    int index = get_global_id(2);
+
+    if (col < bCols && row < aRows && index < count) {
+        __global const float* a = A + index * aStride + row * sharedDimension;
+        __global const float* b = B + index * bStride + col;
+        float value = 0.0f;
+        for (int k = 0; k < sharedDimension; k++) {
+            value += a[k] * b[k * bCols];
+        }
+        C[(index * aRows + row) * bCols + col] = value;
+    }
+}
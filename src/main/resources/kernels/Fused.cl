@@ -0,0 +1,25 @@
+// Template for fused kernels, see FusedEpilogue. The generated prefix defines
+// EPILOGUE_PARAMETERS, the extra operand buffers starting with a comma, and
+// EPILOGUE(value, row, col), the element-wise chain applied to every output value.
+// kernels/Matrices.cl is appended, so its matrixMultiply is built as fusedMatrixMultiply
+// with the epilogue applied before the store.
+
+#define MATRIX_MULTIPLY fusedMatrixMultiply
+
+// The epilogue on its own: output = EPILOGUE(input), one work item per element.
+// 2D range: dimension 0 runs along the columns, dimension 1 along the rows.
+__kernel void
+fusedElementwise(__global float* output,
+                 __global const float* input,
+                 const int rowSize,
+                 const int colSize
+                 EPILOGUE_PARAMETERS)
+{
+    int col = get_global_id(0);
+    int row = get_global_id(1);
+
+    if (col < rowSize && row < colSize) {
+        int index = row * rowSize + col;
+        output[index] = EPILOGUE(input[index], row, col);
+    }
+}
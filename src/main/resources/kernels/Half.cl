@@ -0,0 +1,28 @@
+// Matrix multiplication with operands stored in 16 bits, see HalfMatrix.
+// kernels/Matrices.cl is appended, so its matrixMultiply is built as halfMatrixMultiply:
+// C = A * B with A and B row-major in the given formats, widened to float when their tiles
+// are loaded. The products are accumulated in float while global memory reads of 16-bit
+// operands are halved.
+
+#define FORMAT_FLOAT32 0
+#define FORMAT_FLOAT16 1
+#define FORMAT_BFLOAT16 2
+
+// Element i of an operand stored as float, float16 or bfloat16. vload_half reads float16
+// without the cl_khr_fp16 extension; bfloat16 is the upper half of a float.
+float loadElement(__global const uchar* data, const int i, const int format)
+{
+    if (format == FORMAT_FLOAT16) {
+        return vload_half(i, (__global const half*) data);
+    }
+    if (format == FORMAT_BFLOAT16) {
+        return as_float((uint) ((__global const ushort*) data)[i] << 16);
+    }
+    return ((__global const float*) data)[i];
+}
+
+#define MATRIX_MULTIPLY halfMatrixMultiply
+#define OPERAND_TYPE uchar
+#define OPERAND_PARAMETERS const int aFormat, const int bFormat,
+#define LOAD_A(index) loadElement(A, (index), aFormat)
+#define LOAD_B(index) loadElement(B, (index), bFormat)
@@ -20,153 +20,330 @@ __kernel void elementWiseMultiplySlow(__global const float *a,
     c[gid] = a[gid] * b[gid];
 }
 
+// Outputs of C computed by each work item of matrixMultiply.
+#define WORK_PER_ITEM 4
+
+// Other kernel files are prepended to this one to build matrixMultiply under another name
+// (MATRIX_MULTIPLY) with hooks of their own. kernels/Fused.cl applies an epilogue to every
+// output value, see FusedEpilogue. kernels/Half.cl reads operands of another type through
+// LOAD_A and LOAD_B, which take the index of an element and get OPERAND_PARAMETERS, a list
+// of parameters ending with a comma. On their own the hooks read floats and do nothing.
+#ifndef MATRIX_MULTIPLY
+#define MATRIX_MULTIPLY matrixMultiply
+#endif
+#ifndef EPILOGUE
+#define EPILOGUE_PARAMETERS
+#define EPILOGUE(value, row, col) (value)
+#endif
+#ifndef LOAD_A
+#define OPERAND_TYPE float
+#define OPERAND_PARAMETERS
+#define LOAD_A(index) A[(index)]
+#define LOAD_B(index) B[(index)]
+#endif
+
 // Matrix multiplication: C = A * B.
+// Each work-group computes one TS x TS tile of C, where TS = get_local_size(0) and the
+// work-group is TS x (TS / WORK_PER_ITEM) work items. Matching TS x TS tiles of A and B
+// are staged in local memory (tileA and tileB, TS * TS floats each) so that every
+// element read from global memory is reused TS times. Each work item accumulates
+// WORK_PER_ITEM outputs of one column of the tile, strided by TS / WORK_PER_ITEM rows.
+// Elements outside of A or B are loaded as zeros, so any matrix size works as long as
+// the global size is rounded up to whole tiles.
 __kernel void
-matrixMultiply(__global float* C,
-               __global float* A,
-               __global float* B,
-               const int sharedDimension,
-               const int bCols)
+MATRIX_MULTIPLY(__global float* C,
+                __global const OPERAND_TYPE* A,
+                __global const OPERAND_TYPE* B,
+                const int aRows,
+                const int sharedDimension,
+                const int bCols,
+                OPERAND_PARAMETERS
+                __local float* tileA,
+                __local float* tileB
+                EPILOGUE_PARAMETERS)
 {
-    int globalRow = get_global_id(0);
-    int globalCol = get_global_id(1);
+    const int tileSize = get_local_size(0);
+    const int rowStride = get_local_size(1);
+    const int localCol = get_local_id(0);
+    const int localRow = get_local_id(1);
+    const int globalCol = get_group_id(0) * tileSize + localCol;
+    const int tileRow = get_group_id(1) * tileSize;
+
+    float values[WORK_PER_ITEM];
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        values[w] = 0.0f;
+    }
+
+    const int tiles = (sharedDimension + tileSize - 1) / tileSize;
+    for (int t = 0; t < tiles; t++) {
+        // load one tile of A and B, consecutive work items read consecutive addresses
+        const int aCol = t * tileSize + localCol;
+        for (int w = 0; w < WORK_PER_ITEM; w++) {
+            const int row = localRow + w * rowStride;
+            const int aRow = tileRow + row;
+            const int bRow = t * tileSize + row;
+            tileA[row * tileSize + localCol] = (aRow < aRows && aCol < sharedDimension)
+                    ? LOAD_A(aRow * sharedDimension + aCol) : 0.0f;
+            tileB[row * tileSize + localCol] = (bRow < sharedDimension && globalCol < bCols)
+                    ? LOAD_B(bRow * bCols + globalCol) : 0.0f;
+        }
+
+        barrier(CLK_LOCAL_MEM_FENCE);
+
+        for (int k = 0; k < tileSize; k++) {
+            const float elementB = tileB[k * tileSize + localCol];
+            for (int w = 0; w < WORK_PER_ITEM; w++) {
+                values[w] += tileA[(localRow + w * rowStride) * tileSize + k] * elementB;
+            }
+        }
+
+        // the tiles are overwritten in the next iteration
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        const int globalRow = tileRow + localRow + w * rowStride;
+        if (globalRow < aRows && globalCol < bCols) {
+            C[globalRow * bCols + globalCol] = EPILOGUE(values[w], globalRow, globalCol);
+        }
+    }
+}
+
+// Matrix multiplication C = A * B with strided operands, the tiling of matrixMultiply.
+// A(i, p) = A[aOffset + i * aRowStride + p * aColStride] and likewise for B, so transposed
+// operands (a row stride of 1) and slices are read in place. Tiles of an operand with a
+// row stride of 1 are loaded along its columns instead, which keeps consecutive work items
+// on consecutive addresses.
+__kernel void
+stridedMatrixMultiply(__global float* C,
+                      __global const float* A,
+                      __global const float* B,
+                      const int aRows,
+                      const int sharedDimension,
+                      const int bCols,
+                      const int aOffset,
+                      const int aRowStride,
+                      const int aColStride,
+                      const int bOffset,
+                      const int bRowStride,
+                      const int bColStride,
+                      __local float* tileA,
+                      __local float* tileB)
+{
+    const int tileSize = get_local_size(0);
+    const int rowStride = get_local_size(1);
+    const int localCol = get_local_id(0);
+    const int localRow = get_local_id(1);
+    const int tileCol = get_group_id(0) * tileSize;
+    const int globalCol = tileCol + localCol;
+    const int tileRow = get_group_id(1) * tileSize;
+    const int aTransposed = aRowStride == 1 && aColStride != 1;
+    const int bTransposed = bRowStride == 1 && bColStride != 1;
+
+    float values[WORK_PER_ITEM];
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        values[w] = 0.0f;
+    }
+
+    const int tiles = (sharedDimension + tileSize - 1) / tileSize;
+    for (int t = 0; t < tiles; t++) {
+        for (int w = 0; w < WORK_PER_ITEM; w++) {
+            const int row = localRow + w * rowStride;
+            // element (i, j) of each tile, j follows the work item's column unless transposed
+            const int ai = aTransposed ? localCol : row;
+            const int aj = aTransposed ? row : localCol;
+            const int aRow = tileRow + ai;
+            const int aCol = t * tileSize + aj;
+            tileA[ai * tileSize + aj] = (aRow < aRows && aCol < sharedDimension)
+                    ? A[aOffset + aRow * aRowStride + aCol * aColStride] : 0.0f;
 
-    // value stores the element that is
-    // computed by the thread
-    float value = 0;
-    for (int k = 0; k < sharedDimension; ++k)
-    {
-        float elementA = A[globalRow * sharedDimension + k];
-        float elementB = B[k * bCols + globalCol];
-        value += elementA * elementB;
+            const int bi = bTransposed ? localCol : row;
+            const int bj = bTransposed ? row : localCol;
+            const int bRow = t * tileSize + bi;
+            const int bCol = tileCol + bj;
+            tileB[bi * tileSize + bj] = (bRow < sharedDimension && bCol < bCols)
+                    ? B[bOffset + bRow * bRowStride + bCol * bColStride] : 0.0f;
+        }
+
+        barrier(CLK_LOCAL_MEM_FENCE);
+
+        for (int k = 0; k < tileSize; k++) {
+            const float elementB = tileB[k * tileSize + localCol];
+            for (int w = 0; w < WORK_PER_ITEM; w++) {
+                values[w] += tileA[(localRow + w * rowStride) * tileSize + k] * elementB;
+            }
+        }
+
+        // the tiles are overwritten in the next iteration
+        barrier(CLK_LOCAL_MEM_FENCE);
     }
 
-    // Write the matrix to device memory each
-    // thread writes one element
-    C[globalRow * bCols + globalCol] = value;
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        const int globalRow = tileRow + localRow + w * rowStride;
+        if (globalRow < aRows && globalCol < bCols) {
+            C[globalRow * bCols + globalCol] = values[w];
+        }
+    }
 }
 
 // Add row to rows: C = A[row] + B, for all rows.
+// 2D range: dimension 0 runs along the columns, dimension 1 along the rows,
+// one work item per element.
 __kernel void
 addRowToRows(__global float* C,
-             __global float* A,
-             __global float* B,
-             const int rowSize)
+             __global const float* A,
+             __global const float* B,
+             const int rowSize,
+             const int colSize)
 {
-    int globalRow = get_global_id(0);
-
-    int offset = globalRow * rowSize;
+    int col = get_global_id(0);
+    int row = get_global_id(1);
 
-    // one thread per row
-    for (int i = 0; i < rowSize; i++)
-    {
-        C[offset + i] = A[offset + i] + B[i];
+    if (col < rowSize && row < colSize) {
+        int index = row * rowSize + col;
+        C[index] = A[index] + B[col];
     }
 }
 
-// Add col to cols: C = A[i][j] + B, for all cols j.
+// Add col to cols: C = A[i][j] + B[i], for all cols j.
+// 2D range: dimension 0 runs along the columns, dimension 1 along the rows,
+// one work item per element.
 __kernel void
 addColToCols(__global float* C,
-             __global float* A,
-             __global float* B,
-             const int rowSize)
+             __global const float* A,
+             __global const float* B,
+             const int rowSize,
+             const int colSize)
 {
-    int globalRow = get_global_id(0);
-
-    int offset = globalRow * rowSize;
+    int col = get_global_id(0);
+    int row = get_global_id(1);
 
-    // one thread per row of A
-    for (int i = 0; i < rowSize; i++)
-    {
-        C[offset + i] = A[offset + i] + B[globalRow];
+    if (col < rowSize && row < colSize) {
+        int index = row * rowSize + col;
+        C[index] = A[index] + B[row];
     }
 }
 
-// Relu: output = ReLu(A).
+// Relu: output = ReLu(A), one work item per element.
 __kernel void
 relu(__global float* output,
-     __global float* input,
-     const int rowSize)
+     __global const float* input,
+     const int size)
 {
-    int globalRow = get_global_id(0);
+    int index = get_global_id(0);
 
-    // one thread per row
-    for (int i = 0; i < rowSize; i++)
-    {
-        int index = globalRow * rowSize + i;
+    if (index < size) {
+        output[index] = fmax(input[index], 0.0f);
+    }
+}
 
-        // output[i] = max(output[i], 0)
-        float value = input[index];
-        float newValue = 0;
-        if(value > 0) {
-            newValue = value;
+// Reduces scratch[first + i * step] for i in [0, count) with max (or sum when sum != 0)
+// and returns the result to every work item. count must be a power of two and every
+// work item of the group must call this.
+float reduceLocal(__local float* scratch, int first, int step, int index, int count, int sum)
+{
+    for (int half = count / 2; half > 0; half /= 2) {
+        barrier(CLK_LOCAL_MEM_FENCE);
+        if (index < half) {
+            float a = scratch[first + index * step];
+            float b = scratch[first + (index + half) * step];
+            scratch[first + index * step] = sum ? a + b : fmax(a, b);
         }
-
-        output[index] = newValue;
     }
+    barrier(CLK_LOCAL_MEM_FENCE);
+    float result = scratch[first];
+    // scratch is reused by the caller after this returns
+    barrier(CLK_LOCAL_MEM_FENCE);
+    return result;
 }
 
-// Softmax each element of each row with all elements of that row
+// Softmax each element of each row with all elements of that row.
+// Work-groups are L x R work items (L a power of two): R rows per group and L work
+// items cooperating on each row, reducing max and sum through scratch (L * R floats).
 __kernel void horizontalSoftmax(__global float* output,
-                                __global float* input,
-                                const int rowSize)
+                                __global const float* input,
+                                const int rowSize,
+                                const int colSize,
+                                __local float* scratch)
 {
-    int globalRow = get_global_id(0);
-
-    int offset = globalRow * rowSize;
+    int localCol = get_local_id(0);
+    int localRow = get_local_id(1);
+    int groupCols = get_local_size(0);
+    int row = get_global_id(1);
+    int active = row < colSize;
+    int offset = row * rowSize;
+    int first = localRow * groupCols;
 
     // get the max value of the row
-    float max = -3.4028235E37f;
-    float value;
-    for (int i = 0; i < rowSize; i++) {
-        value = input[offset + i];
-        if(value > max) {
-            max = value;
+    float max = -FLT_MAX;
+    if (active) {
+        for (int i = localCol; i < rowSize; i += groupCols) {
+            max = fmax(max, input[offset + i]);
         }
     }
+    scratch[first + localCol] = max;
+    max = reduceLocal(scratch, first, 1, localCol, groupCols, 0);
 
     // Calculate sum of exponentials of input elements
     float sum = 0.0f;
-    for (int i = 0; i < rowSize; i++) {
-        sum += exp(input[offset + i] - max);
+    if (active) {
+        for (int i = localCol; i < rowSize; i += groupCols) {
+            sum += exp(input[offset + i] - max);
+        }
     }
+    scratch[first + localCol] = sum;
+    sum = reduceLocal(scratch, first, 1, localCol, groupCols, 1);
 
     // Calculate softmax for each element
-    int index;
-    for (int i = 0; i < rowSize; i++) {
-        index = offset + i;
-        output[index] = exp(input[index] - max) / sum;
+    if (active) {
+        for (int i = localCol; i < rowSize; i += groupCols) {
+            output[offset + i] = exp(input[offset + i] - max) / sum;
+        }
     }
 }
 
-// Softmax each element of each column with all elements of that column
+// Softmax each element of each column with all elements of that column.
+// Work-groups are C x L work items (L a power of two): C neighbouring columns per group,
+// so reads along a row are coalesced, and L work items cooperating on each column,
+// reducing max and sum through scratch (C * L floats).
 __kernel void verticalSoftmax(__global float* output,
-                              __global float* input,
+                              __global const float* input,
                               const int rowSize,
-                              const int colSize)
+                              const int colSize,
+                              __local float* scratch)
 {
-    int globalCol = get_global_id(0);
+    int localCol = get_local_id(0);
+    int localRow = get_local_id(1);
+    int groupCols = get_local_size(0);
+    int groupRows = get_local_size(1);
+    int col = get_global_id(0);
+    int active = col < rowSize;
 
     // get the max value of the column
-    float max = -3.4028235E37f;
-    float value;
-    for (int i = 0; i < colSize; i++) {
-        value = input[globalCol + i * rowSize];
-        if(value > max) {
-            max = value;
+    float max = -FLT_MAX;
+    if (active) {
+        for (int i = localRow; i < colSize; i += groupRows) {
+            max = fmax(max, input[col + i * rowSize]);
         }
     }
+    scratch[localRow * groupCols + localCol] = max;
+    max = reduceLocal(scratch, localCol, groupCols, localRow, groupRows, 0);
 
     // Calculate sum of exponentials of input elements
     float sum = 0.0f;
-    for (int i = 0; i < colSize; i++) {
-        sum += exp(input[globalCol + i * rowSize] - max);
+    if (active) {
+        for (int i = localRow; i < colSize; i += groupRows) {
+            sum += exp(input[col + i * rowSize] - max);
+        }
     }
+    scratch[localRow * groupCols + localCol] = sum;
+    sum = reduceLocal(scratch, localCol, groupCols, localRow, groupRows, 1);
 
     // Calculate softmax for each element
-    int index;
-    for (int i = 0; i < colSize; i++) {
-        index = globalCol + i * rowSize;
-        output[index] = exp(input[index] - max) / sum;
+    if (active) {
+        for (int i = localRow; i < colSize; i += groupRows) {
+            int index = col + i * rowSize;
+            output[index] = exp(input[index] - max) / sum;
+        }
     }
 }
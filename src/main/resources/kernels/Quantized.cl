@@ -0,0 +1,86 @@
+// Matrix multiplication of 8-bit quantized operands, see QuantizedMatrix.
+
+// must match WORK_PER_ITEM in Matrices.cl
+#define WORK_PER_ITEM 4
+
+// C = A * B + bias on the values A and B stand for, with the tiling of matrixMultiply in
+// Matrices.cl. A is quantized per row and row-major, B per column and column-major. The
+// 8-bit products are summed in int; scales, zero points and the bias are applied once per
+// element of C.
+// scales holds the aRows scales of A, the bCols scales of B and then the bias if hasBias.
+// channels holds the zero points of A and of B, then the sums of the values of every row
+// of A and every column of B.
+__kernel void
+quantizedMatrixMultiply(__global float* C,
+                        __global const char* A,
+                        __global const char* B,
+                        __global const float* scales,
+                        __global const int* channels,
+                        const int aRows,
+                        const int sharedDimension,
+                        const int bCols,
+                        const int hasBias,
+                        __local int* tileA,
+                        __local int* tileB)
+{
+    const int tileSize = get_local_size(0);
+    const int rowStride = get_local_size(1);
+    const int localCol = get_local_id(0);
+    const int localRow = get_local_id(1);
+    const int tileCol = get_group_id(0) * tileSize;
+    const int globalCol = tileCol + localCol;
+    const int tileRow = get_group_id(1) * tileSize;
+
+    int values[WORK_PER_ITEM];
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        values[w] = 0;
+    }
+
+    const int tiles = (sharedDimension + tileSize - 1) / tileSize;
+    for (int t = 0; t < tiles; t++) {
+        const int shared = t * tileSize + localCol;
+        for (int w = 0; w < WORK_PER_ITEM; w++) {
+            const int row = localRow + w * rowStride;
+            const int aRow = tileRow + row;
+            tileA[row * tileSize + localCol] = (aRow < aRows && shared < sharedDimension)
+                    ? A[aRow * sharedDimension + shared] : 0;
+            // B is column-major, so neighbouring work items read neighbouring values of
+            // column tileCol + row and store them transposed
+            const int bCol = tileCol + row;
+            tileB[localCol * tileSize + row] = (shared < sharedDimension && bCol < bCols)
+                    ? B[bCol * sharedDimension + shared] : 0;
+        }
+
+        barrier(CLK_LOCAL_MEM_FENCE);
+
+        for (int k = 0; k < tileSize; k++) {
+            const int elementB = tileB[k * tileSize + localCol];
+            for (int w = 0; w < WORK_PER_ITEM; w++) {
+                values[w] += tileA[(localRow + w * rowStride) * tileSize + k] * elementB;
+            }
+        }
+
+        // the tiles are overwritten in the next iteration
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+
+    if (globalCol >= bCols) {
+        return;
+    }
+    const float colScale = scales[aRows + globalCol];
+    const int colZeroPoint = channels[aRows + globalCol];
+    const int colSum = channels[2 * aRows + bCols + globalCol];
+    for (int w = 0; w < WORK_PER_ITEM; w++) {
+        const int globalRow = tileRow + localRow + w * rowStride;
+        if (globalRow < aRows) {
+            const int rowZeroPoint = channels[globalRow];
+            const int rowSum = channels[aRows + bCols + globalRow];
+
+            // sum of (a - rowZeroPoint) * (b - colZeroPoint) over the shared dimension
+            const long product = (long) values[w] - (long) colZeroPoint * rowSum - (long) rowZeroPoint * colSum
+                    + (long) sharedDimension * rowZeroPoint * colZeroPoint;
+            const float value = scales[globalRow] * colScale * (float) product;
+            C[globalRow * bCols + globalCol] = hasBias ? value + scales[aRows + bCols + globalCol] : value;
+        }
+    }
+}
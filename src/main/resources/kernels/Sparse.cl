@@ -0,0 +1,27 @@
+// Sparse times dense multiplication, see SparseMatrix.
+
+// C = A * B with A in compressed sparse row form: the non-zeros of row r are
+// values[rowPointers[r] .. rowPointers[r + 1]) in the columns colIndices[...].
+// 2D range over C: dimension 0 runs along the columns, dimension 1 along the rows, so
+// neighbouring work items read neighbouring elements of B.
+__kernel void
+csrMultiply(__global float* C,
+            __global const int* rowPointers,
+            __global const int* colIndices,
+            __global const float* values,
+            __global const float* B,
+            const int aRows,
+            const int bCols)
+{
+    int col = get_global_id(0);
+    int row = get_global_id(1);
+
+    if (col < bCols && row < aRows) {
+        float value = 0.0f;
+        int end = rowPointers[row + 1];
+        for (int i = rowPointers[row]; i < end; i++) {
+            value += values[i] * B[colIndices[i] * bCols + col];
+        }
+        C[row * bCols + col] = value;
+    }
+}
@@ -1,17 +1,51 @@
 package com.github.TannerLow.JavaMatrixMath;
 
+import com.github.TannerLow.JavaMatrixMath.Exceptions.DimensionsMismatchException;
 import com.github.TannerLow.TestUtils.TestFailedException;
 import com.github.TannerLow.TestUtils.TestMath;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
 public class CpuTest {
-    public static void testAll() {
+    public static void testAll() throws IOException {
         testMultiply();
+        testMultiplyOddShapes();
         testAddRowToRows();
         testAddColToCols();
         testRelu();
         testVectorizedReluDerivative();
         testHorizontalSoftmax();
         testVerticalSoftmax();
+        testParallelDeterminism();
+        testVectorKernelsMatchScalar();
+        testLazyExpression();
+        testIntoVariants();
+        testIntoVariantsDoNotAllocate();
+        testDirectMatrix();
+        testMatrixFile();
+        testStreamingMultiply();
+        testSparseMatrix();
+        testMatrixViews();
+        testMatrixBatch();
+        testProgramCache();
+        testDeviceGroupPartition();
+        testDispatcher();
+        testMetrics();
+        testHalfMatrix();
+        testQuantizedMatrix();
+        testStrassenMultiply();
     }
 
     private static void testMultiply() {
@@ -35,6 +69,30 @@ public class CpuTest {
         }
     }
 
+    private static void testMultiplyOddShapes() {
+        // shapes straddling the register tile and the K/M cache blocks
+        int[][] shapes = {{1,1,1}, {5,7,3}, {131,67,259}, {3,300,2}};
+        Random random = new Random(42);
+
+        for(int[] shape : shapes) {
+            Matrix a = randomMatrix(random, shape[0], shape[1]);
+            Matrix b = randomMatrix(random, shape[1], shape[2]);
+            float[] expected = naiveMultiply(a, b);
+
+            Matrix result = a.multiply(b);
+
+            if(result.rows != a.rows || result.cols != b.cols) {
+                throw new TestFailedException();
+            }
+
+            for(int i = 0; i < result.data.length; i++) {
+                if(!TestMath.withinMariginOfError(expected[i], result.data[i], 0.001f)) {
+                    throw new TestFailedException();
+                }
+            }
+        }
+    }
+
     private static void testAddRowToRows() {
         float[] aData = {1,2,3,0,0,0};
         float[] bData = {3,2,1};
@@ -152,4 +210,1117 @@ public class CpuTest {
             }
         }
     }
+
+    private static void testParallelDeterminism() {
+        Random random = new Random(7);
+        Matrix a = randomMatrix(random, 97, 130);
+        Matrix b = randomMatrix(random, 130, 61);
+        Matrix row = randomMatrix(random, 1, 130);
+        Matrix col = randomMatrix(random, 97, 1);
+
+        Matrix[] expected = runAllOperations(a, b, row, col);
+        // several row blocks and K blocks, whose strips Gemm splits across threads
+        Matrix large = randomMatrix(random, 300, 520);
+        Matrix largeOther = randomMatrix(random, 520, 150);
+        Matrix expectedLarge = large.multiply(largeOther);
+
+        try {
+            Parallelism.setThreshold(0);
+            for(int threads : new int[]{2, 3, 8}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    Parallelism.enable(pool);
+                    Matrix[] results = runAllOperations(a, b, row, col);
+                    for(int i = 0; i < expected.length; i++) {
+                        assertBitwiseEqual(expected[i], results[i]);
+                    }
+                    assertBitwiseEqual(expectedLarge, large.multiply(largeOther));
+                }
+                finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+    }
+
+    private static void testVectorKernelsMatchScalar() {
+        CpuKernels scalar = CpuKernels.scalar();
+        CpuKernels vector = CpuKernels.vector();
+        if(vector == null) {
+            System.out.println("Vector API not available, skipping SIMD kernel tests");
+            return;
+        }
+
+        Random random = new Random(3);
+        // lengths chosen to leave loop tails for any vector width
+        int rows = 37;
+        int cols = 53;
+        float[] in = randomMatrix(random, rows, cols).data;
+        float[] row = randomMatrix(random, 1, cols).data;
+        float[] expected = new float[in.length];
+        float[] actual = new float[in.length];
+
+        scalar.relu(in, expected, 3, in.length);
+        vector.relu(in, actual, 3, in.length);
+        assertWithinError(expected, actual, 0);
+
+        scalar.reluDerivative(in, expected, 0, in.length - 5);
+        vector.reluDerivative(in, actual, 0, in.length - 5);
+        assertWithinError(expected, actual, 0);
+
+        for(int r = 0; r < rows; r++) {
+            scalar.addRow(in, row, expected, r * cols, cols);
+            vector.addRow(in, row, actual, r * cols, cols);
+        }
+        assertWithinError(expected, actual, 0);
+
+        for(int r = 0; r < rows; r++) {
+            scalar.addScalar(in, row[r], expected, r * cols, cols);
+            vector.addScalar(in, row[r], actual, r * cols, cols);
+        }
+        assertWithinError(expected, actual, 0);
+
+        for(int r = 1; r < rows; r++) {
+            scalar.scaleAdd(row[r], in, (r - 1) * cols + 1, expected, r * cols, cols - 1);
+            vector.scaleAdd(row[r], in, (r - 1) * cols + 1, actual, r * cols, cols - 1);
+        }
+        assertWithinError(expected, actual, 0);
+
+        for(int r = 0; r < rows; r++) {
+            scalar.horizontalSoftmax(in, expected, r * cols, cols);
+            vector.horizontalSoftmax(in, actual, r * cols, cols);
+        }
+        assertWithinError(expected, actual, 0.000001f);
+
+        scalar.verticalSoftmax(in, expected, rows, cols, 0, cols);
+        vector.verticalSoftmax(in, actual, rows, cols, 0, cols);
+        assertWithinError(expected, actual, 0.000001f);
+
+        for(float x = -87f; x <= 0; x += 0.01f) {
+            float exact = (float) Math.exp(x);
+            if(Math.abs(VectorCpuKernels.exp(x) - exact) > exact * 0.000001f) {
+                throw new TestFailedException();
+            }
+        }
+
+        byte[] bytes = new byte[in.length];
+        random.nextBytes(bytes);
+        for(int r = 1; r < rows; r++) {
+            if(scalar.dotInt8(bytes, (r - 1) * cols + 1, bytes, r * cols, cols - 1) !=
+               vector.dotInt8(bytes, (r - 1) * cols + 1, bytes, r * cols, cols - 1)) {
+                throw new TestFailedException();
+            }
+        }
+        if(scalar.dotInt8(bytes, 0, bytes, 0, bytes.length) != vector.dotInt8(bytes, 0, bytes, 0, bytes.length)) {
+            throw new TestFailedException();
+        }
+
+        int[][] shapes = {{5,7,3}, {131,67,259}, {70,300,45}};
+        for(int[] shape : shapes) {
+            Matrix a = randomMatrix(random, shape[0], shape[1]);
+            Matrix b = randomMatrix(random, shape[1], shape[2]);
+            float[] scalarResult = new float[shape[0] * shape[2]];
+            float[] vectorResult = new float[shape[0] * shape[2]];
+
+            Gemm.multiply(scalar, shape[0], shape[2], shape[1],
+                    a.data, 0, shape[1], b.data, 0, shape[2], scalarResult, 0, shape[2]);
+            Gemm.multiply(vector, shape[0], shape[2], shape[1],
+                    a.data, 0, shape[1], b.data, 0, shape[2], vectorResult, 0, shape[2]);
+            assertWithinError(scalarResult, vectorResult, 0.001f);
+        }
+    }
+
+    private static void testLazyExpression() {
+        Random random = new Random(11);
+        // wide enough for several GEMM column strips and a partial one
+        Matrix x = randomMatrix(random, 67, 45);
+        Matrix w = randomMatrix(random, 45, 131);
+        Matrix w2 = randomMatrix(random, 131, 19);
+        Matrix bias = randomMatrix(random, 1, 131);
+        Matrix colBias = randomMatrix(random, 67, 1);
+        float[] xCopy = x.data.clone();
+
+        // fused results must be identical to running the operations one by one
+        assertBitwiseEqual(x.multiply(w).addRowToRows(bias).relu().horizontalSoftmax(),
+                x.lazy().multiply(w).addRowToRows(bias).relu().horizontalSoftmax().evaluate());
+        assertBitwiseEqual(x.multiply(w).addColToCols(colBias).vectorizedReluDerivative(),
+                x.lazy().multiply(w).addColToCols(colBias).reluDerivative().evaluate());
+        assertBitwiseEqual(x.addColToCols(colBias).relu().multiply(w).relu().multiply(w2).verticalSoftmax(),
+                x.lazy().addColToCols(colBias).relu().multiply(w).relu().multiply(w2).verticalSoftmax().evaluate());
+        assertBitwiseEqual(x.horizontalSoftmax().relu(),
+                x.lazy().horizontalSoftmax().relu().evaluate());
+
+        // an empty expression copies, and the source is never written
+        Matrix copy = x.lazy().evaluate();
+        assertBitwiseEqual(x, copy);
+        if(copy.data == x.data) {
+            throw new TestFailedException();
+        }
+        for(int i = 0; i < xCopy.length; i++) {
+            if(Float.floatToRawIntBits(xCopy[i]) != Float.floatToRawIntBits(x.data[i])) {
+                throw new TestFailedException();
+            }
+        }
+    }
+
+    private static void testIntoVariants() {
+        Random random = new Random(5);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix row = randomMatrix(random, 1, 53);
+        Matrix col = randomMatrix(random, 37, 1);
+
+        Matrix out = new Matrix(37, 29);
+        a.multiplyInto(b, out);
+        assertBitwiseEqual(a.multiply(b), out);
+
+        Matrix same = new Matrix(37, 53);
+        a.addRowToRowsInto(row, same);
+        assertBitwiseEqual(a.addRowToRows(row), same);
+        a.addColToColsInto(col, same);
+        assertBitwiseEqual(a.addColToCols(col), same);
+        a.reluInto(same);
+        assertBitwiseEqual(a.relu(), same);
+        a.vectorizedReluDerivativeInto(same);
+        assertBitwiseEqual(a.vectorizedReluDerivative(), same);
+        a.horizontalSoftmaxInto(same);
+        assertBitwiseEqual(a.horizontalSoftmax(), same);
+        a.verticalSoftmaxInto(same);
+        assertBitwiseEqual(a.verticalSoftmax(), same);
+
+        // in place gives the same results as writing to a new matrix
+        Matrix expected = a.addRowToRows(row).addColToCols(col).relu().horizontalSoftmax().verticalSoftmax();
+        Matrix inPlace = new Matrix(a.rows, a.cols, a.data.clone());
+        inPlace.addRowToRowsInPlace(row);
+        inPlace.addColToColsInPlace(col);
+        inPlace.reluInPlace();
+        inPlace.horizontalSoftmaxInPlace();
+        inPlace.verticalSoftmaxInPlace();
+        assertBitwiseEqual(expected, inPlace);
+
+        // wrong output shape
+        try {
+            a.reluInto(out);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+
+        // the output of a multiplication must not alias an operand
+        Matrix square = randomMatrix(random, 8, 8);
+        try {
+            square.multiplyInto(square, square);
+            throw new TestFailedException();
+        }
+        catch(IllegalArgumentException e) {
+            if(e instanceof DimensionsMismatchException) {
+                throw new TestFailedException();
+            }
+        }
+        try {
+            square.multiplyInto(new Matrix(8, 8), new Matrix(8, 8, square.data));
+            throw new TestFailedException();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testIntoVariantsDoNotAllocate() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Skipping allocation test, allocated bytes are not measurable on this JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if(!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            System.out.println("Skipping allocation test, allocated bytes are not measurable on this JVM.");
+            return;
+        }
+
+        Random random = new Random(3);
+        Matrix x = randomMatrix(random, 32, 64);
+        Matrix w = randomMatrix(random, 64, 48);
+        Matrix bias = randomMatrix(random, 1, 48);
+        Matrix colBias = randomMatrix(random, 32, 1);
+        Matrix hidden = new Matrix(32, 48);
+        Matrix mask = new Matrix(32, 48);
+
+        // one layer forward plus the relu mask, as a training loop would run it
+        Runnable layer = () -> {
+            x.multiplyInto(w, hidden);
+            hidden.addRowToRowsInPlace(bias);
+            hidden.addColToColsInPlace(colBias);
+            hidden.vectorizedReluDerivativeInto(mask);
+            hidden.reluInPlace();
+            hidden.horizontalSoftmaxInPlace();
+            hidden.verticalSoftmaxInPlace();
+        };
+
+        // let the JIT compile the hot path first
+        for(int i = 0; i < 20000; i++) {
+            layer.run();
+        }
+
+        long before = allocationBean.getCurrentThreadAllocatedBytes();
+        for(int i = 0; i < 1000; i++) {
+            layer.run();
+        }
+        long allocated = allocationBean.getCurrentThreadAllocatedBytes() - before;
+
+        if(allocated != 0) {
+            System.out.println("Steady state allocated " + allocated + " bytes");
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testDirectMatrix() {
+        Random random = new Random(13);
+        Matrix a = randomMatrix(random, 7, 5);
+
+        DirectMatrix direct;
+        DirectMatrix other;
+        try(MatrixArena arena = new MatrixArena()) {
+            direct = arena.copyOf(a);
+            assertBitwiseEqual(a, direct.toMatrix());
+            if(direct.get(3, 4) != a.data[3 * 5 + 4]) {
+                throw new TestFailedException();
+            }
+
+            direct.set(3, 4, 42);
+            float[] row = new float[5];
+            direct.get(3 * 5, row, 0, 5);
+            if(row[4] != 42) {
+                throw new TestFailedException();
+            }
+            row[0] = 7;
+            direct.put(3 * 5, row, 0, 1);
+            if(direct.get(3, 0) != 7) {
+                throw new TestFailedException();
+            }
+
+            // closing a matrix early is fine, the arena skips it
+            other = arena.allocate(2, 2);
+            other.close();
+        }
+
+        if(!direct.isClosed() || !other.isClosed()) {
+            throw new TestFailedException();
+        }
+        try {
+            direct.get(0, 0);
+            throw new TestFailedException();
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+
+        try(DirectMatrix single = DirectMatrix.allocate(7, 5)) {
+            single.copyFrom(a);
+            Matrix copy = new Matrix(7, 5);
+            single.copyTo(copy);
+            assertBitwiseEqual(a, copy);
+
+            try {
+                single.copyTo(new Matrix(5, 7));
+                throw new TestFailedException();
+            }
+            catch(DimensionsMismatchException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void testMatrixFile() throws IOException {
+        Random random = new Random(17);
+        Matrix a = randomMatrix(random, 300, 1001);
+        Path file = Files.createTempFile("matrix", ".jmat");
+        try {
+            MatrixFile.write(file, a);
+            assertBitwiseEqual(a, MatrixFile.read(file));
+            try(DirectMatrix mapped = MatrixFile.map(file)) {
+                assertBitwiseEqual(a, mapped.toMatrix());
+                // written from a direct matrix gives the same file
+                Path copy = Files.createTempFile("matrix", ".jmat");
+                try {
+                    MatrixFile.write(copy, mapped);
+                    if(Files.mismatch(file, copy) != -1) {
+                        throw new TestFailedException();
+                    }
+                }
+                finally {
+                    Files.delete(copy);
+                }
+            }
+
+            Matrix empty = new Matrix(0, 5);
+            MatrixFile.write(file, empty);
+            Matrix readEmpty = MatrixFile.read(file);
+            if(readEmpty.rows != 0 || readEmpty.cols != 5) {
+                throw new TestFailedException();
+            }
+
+            // a truncated payload and a wrong magic number are rejected
+            MatrixFile.write(file, a);
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 4);
+            }
+            assertNotAMatrixFile(file);
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{'N', 'O', 'P', 'E'}), 0);
+            }
+            assertNotAMatrixFile(file);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void testStreamingMultiply() throws IOException {
+        Random random = new Random(19);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix expected = a.multiply(b);
+
+        // uneven panels, the shared dimension in one piece gives the same sums as multiply
+        Matrix result = new Matrix(37, 29);
+        new StreamingMultiply(8, 7, 64).multiply(MatrixSource.of(a), MatrixSource.of(b), MatrixSink.of(result));
+        assertBitwiseEqual(expected, result);
+
+        // a split shared dimension only changes the order of the additions
+        result = new Matrix(37, 29);
+        new StreamingMultiply(16, 10, 20).multiply(MatrixSource.of(a), MatrixSource.of(b), MatrixSink.of(result));
+        assertWithinError(expected.data, result.data, 0.0001f);
+
+        // from files to a file
+        Path fileA = Files.createTempFile("matrix", ".jmat");
+        Path fileB = Files.createTempFile("matrix", ".jmat");
+        Path fileC = Files.createTempFile("matrix", ".jmat");
+        try {
+            MatrixFile.write(fileA, a);
+            MatrixFile.write(fileB, b);
+            try(MatrixFile.Source sourceA = MatrixFile.openSource(fileA);
+                MatrixFile.Source sourceB = MatrixFile.openSource(fileB);
+                MatrixFile.Sink sinkC = MatrixFile.createSink(fileC, 37, 29)) {
+                new StreamingMultiply(10, 8, 64).multiply(sourceA, sourceB, sinkC);
+            }
+            assertBitwiseEqual(expected, MatrixFile.read(fileC));
+        }
+        finally {
+            Files.delete(fileA);
+            Files.delete(fileB);
+            Files.delete(fileC);
+        }
+
+        // an empty shared dimension gives zeros
+        result = new Matrix(3, 4, new float[]{1,1,1,1,1,1,1,1,1,1,1,1});
+        new StreamingMultiply(2, 2, 2).multiply(MatrixSource.of(new Matrix(3, 0)),
+                MatrixSource.of(new Matrix(0, 4)), MatrixSink.of(result));
+        assertBitwiseEqual(new Matrix(3, 4), result);
+
+        try {
+            new StreamingMultiply().multiply(MatrixSource.of(a), MatrixSource.of(a), MatrixSink.of(result));
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+    }
+
+    private static void testSparseMatrix() {
+        Random random = new Random(23);
+        Matrix a = randomMatrix(random, 37, 53);
+        for(int i = 0; i < a.data.length; i++) {
+            if(random.nextFloat() < 0.95f) {
+                a.data[i] = 0;
+            }
+        }
+        Matrix b = randomMatrix(random, 53, 29);
+
+        SparseMatrix rowLayout = SparseMatrix.fromDense(a);
+        SparseMatrix colLayout = SparseMatrix.fromDense(a, SparseMatrix.Layout.COLUMN);
+        assertBitwiseEqual(a, rowLayout.toDense());
+        assertBitwiseEqual(a, colLayout.toDense());
+        assertBitwiseEqual(a, rowLayout.toLayout(SparseMatrix.Layout.COLUMN).toDense());
+        assertBitwiseEqual(a, colLayout.toLayout(SparseMatrix.Layout.ROW).toDense());
+        if(rowLayout.nonZeros() != colLayout.nonZeros() || rowLayout.density() != SparseMatrix.density(a)) {
+            throw new TestFailedException();
+        }
+        if(!SparseMatrix.shouldBeSparse(a) || SparseMatrix.shouldBeSparse(b)) {
+            throw new TestFailedException();
+        }
+
+        Matrix expected = a.multiply(b);
+        Matrix result = rowLayout.multiply(b);
+        assertWithinError(expected.data, result.data, 0.00001f);
+        assertBitwiseEqual(result, colLayout.multiply(b));
+        assertBitwiseEqual(result, SparseMatrix.multiplyByDensity(a, b));
+
+        // split across threads the sums stay the same
+        Parallelism.enable(new ForkJoinPool(4));
+        Parallelism.setThreshold(0);
+        try {
+            assertBitwiseEqual(result, rowLayout.multiply(b));
+            assertBitwiseEqual(result, colLayout.multiply(b));
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+
+        try {
+            rowLayout.multiply(a);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            new SparseMatrix(2, 2, SparseMatrix.Layout.ROW, new int[]{0, 2, 1}, new int[]{0}, new float[]{1});
+            throw new TestFailedException();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testMatrixViews() {
+        Random random = new Random(29);
+        // larger than one KC block of the shared dimension
+        Matrix a = randomMatrix(random, 300, 37);
+        Matrix b = randomMatrix(random, 300, 29);
+        Matrix c = randomMatrix(random, 29, 37);
+
+        MatrixView aTransposed = a.view().transpose();
+        if(!aTransposed.isTransposed() || aTransposed.transpose().isTransposed() ||
+           aTransposed.rows != 37 || aTransposed.cols != 300 || aTransposed.get(5, 7) != a.data[7 * 37 + 5]) {
+            throw new TestFailedException();
+        }
+        assertBitwiseEqual(a, aTransposed.transpose().toMatrix());
+
+        // A^T * B and A * C^T give the same bits as multiplying the materialized transpose
+        Matrix transposeProduct = aTransposed.toMatrix().multiply(b);
+        Matrix transposedProduct = a.multiply(c.view().transpose().toMatrix());
+        assertWithinError(naiveMultiply(aTransposed.toMatrix(), b), transposeProduct.data, 0.0001f);
+        assertBitwiseEqual(transposeProduct, aTransposed.multiply(b));
+        assertBitwiseEqual(transposedProduct, a.view().multiply(c.view().transpose()));
+
+        // mini-batches of rows, and a slice of columns of a transposed view
+        MatrixView batch = a.view().rows(100, 164);
+        assertBitwiseEqual(batch.toMatrix().multiply(c.view().transpose().toMatrix()),
+                batch.multiply(c.view().transpose()));
+        MatrixView slice = aTransposed.cols(10, 50).rows(2, 30);
+        if(slice.get(3, 4) != a.data[14 * 37 + 5]) {
+            throw new TestFailedException();
+        }
+        assertBitwiseEqual(slice.toMatrix().multiply(b.view().rows(60, 100).toMatrix()),
+                slice.multiply(b.view().rows(60, 100)));
+
+        Parallelism.enable(new ForkJoinPool(4));
+        Parallelism.setThreshold(0);
+        try {
+            assertBitwiseEqual(transposeProduct, aTransposed.multiply(b));
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+
+        try {
+            a.view().multiply(b);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            aTransposed.multiplyInto(b.view(), a);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            a.view().rows(10, 301);
+            throw new TestFailedException();
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    private static void testMatrixBatch() {
+        Random random = new Random(31);
+        Matrix[] a = new Matrix[100];
+        Matrix[] b = new Matrix[100];
+        for(int i = 0; i < a.length; i++) {
+            a[i] = randomMatrix(random, 8, 16);
+            b[i] = randomMatrix(random, 16, 12);
+        }
+        Matrix weights = randomMatrix(random, 16, 12);
+
+        MatrixBatch batchA = MatrixBatch.of(a);
+        MatrixBatch products = batchA.multiply(MatrixBatch.of(b));
+        MatrixBatch weighted = batchA.multiply(MatrixBatch.of(weights));
+        Matrix[] arrayProducts = MatrixBatch.multiply(a, b);
+        if(products.count != 100 || weighted.count != 100 || products.rows != 8 || products.cols != 12) {
+            throw new TestFailedException();
+        }
+        for(int i = 0; i < a.length; i++) {
+            assertWithinError(naiveMultiply(a[i], b[i]), products.get(i).data, 0.00001f);
+            assertWithinError(naiveMultiply(a[i], weights), weighted.get(i).data, 0.00001f);
+            assertBitwiseEqual(products.get(i), arrayProducts[i]);
+        }
+
+        // matrices above the small size go through the blocked GEMM
+        Matrix[] large = {randomMatrix(random, 70, 65), randomMatrix(random, 70, 65)};
+        Matrix[] largeWeights = {randomMatrix(random, 65, 20), randomMatrix(random, 65, 20)};
+        Matrix[] largeProducts = MatrixBatch.multiply(large, largeWeights);
+        for(int i = 0; i < large.length; i++) {
+            assertBitwiseEqual(large[i].multiply(largeWeights[i]), largeProducts[i]);
+        }
+
+        Parallelism.enable(new ForkJoinPool(4));
+        Parallelism.setThreshold(0);
+        try {
+            MatrixBatch parallel = batchA.multiply(MatrixBatch.of(b));
+            for(int i = 0; i < a.length; i++) {
+                assertBitwiseEqual(products.get(i), parallel.get(i));
+            }
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+
+        try {
+            batchA.multiply(batchA);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            MatrixBatch.of(a[0], b[0]);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+    }
+
+    private static void testProgramCache() throws IOException {
+        String key = ProgramCache.key("kernel source", "device", "driver 1.0", "");
+        if(!key.equals(ProgramCache.key("kernel source", "device", "driver 1.0", "")) ||
+           key.equals(ProgramCache.key("kernel source ", "device", "driver 1.0", "")) ||
+           key.equals(ProgramCache.key("kernel source", "device", "driver 1.1", "")) ||
+           key.equals(ProgramCache.key("kernel source", "other device", "driver 1.0", "")) ||
+           key.equals(ProgramCache.key("kernel source", "device", "driver 1.0", "-cl-fast-relaxed-math")) ||
+           ProgramCache.key("ab", "c", "", "").equals(ProgramCache.key("a", "bc", "", ""))) {
+            throw new TestFailedException();
+        }
+
+        Path directory = Files.createTempDirectory("program-cache");
+        Path file = directory.resolve(key + ".clbin");
+        try {
+            ProgramCache cache = new ProgramCache(directory);
+            byte[] binary = {1, 2, 3, 4, 5, 6, 7, 8};
+            if(cache.load(key) != null || cache.getMisses() != 1) {
+                throw new TestFailedException();
+            }
+            cache.store(key, binary);
+            if(!Arrays.equals(binary, cache.load(key)) || cache.getHits() != 1) {
+                throw new TestFailedException();
+            }
+
+            // damaged and truncated entries read as missing
+            byte[] contents = Files.readAllBytes(file);
+            contents[contents.length - 1] ^= 1;
+            Files.write(file, contents);
+            if(cache.load(key) != null) {
+                throw new TestFailedException();
+            }
+            Files.write(file, new byte[3]);
+            if(cache.load(key) != null) {
+                throw new TestFailedException();
+            }
+
+            cache.store(key, binary);
+            cache.invalidate(key);
+            if(cache.load(key) != null || cache.getInvalidations() != 1 || Files.exists(file)) {
+                throw new TestFailedException();
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    private static void testDeviceGroupPartition() {
+        double[] speeds = {1, 3, 2};
+
+        // blocks follow the speeds and cover every row exactly once
+        int[] all = DeviceGroup.pickDevices(speeds, 600, DeviceGroup.MIN_ROWS_PER_DEVICE);
+        int[] bounds = DeviceGroup.partition(speeds, 600, all, DeviceGroup.MIN_ROWS_PER_DEVICE);
+        if(!Arrays.equals(all, new int[]{0, 1, 2}) || !Arrays.equals(bounds, new int[]{0, 100, 400, 600})) {
+            throw new TestFailedException();
+        }
+
+        // too little work for every device goes to the fastest ones, each with at least the
+        // minimum
+        int[] two = DeviceGroup.pickDevices(speeds, 150, DeviceGroup.MIN_ROWS_PER_DEVICE);
+        if(!Arrays.equals(two, new int[]{1, 2}) ||
+           !Arrays.equals(DeviceGroup.partition(speeds, 150, two, DeviceGroup.MIN_ROWS_PER_DEVICE),
+                   new int[]{0, 86, 150})) {
+            throw new TestFailedException();
+        }
+        int[] one = DeviceGroup.pickDevices(speeds, 10, DeviceGroup.MIN_ROWS_PER_DEVICE);
+        if(!Arrays.equals(one, new int[]{1}) ||
+           !Arrays.equals(DeviceGroup.partition(speeds, 10, one, DeviceGroup.MIN_ROWS_PER_DEVICE), new int[]{0, 10})) {
+            throw new TestFailedException();
+        }
+
+        // a much slower device is not starved of rows
+        double[] skewed = {1, 1000};
+        int[] both = DeviceGroup.pickDevices(skewed, 600, DeviceGroup.MIN_ROWS_PER_DEVICE);
+        if(!Arrays.equals(both, new int[]{0, 1}) ||
+           !Arrays.equals(DeviceGroup.partition(skewed, 600, both, DeviceGroup.MIN_ROWS_PER_DEVICE),
+                   new int[]{0, DeviceGroup.MIN_ROWS_PER_DEVICE, 600})) {
+            throw new TestFailedException();
+        }
+        // fewer rows than the minimum for every device are split evenly, no block is empty
+        if(!Arrays.equals(DeviceGroup.partition(skewed, 100, both, DeviceGroup.MIN_ROWS_PER_DEVICE),
+                new int[]{0, 50, 100})) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testDispatcher() throws IOException {
+        // 10 GFLOP/s CPU; GPU at 1 TFLOP/s behind 10 GB/s transfers and 100us of latency
+        CostModel model = new CostModel("device", "driver 1.0", 1e10, 1e9, 1e12, 1e11, 1e10, 1e-4);
+        double smallFlops = 2.0 * 16 * 16 * 16;
+        double smallBytes = 4.0 * 3 * 16 * 16;
+        double largeFlops = 2.0 * 2048 * 2048 * 2048;
+        double largeBytes = 4.0 * 3 * 2048 * 2048;
+        if(model.cpuSeconds(Dispatcher.Operation.MULTIPLY, smallFlops) >=
+           model.gpuSeconds(Dispatcher.Operation.MULTIPLY, smallFlops, smallBytes) ||
+           model.cpuSeconds(Dispatcher.Operation.MULTIPLY, largeFlops) <=
+           model.gpuSeconds(Dispatcher.Operation.MULTIPLY, largeFlops, largeBytes)) {
+            throw new TestFailedException();
+        }
+
+        // without a GPU every call runs on the CPU and is counted as such
+        Dispatcher dispatcher = new Dispatcher(null, model);
+        Random random = new Random(20);
+        Matrix a = randomMatrix(random, 30, 20);
+        Matrix b = randomMatrix(random, 20, 10);
+        assertBitwiseEqual(a.multiply(b), dispatcher.multiply(a, b));
+        assertBitwiseEqual(a.relu(), dispatcher.relu(a));
+        assertBitwiseEqual(a.horizontalSoftmax(), dispatcher.horizontalSoftmax(a));
+        if(dispatcher.getCount(Dispatcher.Operation.MULTIPLY, Dispatcher.Reason.NO_GPU) != 1 ||
+           dispatcher.getCount(Dispatcher.Reason.NO_GPU) != 3 ||
+           dispatcher.getCount(Dispatcher.Backend.CPU) != 3 ||
+           dispatcher.getCount(Dispatcher.Backend.GPU) != 0) {
+            throw new TestFailedException();
+        }
+        Dispatcher.Decision decision = dispatcher.decide(Dispatcher.Operation.MULTIPLY, 2048, 2048, 2048);
+        if(decision.backend != Dispatcher.Backend.CPU || decision.gpuSeconds >= decision.cpuSeconds) {
+            throw new TestFailedException();
+        }
+        dispatcher.resetCounts();
+        if(dispatcher.getCount(Dispatcher.Reason.NO_GPU) != 0) {
+            throw new TestFailedException();
+        }
+
+        // saved models are reused only for the device and driver they were measured on
+        Path directory = Files.createTempDirectory("cost-model");
+        Path file = directory.resolve("cost-model.properties");
+        try {
+            model.save(file);
+            CostModel loaded = CostModel.load(file);
+            if(loaded == null || !"device".equals(loaded.getDeviceName()) ||
+               !"driver 1.0".equals(loaded.getDriverVersion()) ||
+               loaded.getGpuLatencySeconds() != model.getGpuLatencySeconds() ||
+               loaded.getCpuMultiplyFlopsPerSecond() != model.getCpuMultiplyFlopsPerSecond() ||
+               loaded.isFor(null)) {
+                throw new TestFailedException();
+            }
+
+            CostModel measured = CostModel.loadOrCalibrate(file, null);
+            if(!measured.isFor(null) || measured.hasGpu() || measured.getCpuMultiplyFlopsPerSecond() <= 0 ||
+               !CostModel.load(file).isFor(null)) {
+                throw new TestFailedException();
+            }
+
+            Files.write(file, new byte[]{'x', '=', '1'});
+            if(CostModel.load(file) != null) {
+                throw new TestFailedException();
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    private static void testMetrics() {
+        Random random = new Random(22);
+        Matrix a = randomMatrix(random, 40, 30);
+        Matrix b = randomMatrix(random, 30, 20);
+
+        MetricsRecorder recorder = new MetricsRecorder();
+        ObjectName name;
+        Metrics.addListener(recorder);
+        try {
+            name = recorder.registerMBean();
+            a.multiply(b);
+            a.multiply(b);
+            a.relu();
+
+            if(recorder.getOperationCounts().get("multiply/CPU") != 2 ||
+               recorder.getOperationCounts().get("relu/CPU") != 1 ||
+               recorder.getOperationNanos().get("multiply/CPU") <= 0 ||
+               recorder.getOperationGflops().get("multiply/CPU") <= 0 ||
+               Arrays.stream(recorder.getLatencyHistogram("multiply/CPU")).sum() != 2) {
+                throw new TestFailedException();
+            }
+
+            // the same numbers over JMX
+            Object counts = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OperationCounts");
+            if(!(counts instanceof TabularData) || ((TabularData) counts).size() != 2) {
+                throw new TestFailedException();
+            }
+            recorder.unregisterMBean(name);
+        }
+        catch(JMException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            Metrics.removeListener(recorder);
+        }
+
+        // nothing is recorded without listeners
+        a.multiply(b);
+        if(Metrics.isEnabled() || recorder.getOperationCounts().get("multiply/CPU") != 2) {
+            throw new TestFailedException();
+        }
+        recorder.reset();
+        if(!recorder.getOperationCounts().isEmpty()) {
+            throw new TestFailedException();
+        }
+
+        if(MetricsRecorder.bucket(0) != 0 || MetricsRecorder.bucket(1_500) != 1 ||
+           MetricsRecorder.bucket(3_000) != 2 || MetricsRecorder.bucket(Long.MAX_VALUE) != MetricsRecorder.HISTOGRAM_BUCKETS - 1) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testHalfMatrix() {
+        HalfMatrix.Format half = HalfMatrix.Format.FLOAT16;
+        HalfMatrix.Format brain = HalfMatrix.Format.BFLOAT16;
+        if(half.fromFloat(1) != 0x3c00 || half.fromFloat(-2) != (short) 0xc000 ||
+           half.fromFloat(65504) != 0x7bff || half.fromFloat(65520) != 0x7c00 ||
+           half.fromFloat(0x1p-24f) != 0x0001 || half.fromFloat(0x1p-26f) != 0 ||
+           half.fromFloat(1 + 0x1p-11f) != 0x3c00 || half.fromFloat(1 + 0x3p-11f) != 0x3c02 ||
+           !Float.isNaN(half.toFloat(half.fromFloat(Float.NaN)))) {
+            throw new TestFailedException();
+        }
+        if(brain.fromFloat(1) != 0x3f80 || brain.toFloat((short) 0x3f80) != 1 ||
+           brain.fromFloat(1 + 0x1p-8f) != 0x3f80 || brain.fromFloat(1 + 0x3p-8f) != 0x3f82 ||
+           !Float.isNaN(brain.toFloat(brain.fromFloat(Float.NaN)))) {
+            throw new TestFailedException();
+        }
+
+        // every value that is not NaN survives the round trip through float
+        for(int bits = 0; bits <= 0xffff; bits++) {
+            for(HalfMatrix.Format format : HalfMatrix.Format.values()) {
+                float value = format.toFloat((short) bits);
+                if(!Float.isNaN(value) && format.fromFloat(value) != (short) bits) {
+                    throw new TestFailedException();
+                }
+            }
+        }
+
+        // products accumulate in float, so they match the float product of the widened operands
+        Random random = new Random(23);
+        Matrix a = randomMatrix(random, 70, 90);
+        Matrix b = randomMatrix(random, 90, 50);
+        HalfMatrix halfA = HalfMatrix.of(a, half);
+        HalfMatrix brainB = HalfMatrix.of(b, brain);
+        Matrix widenedA = halfA.toMatrix();
+        Matrix widenedB = brainB.toMatrix();
+        assertWithinError(a.data, widenedA.data, 0.001f);
+        assertWithinError(b.data, widenedB.data, 0.01f);
+
+        Matrix expected = widenedA.multiply(widenedB);
+        assertBitwiseEqual(expected, halfA.multiply(brainB));
+        assertBitwiseEqual(expected, halfA.multiply(widenedB));
+        assertBitwiseEqual(expected, HalfMatrix.multiply(widenedA, brainB));
+        Parallelism.enable(new ForkJoinPool(4));
+        Parallelism.setThreshold(0);
+        try {
+            assertBitwiseEqual(expected, halfA.multiply(brainB));
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+
+        try {
+            brainB.multiply(halfA);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            new HalfMatrix(2, 3, half, new short[5]);
+            throw new TestFailedException();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testQuantizedMatrix() {
+        Random random = new Random(24);
+        Matrix x = randomMatrix(random, 40, 300);
+        Matrix w = randomMatrix(random, 300, 70);
+        Matrix bias = randomMatrix(random, 1, 70);
+        // zeros survive quantization exactly
+        x.data[5] = 0;
+        Arrays.fill(w.data, 0, w.cols, 0);
+
+        QuantizedMatrix quantizedX = QuantizedMatrix.quantize(x, QuantizedMatrix.Axis.ROW);
+        QuantizedMatrix quantizedW = QuantizedMatrix.quantize(w, QuantizedMatrix.Axis.COLUMN);
+        Matrix dequantizedX = quantizedX.dequantize();
+        Matrix dequantizedW = quantizedW.dequantize();
+        for(int row = 0; row < x.rows; row++) {
+            for(int col = 0; col < x.cols; col++) {
+                int index = row * x.cols + col;
+                if(Math.abs(x.data[index] - dequantizedX.data[index]) > quantizedX.scales[row] * 0.5001f) {
+                    throw new TestFailedException();
+                }
+            }
+        }
+        for(int row = 0; row < w.rows; row++) {
+            for(int col = 0; col < w.cols; col++) {
+                int index = row * w.cols + col;
+                if(Math.abs(w.data[index] - dequantizedW.data[index]) > quantizedW.scales[col] * 0.5001f) {
+                    throw new TestFailedException();
+                }
+            }
+        }
+        if(dequantizedX.data[5] != 0 || dequantizedW.data[0] != 0 || dequantizedW.data[w.cols - 1] != 0) {
+            throw new TestFailedException();
+        }
+
+        // the integer product matches the float product of the dequantized operands ...
+        Matrix result = quantizedX.multiply(quantizedW, bias);
+        assertWithinError(dequantizedX.multiply(dequantizedW).addRowToRows(bias).data, result.data, 0.0005f);
+        assertWithinError(dequantizedX.multiply(dequantizedW).data, quantizedX.multiply(quantizedW).data, 0.0005f);
+
+        // ... and stays close to the float path on the original values
+        Matrix expected = x.multiply(w).addRowToRows(bias);
+        double squaredError = 0;
+        double squaredExpected = 0;
+        for(int i = 0; i < expected.data.length; i++) {
+            squaredError += (expected.data[i] - result.data[i]) * (expected.data[i] - result.data[i]);
+            squaredExpected += expected.data[i] * expected.data[i];
+        }
+        if(Math.sqrt(squaredError / squaredExpected) > 0.01) {
+            throw new TestFailedException();
+        }
+
+        // int sums do not depend on the split across threads
+        Parallelism.enable(new ForkJoinPool(4));
+        Parallelism.setThreshold(0);
+        try {
+            assertBitwiseEqual(result, quantizedX.multiply(quantizedW, bias));
+        }
+        finally {
+            Parallelism.disable();
+            Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+        }
+
+        try {
+            quantizedW.multiply(quantizedX);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+        try {
+            QuantizedMatrix.quantize(x, QuantizedMatrix.Axis.COLUMN).multiply(quantizedW);
+            throw new TestFailedException();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            quantizedX.multiply(quantizedW, new Matrix(1, 69));
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+    }
+
+    private static void testStrassenMultiply() {
+        Random random = new Random(25);
+        // a small cutoff so that several levels run, odd sizes so that every level peels
+        StrassenMultiply strassen = new StrassenMultiply(16);
+        int[][] shapes = {{64,64,64}, {100,100,100}, {67,45,131}, {131,67,259}};
+        for(int[] shape : shapes) {
+            Matrix a = randomMatrix(random, shape[0], shape[1]);
+            Matrix b = randomMatrix(random, shape[1], shape[2]);
+            Matrix result = strassen.multiply(a, b);
+            Matrix classical = a.multiply(b);
+            int levels = strassen.levels(shape[0], shape[1], shape[2]);
+            if(levels < 2) {
+                throw new TestFailedException();
+            }
+
+            // Error bounds in units of u * max|a| * max|b| with u = 2^-24 (Higham, Accuracy and
+            // Stability of Numerical Algorithms, ch. 23): n^2 for the classical product, and
+            // (n0^2 + 6 n0) * 18^levels for Winograd's variant with n0 the base case size.
+            double[] expected = naiveMultiplyDouble(a, b);
+            double unit = 0x1p-24 * maxAbs(a) * maxAbs(b);
+            int baseSize = (shape[1] >> levels) + 1;
+            double strassenBound = (baseSize * baseSize + 6.0 * baseSize) * Math.pow(18, levels) * unit;
+            double classicalBound = (double) shape[1] * shape[1] * unit;
+            if(maxError(expected, result) > strassenBound || maxError(expected, classical) > classicalBound) {
+                throw new TestFailedException();
+            }
+            // in practice the error stays far below the bound, close to the classical one
+            assertWithinError(classical.data, result.data, 0.0002f);
+
+            // forked products are computed exactly like sequential ones
+            Parallelism.enable(new ForkJoinPool(4));
+            Parallelism.setThreshold(0);
+            try {
+                assertBitwiseEqual(result, strassen.multiply(a, b));
+            }
+            finally {
+                Parallelism.disable();
+                Parallelism.setThreshold(Parallelism.DEFAULT_THRESHOLD);
+            }
+        }
+
+        // below the cutoff it is the blocked GEMM itself
+        Matrix a = randomMatrix(random, 16, 40);
+        Matrix b = randomMatrix(random, 40, 50);
+        assertBitwiseEqual(a.multiply(b), strassen.multiply(a, b));
+        if(new StrassenMultiply().levels(4096, 4096, 4096) != 2) {
+            throw new TestFailedException();
+        }
+
+        try {
+            strassen.multiply(b, b);
+            throw new TestFailedException();
+        }
+        catch(DimensionsMismatchException e) {
+            // expected
+        }
+    }
+
+    private static void assertNotAMatrixFile(Path file) {
+        try {
+            MatrixFile.read(file);
+            throw new TestFailedException();
+        }
+        catch(IOException e) {
+            // expected
+        }
+    }
+
+    private static void assertWithinError(float[] expected, float[] actual, float marginOfError) {
+        for(int i = 0; i < expected.length; i++) {
+            if(!TestMath.withinMariginOfError(expected[i], actual[i], marginOfError)) {
+                throw new TestFailedException();
+            }
+        }
+    }
+
+    private static Matrix[] runAllOperations(Matrix a, Matrix b, Matrix row, Matrix col) {
+        return new Matrix[] {
+                a.multiply(b),
+                a.addRowToRows(row),
+                a.addColToCols(col),
+                a.relu(),
+                a.vectorizedReluDerivative(),
+                a.horizontalSoftmax(),
+                a.verticalSoftmax()
+        };
+    }
+
+    private static void assertBitwiseEqual(Matrix expected, Matrix actual) {
+        if(expected.rows != actual.rows || expected.cols != actual.cols) {
+            throw new TestFailedException();
+        }
+
+        for(int i = 0; i < expected.data.length; i++) {
+            if(Float.floatToRawIntBits(expected.data[i]) != Float.floatToRawIntBits(actual.data[i])) {
+                throw new TestFailedException();
+            }
+        }
+    }
+
+    private static Matrix randomMatrix(Random random, int rows, int cols) {
+        float[] data = new float[rows * cols];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat() * 2 - 1;
+        }
+        return new Matrix(rows, cols, data);
+    }
+
+    private static float[] naiveMultiply(Matrix a, Matrix b) {
+        float[] result = new float[a.rows * b.cols];
+        for(int row = 0; row < a.rows; row++) {
+            for(int col = 0; col < b.cols; col++) {
+                float sum = 0;
+                for(int i = 0; i < a.cols; i++) {
+                    sum += a.data[row * a.cols + i] * b.data[i * b.cols + col];
+                }
+                result[row * b.cols + col] = sum;
+            }
+        }
+        return result;
+    }
+
+    private static double[] naiveMultiplyDouble(Matrix a, Matrix b) {
+        double[] result = new double[a.rows * b.cols];
+        for(int row = 0; row < a.rows; row++) {
+            for(int col = 0; col < b.cols; col++) {
+                double sum = 0;
+                for(int i = 0; i < a.cols; i++) {
+                    sum += (double) a.data[row * a.cols + i] * b.data[i * b.cols + col];
+                }
+                result[row * b.cols + col] = sum;
+            }
+        }
+        return result;
+    }
+
+    private static double maxAbs(Matrix matrix) {
+        double max = 0;
+        for(float value : matrix.data) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+
+    private static double maxError(double[] expected, Matrix actual) {
+        double max = 0;
+        for(int i = 0; i < expected.length; i++) {
+            max = Math.max(max, Math.abs(expected[i] - actual.data[i]));
+        }
+        return max;
+    }
 }
@@ -6,6 +6,19 @@ import com.github.TannerLow.TestUtils.TestMath;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class GpuTest {
 
@@ -16,11 +29,29 @@ public class GpuTest {
             setup();
 
             testMultiply();
+            testMultiplyOddShapes();
             testAddRowToRows();
             testAddColToCols();
             testRelu();
             testHorizontalSoftmax();
             testVerticalSoftmax();
+            testElementwiseShapes();
+            testDeviceMatrixChain();
+            testBufferPoolReuse();
+            testAsync();
+            testLazyExpression();
+            testDirectMatrix();
+            testStreamingMultiply();
+            testSparseMatrix();
+            testMatrixViews();
+            testMatrixBatch();
+            testProgramCache();
+            testDeviceGroup();
+            testDispatcher();
+            testConcurrentUse();
+            testMetrics();
+            testHalfMatrix();
+            testQuantizedMatrix();
         }
     }
 
@@ -35,6 +66,7 @@ public class GpuTest {
         gpu.initialize(true);
         int programId = gpu.loadProgram(matricesKernelCode);
         gpu.loadKernel(programId, "Matrices", "matrixMultiply");
+        gpu.loadKernel(programId, "Matrices", "stridedMatrixMultiply");
         gpu.loadKernel(programId, "Matrices", "addRowToRows");
         gpu.loadKernel(programId, "Matrices", "addColToCols");
         gpu.loadKernel(programId, "Matrices", "relu");
@@ -68,6 +100,31 @@ public class GpuTest {
         }
     }
 
+    private static void testMultiplyOddShapes() {
+        // shapes that are not multiples of any tile size
+        int[][] shapes = {{1,1,1}, {37,53,29}, {67,131,45}, {1,300,7}};
+        Random random = new Random(42);
+
+        for(int[] shape : shapes) {
+            Matrix a = randomMatrix(random, shape[0], shape[1]);
+            Matrix b = randomMatrix(random, shape[1], shape[2]);
+            Matrix expected = a.multiply(b);
+
+            Matrix result = a.multiply(gpu, b);
+
+            if(result.rows != a.rows || result.cols != b.cols) {
+                throw new TestFailedException();
+            }
+
+            for(int i = 0; i < result.data.length; i++) {
+                if(!TestMath.withinMariginOfError(expected.data[i], result.data[i], 0.001f)) {
+                    System.out.println(expected.data[i] + " vs " + result.data[i]);
+                    throw new TestFailedException();
+                }
+            }
+        }
+    }
+
     private static void testAddRowToRows() {
         float[] aData = {1,2,3,0,0,0};
         float[] bData = {3,2,1};
@@ -169,6 +226,485 @@ public class GpuTest {
         }
     }
 
+    private static void testElementwiseShapes() {
+        // a single wide row, tall and skinny, and sizes that fill no work-group exactly
+        int[][] shapes = {{1,1000}, {300,3}, {37,53}};
+        Random random = new Random(11);
+
+        for(int[] shape : shapes) {
+            Matrix m = randomMatrix(random, shape[0], shape[1]);
+            Matrix row = randomMatrix(random, 1, shape[1]);
+            Matrix col = randomMatrix(random, shape[0], 1);
+
+            assertWithinError(m.addRowToRows(row), m.addRowToRows(gpu, row), 0.0005f);
+            assertWithinError(m.addColToCols(col), m.addColToCols(gpu, col), 0.0005f);
+            assertWithinError(m.relu(), m.relu(gpu), 0.0005f);
+            assertWithinError(m.horizontalSoftmax(), m.horizontalSoftmax(gpu), 0.0005f);
+            assertWithinError(m.verticalSoftmax(), m.verticalSoftmax(gpu), 0.0005f);
+        }
+    }
+
+    private static void testMatrixBatch() {
+        Random random = new Random(31);
+        Matrix[] a = new Matrix[100];
+        Matrix[] b = new Matrix[100];
+        for(int i = 0; i < a.length; i++) {
+            a[i] = randomMatrix(random, 8, 16);
+            b[i] = randomMatrix(random, 16, 12);
+        }
+        Matrix weights = randomMatrix(random, 16, 12);
+
+        Matrix[] products = MatrixBatch.multiply(gpu, a, b);
+        MatrixBatch weighted = MatrixBatch.of(a).multiply(gpu, MatrixBatch.of(weights));
+        for(int i = 0; i < a.length; i++) {
+            assertWithinError(a[i].multiply(b[i]), products[i], 0.0005f);
+            assertWithinError(a[i].multiply(weights), weighted.get(i), 0.0005f);
+        }
+    }
+
+    private static void testProgramCache() throws IOException {
+        String code = readFromInternalFile("kernels/Matrices.cl");
+        Path directory = Files.createTempDirectory("program-cache");
+        ProgramCache previous = gpu.getProgramCache();
+        try {
+            ProgramCache cache = new ProgramCache(directory);
+            gpu.setProgramCache(cache);
+
+            // compiled and stored the first time, built from the stored binary after that
+            int compiled = gpu.loadProgram(code);
+            int cached = gpu.loadProgram(code);
+            if(cache.getMisses() != 1 || cache.getHits() != 1 || cache.getInvalidations() != 0) {
+                throw new TestFailedException();
+            }
+            gpu.loadKernel(compiled, "ProgramCacheCompiled", "matrixMultiply");
+            gpu.loadKernel(cached, "ProgramCacheCached", "matrixMultiply");
+
+            // a different build option is a different entry
+            gpu.loadProgram(code, "-cl-mad-enable");
+            if(cache.getMisses() != 2) {
+                throw new TestFailedException();
+            }
+        }
+        finally {
+            gpu.setProgramCache(previous);
+            try(Stream<Path> files = Files.list(directory)) {
+                for(Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void testDeviceGroup() {
+        Random random = new Random(37);
+        Matrix a = randomMatrix(random, 300, 70);
+        Matrix b = randomMatrix(random, 70, 50);
+        MatrixBatch batchA = MatrixBatch.of(a, a, a);
+        MatrixBatch weights = MatrixBatch.of(b);
+
+        try(DeviceGroup group = DeviceGroup.allDevices(false)) {
+            group.loadKernels(readFromInternalFile("kernels/Matrices.cl"), "Matrices", "matrixMultiply");
+
+            Matrix expected = a.multiply(b);
+            assertWithinError(expected, group.multiply(a, b), 0.0005f);
+            // the measured speeds are picked up by the next split
+            assertWithinError(expected, group.multiply(a, b), 0.0005f);
+            double total = Arrays.stream(group.getWeights()).sum();
+            if(!TestMath.withinMariginOfError(1, (float) total, 0.0001f)) {
+                throw new TestFailedException();
+            }
+
+            group.calibrate(128);
+            MatrixBatch products = group.multiply(batchA, weights);
+            for(int i = 0; i < products.count; i++) {
+                assertWithinError(expected, products.get(i), 0.0005f);
+            }
+        }
+    }
+
+    private static void testDispatcher() {
+        CostModel model = CostModel.calibrate(gpu);
+        if(!model.hasGpu() || !model.isFor(gpu)) {
+            throw new TestFailedException();
+        }
+
+        Dispatcher dispatcher = new Dispatcher(gpu, model);
+        Random random = new Random(41);
+        Matrix small = randomMatrix(random, 4, 4);
+        Matrix a = randomMatrix(random, 1024, 1024);
+        Matrix b = randomMatrix(random, 1024, 1024);
+        assertWithinError(small.multiply(small), dispatcher.multiply(small, small), 0.0005f);
+        assertWithinError(a.multiply(b), dispatcher.multiply(a, b), 0.005f);
+        if(dispatcher.getCount(Dispatcher.Operation.MULTIPLY, Dispatcher.Reason.CPU_FASTER) +
+           dispatcher.getCount(Dispatcher.Operation.MULTIPLY, Dispatcher.Reason.GPU_FASTER) != 2 ||
+           dispatcher.decide(Dispatcher.Operation.MULTIPLY, 4, 4, 4).backend != Dispatcher.Backend.CPU) {
+            throw new TestFailedException();
+        }
+
+        // a model without GPU rates keeps everything on the CPU
+        Dispatcher cpuOnly = new Dispatcher(gpu, CostModel.calibrate(null));
+        assertWithinError(a.relu(), cpuOnly.relu(a), 0);
+        if(cpuOnly.getCount(Dispatcher.Reason.GPU_NOT_CALIBRATED) != 1) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testConcurrentUse() {
+        int threadCount = 4;
+        Random random = new Random(43);
+        Matrix[] a = new Matrix[threadCount];
+        Matrix[] b = new Matrix[threadCount];
+        for(int i = 0; i < threadCount; i++) {
+            a[i] = randomMatrix(random, 150 + i, 90);
+            b[i] = randomMatrix(random, 90, 70 + i);
+        }
+
+        // every thread sets arguments on its own kernels and enqueues on its own queue
+        ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Matrix[]>> results = new ArrayList<>();
+            for(int i = 0; i < threadCount; i++) {
+                int index = i;
+                results.add(threads.submit(() -> {
+                    Matrix[] products = new Matrix[20];
+                    for(int j = 0; j < products.length; j++) {
+                        products[j] = a[index].multiply(gpu, b[index]).relu(gpu);
+                    }
+                    return products;
+                }));
+            }
+            for(int i = 0; i < threadCount; i++) {
+                Matrix expected = a[i].multiply(b[i]).relu();
+                for(Matrix product : results.get(i).get()) {
+                    assertWithinError(expected, product, 0.0005f);
+                }
+            }
+
+            // a device matrix made on one thread can be used on another
+            DeviceMatrix deviceA = a[0].toDevice(gpu);
+            DeviceMatrix deviceProduct = threads.submit(() -> {
+                try(DeviceMatrix deviceB = b[0].toDevice(gpu)) {
+                    return deviceA.multiply(deviceB);
+                }
+            }).get();
+            assertWithinError(a[0].multiply(b[0]), deviceProduct.toMatrix(), 0.0005f);
+            deviceProduct.close();
+            deviceA.close();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            threads.shutdown();
+        }
+
+        if(gpu.getQueueCount() < 2) {
+            throw new TestFailedException();
+        }
+        // a released queue is reused rather than a new one created, the queues of the
+        // finished pool threads may be reused as well
+        int queues = gpu.getQueueCount();
+        Thread first = new Thread(() -> {
+            a[0].relu(gpu);
+            gpu.releaseThreadQueue();
+        });
+        Thread second = new Thread(() -> a[0].relu(gpu));
+        // the queue of a thread that died without releasing it is reused
+        Thread third = new Thread(() -> a[0].relu(gpu));
+        int afterSecond;
+        try {
+            first.start();
+            first.join();
+            second.start();
+            second.join();
+            afterSecond = gpu.getQueueCount();
+            third.start();
+            third.join();
+        }
+        catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if(afterSecond > queues + 1 || gpu.getQueueCount() != afterSecond) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testMetrics() {
+        Random random = new Random(47);
+        Matrix a = randomMatrix(random, 64, 48);
+        Matrix b = randomMatrix(random, 48, 32);
+        MetricsRecorder recorder = new MetricsRecorder();
+
+        // profiling applies to new queues, so the work runs on a thread of its own
+        gpu.setProfiling(true);
+        Metrics.addListener(recorder);
+        try {
+            Thread worker = new Thread(() -> {
+                a.multiply(gpu, b);
+                gpu.releaseThreadQueue();
+            });
+            worker.start();
+            worker.join();
+
+            // kernel timings arrive from a driver thread
+            long deadline = System.currentTimeMillis() + 5000;
+            while(recorder.getKernelCounts().get("matrixMultiply") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            Metrics.removeListener(recorder);
+            gpu.setProfiling(false);
+        }
+
+        if(recorder.getOperationCounts().get("multiply/GPU") != 1 ||
+           recorder.getHostToDeviceBytes() != 4L * (a.data.length + b.data.length) ||
+           recorder.getDeviceToHostBytes() != 4L * a.rows * b.cols ||
+           recorder.getKernelCounts().get("matrixMultiply") != 1 ||
+           recorder.getKernelDeviceNanos().get("matrixMultiply") <= 0 ||
+           recorder.getBufferAllocations() + recorder.getBufferReuses() != 3) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testHalfMatrix() {
+        Random random = new Random(53);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+        HalfMatrix halfA = HalfMatrix.of(a, HalfMatrix.Format.FLOAT16);
+        HalfMatrix brainB = HalfMatrix.of(b, HalfMatrix.Format.BFLOAT16);
+        Matrix widenedA = halfA.toMatrix();
+        Matrix widenedB = brainB.toMatrix();
+        Matrix expected = widenedA.multiply(widenedB);
+
+        assertWithinError(expected, halfA.multiply(gpu, brainB), 0.0005f);
+        assertWithinError(expected, halfA.multiply(gpu, widenedB), 0.0005f);
+        assertWithinError(expected, HalfMatrix.multiply(gpu, widenedA, brainB), 0.0005f);
+    }
+
+    private static void testQuantizedMatrix() {
+        Random random = new Random(59);
+        Matrix x = randomMatrix(random, 37, 300);
+        Matrix w = randomMatrix(random, 300, 29);
+        Matrix bias = randomMatrix(random, 1, 29);
+        QuantizedMatrix quantizedX = QuantizedMatrix.quantize(x, QuantizedMatrix.Axis.ROW);
+        QuantizedMatrix quantizedW = QuantizedMatrix.quantize(w, QuantizedMatrix.Axis.COLUMN);
+
+        // the same int sums and scaling as on the CPU
+        assertWithinError(quantizedX.multiply(quantizedW, bias), quantizedX.multiply(gpu, quantizedW, bias), 0.0005f);
+        assertWithinError(quantizedX.multiply(quantizedW), quantizedX.multiply(gpu, quantizedW), 0.0005f);
+    }
+
+    private static void assertWithinError(Matrix expected, Matrix result, float marginOfError) {
+        if(result.rows != expected.rows || result.cols != expected.cols) {
+            throw new TestFailedException();
+        }
+
+        for(int i = 0; i < result.data.length; i++) {
+            if(!TestMath.withinMariginOfError(expected.data[i], result.data[i], marginOfError)) {
+                System.out.println(expected.data[i] + " vs. " + result.data[i]);
+                throw new TestFailedException();
+            }
+        }
+    }
+
+    private static void testDeviceMatrixChain() {
+        float[] xData = {1,2,3,0,1,0};
+        float[] wData = {1,0,1,3,2,1};
+        float[] bData = {-10,1};
+
+        Matrix x = new Matrix(2,3, xData);
+        Matrix w = new Matrix(3,2, wData);
+        Matrix b = new Matrix(1,2, bData);
+
+        Matrix expected = x.multiply(w).addRowToRows(b).relu().horizontalSoftmax();
+
+        Matrix result;
+        try(DeviceMatrix deviceX = x.toDevice(gpu);
+            DeviceMatrix deviceW = w.toDevice(gpu);
+            DeviceMatrix deviceB = b.toDevice(gpu);
+            DeviceMatrix product = deviceX.multiply(deviceW);
+            DeviceMatrix biased = product.addRowToRows(deviceB);
+            DeviceMatrix activated = biased.relu();
+            DeviceMatrix softmax = activated.horizontalSoftmax()) {
+            result = softmax.toMatrix();
+        }
+
+        if(result.rows != expected.rows || result.cols != expected.cols) {
+            throw new TestFailedException();
+        }
+
+        for(int i = 0; i < result.data.length; i++) {
+            if(!TestMath.withinMariginOfError(expected.data[i], result.data[i], 0.0005f)) {
+                System.out.println(expected.data[i] + " vs. " + result.data[i]);
+                throw new TestFailedException();
+            }
+        }
+    }
+
+    private static void testBufferPoolReuse() {
+        BufferPool pool = gpu.getBufferPool();
+        Matrix m = new Matrix(2, 2, new float[]{-1,2,-3,0});
+
+        // the first call may allocate, the same shapes afterwards must be served from the pool
+        m.relu(gpu);
+        long misses = pool.getMisses();
+        long hits = pool.getHits();
+        m.relu(gpu);
+
+        if(pool.getMisses() != misses || pool.getHits() != hits + 2) {
+            throw new TestFailedException();
+        }
+
+        pool.trim();
+        if(pool.getRetainedBytes() != 0) {
+            throw new TestFailedException();
+        }
+
+        // rounding up to a bucket never exceeds the device's allocation limit
+        if(BufferPool.bucketSize(1000, 1 << 20) != 1024 || BufferPool.bucketSize(1000, 1000) != 1000) {
+            throw new TestFailedException();
+        }
+    }
+
+    private static void testAsync() {
+        Random random = new Random(7);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix row = randomMatrix(random, 1, 53);
+
+        // independent operations in flight at the same time
+        CompletableFuture<Matrix> product = a.multiplyAsync(gpu, b);
+        CompletableFuture<Matrix> biased = a.addRowToRowsAsync(gpu, row);
+        CompletableFuture<Matrix> softmax = a.verticalSoftmaxAsync(gpu);
+
+        assertWithinError(a.multiply(b), product.join(), 0.001f);
+        assertWithinError(a.addRowToRows(row), biased.join(), 0.0005f);
+        assertWithinError(a.verticalSoftmax(), softmax.join(), 0.0005f);
+
+        // a device chain that only waits for the final read
+        Matrix result;
+        try(DeviceMatrix deviceA = DeviceMatrix.uploadAsync(gpu, a);
+            DeviceMatrix deviceB = DeviceMatrix.uploadAsync(gpu, b);
+            DeviceMatrix deviceProduct = deviceA.multiply(deviceB);
+            DeviceMatrix activated = deviceProduct.relu()) {
+            result = activated.toMatrixAsync().join();
+        }
+        assertWithinError(a.multiply(b).relu(), result, 0.001f);
+    }
+
+    private static void testLazyExpression() {
+        Random random = new Random(11);
+        Matrix x = randomMatrix(random, 67, 45);
+        Matrix w = randomMatrix(random, 45, 131);
+        Matrix bias = randomMatrix(random, 1, 131);
+        Matrix colBias = randomMatrix(random, 67, 1);
+
+        assertWithinError(x.multiply(w).addRowToRows(bias).relu().horizontalSoftmax(),
+                x.lazy().multiply(w).addRowToRows(bias).relu().horizontalSoftmax().evaluate(gpu), 0.0005f);
+        assertWithinError(x.addColToCols(colBias).relu().multiply(w).vectorizedReluDerivative(),
+                x.lazy().addColToCols(colBias).relu().multiply(w).reluDerivative().evaluate(gpu), 0.0005f);
+    }
+
+    private static void testDirectMatrix() {
+        Random random = new Random(13);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix expected = a.multiply(b).relu();
+
+        try(MatrixArena arena = new MatrixArena()) {
+            DirectMatrix directA = arena.copyOf(a);
+            DirectMatrix directB = arena.copyOf(b);
+            DirectMatrix copied = arena.allocate(37, 29);
+            DirectMatrix shared = arena.allocate(37, 29);
+
+            // copied through the direct buffers
+            try(DeviceMatrix deviceA = directA.toDevice(gpu);
+                DeviceMatrix deviceB = directB.toDevice(gpu);
+                DeviceMatrix product = deviceA.multiply(deviceB);
+                DeviceMatrix activated = product.relu()) {
+                activated.toMatrix(copied);
+            }
+            assertWithinError(expected, copied.toMatrix(), 0.001f);
+
+            // operands used in place by the device
+            try(DeviceMatrix deviceA = DeviceMatrix.wrap(gpu, directA);
+                DeviceMatrix deviceB = DeviceMatrix.wrap(gpu, directB);
+                DeviceMatrix product = deviceA.multiply(deviceB);
+                DeviceMatrix activated = product.relu()) {
+                activated.toMatrix(shared);
+                // synchronizing a wrapped matrix leaves its host memory unchanged
+                deviceA.toMatrix(directA);
+            }
+            assertWithinError(expected, shared.toMatrix(), 0.001f);
+            assertWithinError(a, directA.toMatrix(), 0);
+        }
+    }
+
+    private static void testStreamingMultiply() throws IOException {
+        Random random = new Random(19);
+        Matrix a = randomMatrix(random, 37, 53);
+        Matrix b = randomMatrix(random, 53, 29);
+
+        Matrix result = new Matrix(37, 29);
+        new StreamingMultiply(16, 10, 20).multiply(gpu, MatrixSource.of(a), MatrixSource.of(b), MatrixSink.of(result));
+        assertWithinError(a.multiply(b), result, 0.001f);
+    }
+
+    private static void testSparseMatrix() {
+        Random random = new Random(23);
+        Matrix a = randomMatrix(random, 37, 53);
+        for(int i = 0; i < a.data.length; i++) {
+            if(random.nextFloat() < 0.95f) {
+                a.data[i] = 0;
+            }
+        }
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix expected = a.multiply(b);
+
+        assertWithinError(expected, SparseMatrix.fromDense(a).multiply(gpu, b), 0.0005f);
+        assertWithinError(expected,
+                SparseMatrix.fromDense(a, SparseMatrix.Layout.COLUMN).multiply(gpu, b), 0.0005f);
+    }
+
+    private static void testMatrixViews() {
+        Random random = new Random(29);
+        Matrix a = randomMatrix(random, 53, 37);
+        Matrix b = randomMatrix(random, 53, 29);
+        Matrix c = randomMatrix(random, 29, 37);
+
+        // A^T * B and A * C^T, from host views and on device matrices
+        Matrix transposeProduct = a.view().transpose().toMatrix().multiply(b);
+        Matrix transposedProduct = a.multiply(c.view().transpose().toMatrix());
+        assertWithinError(transposeProduct, a.view().transpose().multiply(gpu, b.view()), 0.0005f);
+        assertWithinError(transposedProduct, a.view().multiply(gpu, c.view().transpose()), 0.0005f);
+        try(DeviceMatrix deviceA = a.toDevice(gpu);
+            DeviceMatrix deviceB = b.toDevice(gpu);
+            DeviceMatrix deviceC = c.toDevice(gpu);
+            DeviceMatrix deviceTransposeProduct = deviceA.transposeMultiply(deviceB);
+            DeviceMatrix deviceTransposedProduct = deviceA.multiplyTransposed(deviceC)) {
+            assertWithinError(transposeProduct, deviceTransposeProduct.toMatrix(), 0.0005f);
+            assertWithinError(transposedProduct, deviceTransposedProduct.toMatrix(), 0.0005f);
+        }
+
+        // a mini-batch of rows times both operands transposed, from the same matrix
+        MatrixView batch = a.view().rows(8, 40).cols(3, 32);
+        Matrix expected = batch.toMatrix().multiply(batch.transpose().toMatrix());
+        assertWithinError(expected, batch.multiply(gpu, batch.transpose()), 0.0005f);
+    }
+
+    private static Matrix randomMatrix(Random random, int rows, int cols) {
+        float[] data = new float[rows * cols];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat() * 2 - 1;
+        }
+        return new Matrix(rows, cols, data);
+    }
+
     private static String readFromInternalFile(String filepath) {
         try(InputStream fileInputStream = InternalFile.getInstance().getFileInputStream(filepath)) {
             byte[] bytes = fileInputStream.readAllBytes();